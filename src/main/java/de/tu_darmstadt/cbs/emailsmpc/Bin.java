@@ -13,15 +13,22 @@
  */
 package de.tu_darmstadt.cbs.emailsmpc;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
-import java.util.Arrays;
+import java.math.BigInteger;
+import java.util.Objects;
 
 import de.tu_darmstadt.cbs.secretshare.ArithmeticShare;
 import de.tu_darmstadt.cbs.secretshare.ArithmeticSharing;
+import de.tu_darmstadt.cbs.secretshare.ShareVector;
 
 /**
- * Class representing a bin
+ * Class representing a bin. A bin is a view on one index of the share columns of its study, which hold
+ * the shares of all bins as packed limbs with the prime stored only once. Shares must therefore use a prime
+ * smaller than 2^128, as does the default prime. The serialized form is unchanged and holds arrays of shares.
  * @author Tobias Kussel
  */
 public class Bin implements Serializable, Cloneable {
@@ -29,15 +36,73 @@ public class Bin implements Serializable, Cloneable {
     /** SVUID. */
     private static final long serialVersionUID = -8804264711786268229L;
     
+    /**
+     * Creates initialized bins storing their shares in common columns.
+     *
+     * @param names the names
+     * @param numParties the num parties
+     * @return the bins
+     */
+    public static Bin[] createBins(String[] names, int numParties) {
+        StudyShares shares = new StudyShares(names.length, numParties);
+        Bin[] bins = new Bin[names.length];
+        for (int i = 0; i < names.length; i++) {
+            bins[i] = new Bin(names[i], shares, i);
+        }
+        return bins;
+    }
+    
+    /**
+     * Share values of several bins at once, using one random number generator.
+     *
+     * @param bins the bins
+     * @param values the values, null entries are shared as zero
+     * @param fractionalBits the fractional bits
+     * @throws IllegalStateException the illegal state exception
+     * @throws IllegalArgumentException fractionalBits must be positive or sizes do not match
+     */
+    public static void shareValues(Bin[] bins, BigDecimal[] values, int fractionalBits) throws IllegalStateException, IllegalArgumentException {
+        if (fractionalBits < 0)
+          throw new IllegalArgumentException("fractionalBits must be positive");
+        if (bins.length != values.length)
+            throw new IllegalArgumentException("Number of values not equal number of bins");
+        if (bins.length == 0)
+            return;
+        for (Bin bin : bins) {
+            if (!bin.isInitialized())
+                throw new IllegalStateException("Unable to share value in unititialized bin");
+        }
+        BigInteger[] secrets = new BigInteger[values.length];
+        for (int i = 0; i < values.length; i++) {
+            secrets[i] = ArithmeticSharing.convertToFixedPoint(values[i] != null ? values[i] : BigDecimal.ZERO, fractionalBits);
+        }
+        int numParties = bins[0].getShares().getNumParticipants();
+        ShareVector[] shares = new ArithmeticSharing(numParties).shareVectors(secrets);
+        for (int i = 0; i < bins.length; i++) {
+            StudyShares target = bins[i].getShares();
+            if (target.getNumParticipants() != numParties)
+                throw new IllegalArgumentException("Number of shares not compatible with number of parties");
+            for (int party = 0; party < numParties; party++) {
+                target.setShare(true, party, bins[i].index, shares[party], i);
+            }
+        }
+    }
+
     /** The name. */
     public final String name;
     
-    /** The input shares. */
+    /** The input shares. Serialized form only, null otherwise. */
     private ArithmeticShare[] inShares;
     
-    /** The output shares. */
+    /** The output shares. Serialized form only, null otherwise. */
     private ArithmeticShare[] outShares;
 
+    /** Shares of the study or of this bin alone, null if not initialized */
+    private transient volatile StudyShares shares;
+
+    /** Index of the bin in the shares */
+    private transient int index;
+
     /**
      * Instantiates a new bin.
      *
@@ -45,8 +110,6 @@ public class Bin implements Serializable, Cloneable {
      */
     public Bin(String name) {
         this.name = name;
-        inShares = null;
-        outShares = null;
     }
 
     /**
@@ -56,9 +119,20 @@ public class Bin implements Serializable, Cloneable {
      * @param numParties the num parties
      */
     public Bin(String name, int numParties) {
+        this(name, new StudyShares(1, numParties), 0);
+    }
+
+    /**
+     * Instantiates a new bin as a view on shares.
+     *
+     * @param name the name
+     * @param shares the shares
+     * @param index the index of the bin in the shares
+     */
+    Bin(String name, StudyShares shares, int index) {
         this.name = name;
-        inShares = new ArithmeticShare[numParties];
-        outShares = new ArithmeticShare[numParties];
+        this.index = index;
+        this.shares = shares;
     }
 
     /**
@@ -67,9 +141,10 @@ public class Bin implements Serializable, Cloneable {
      * @param id the id
      */
     public void clearInSharesExceptId(int id) {
-        for (int i = 0; i < inShares.length; i++) {
+        StudyShares shares = getShares();
+        for (int i = 0; i < shares.getNumParticipants(); i++) {
             if (i != id)
-                inShares[i] = null;
+                shares.setShare(false, i, index, null);
         }
     }
 
@@ -79,9 +154,10 @@ public class Bin implements Serializable, Cloneable {
      * @param id the id
      */
     public void clearOutSharesExceptId(int id) {
-        for (int i = 0; i < outShares.length; i++) {
+        StudyShares shares = getShares();
+        for (int i = 0; i < shares.getNumParticipants(); i++) {
             if (i != id)
-                outShares[i] = null;
+                shares.setShare(true, i, index, null);
         }
     }
 
@@ -89,27 +165,27 @@ public class Bin implements Serializable, Cloneable {
      * Clear shares.
      */
     public void clearShares() {
-        for (int i = 0; i < inShares.length; i++) {
-            inShares[i] = null;
-            outShares[i] = null;
+        StudyShares shares = getShares();
+        for (int i = 0; i < shares.getNumParticipants(); i++) {
+            shares.setShare(false, i, index, null);
+            shares.setShare(true, i, index, null);
         }
     }
 
     /**
-     * Clone.
+     * Clone. The copy stores its shares on its own.
      *
      * @return the object
      */
     @Override
     public Object clone() {
-      Bin newBin = new Bin(this.name, this.inShares.length);
-      for (int i = 0; i < this.inShares.length; i++) {
-        if (this.inShares[i] != null)
-          newBin.inShares[i] = (ArithmeticShare) this.inShares[i].clone();
-        if (this.outShares[i] != null)
-          newBin.outShares[i] =(ArithmeticShare) this.outShares[i].clone();
+      StudyShares shares = getShares();
+      if (shares == null) {
+          return new Bin(this.name);
       }
-      return newBin;
+      StudyShares copy = new StudyShares(1, shares.getNumParticipants());
+      copy.copy(0, shares, index);
+      return new Bin(this.name, copy, 0);
     }
 
     /**
@@ -125,22 +201,20 @@ public class Bin implements Serializable, Cloneable {
         if (!(o instanceof Bin))
             return false;
         Bin b = (Bin) o;
-        boolean result = b.name.equals(name);
-        result = result && (inShares.length == b.inShares.length);
-        result = result && (outShares.length == b.outShares.length);
-        for (int i = 0; i < inShares.length; i++) {
-            if (b.inShares[i] != null)
-                result = result && b.inShares[i].equals(inShares[i]);
-            else
-                result = result && (inShares[i] == null);
-        }
-        for (int i = 0; i < outShares.length; i++) {
-            if (b.outShares[i] != null)
-                result = result && b.outShares[i].equals(outShares[i]);
-            else
-                result = result && (outShares[i] == null);
+        if (!b.name.equals(name))
+            return false;
+        StudyShares shares = getShares();
+        StudyShares other = b.getShares();
+        if (shares == null || other == null)
+            return shares == other;
+        if (shares.getNumParticipants() != other.getNumParticipants())
+            return false;
+        for (int i = 0; i < shares.getNumParticipants(); i++) {
+            if (!Objects.equals(getShare(false, i), b.getShare(false, i)) ||
+                !Objects.equals(getShare(true, i), b.getShare(true, i)))
+                return false;
         }
-        return result;
+        return true;
     }
 
     /**
@@ -150,7 +224,7 @@ public class Bin implements Serializable, Cloneable {
      * @throws IllegalArgumentException the illegal argument exception
      */
     public int[] getFilledInShareIndices() throws IllegalArgumentException {
-        return getFilledArrayIndices(inShares);
+        return getFilledIndices(false);
     }
 
     /**
@@ -160,7 +234,7 @@ public class Bin implements Serializable, Cloneable {
      * @throws IllegalArgumentException the illegal argument exception
      */
     public int[] getFilledOutShareIndices() throws IllegalArgumentException {
-        return getFilledArrayIndices(outShares);
+        return getFilledIndices(true);
     }
 
     /**
@@ -170,7 +244,7 @@ public class Bin implements Serializable, Cloneable {
      * @return the out share
      */
     public ArithmeticShare getOutShare(int participant) {
-        return outShares[participant];
+        return getShare(true, participant);
     }
 
     /**
@@ -182,13 +256,8 @@ public class Bin implements Serializable, Cloneable {
     public ArithmeticShare getSumShare() throws IllegalStateException {
         if (!isComplete())
             throw new IllegalStateException("Can not reconstruct incomplete shares");
-        ArithmeticShare sum = inShares[0];
-        for (int i = 0; i < inShares.length; i++) {
-            if (i != 0) { // sum is already initialized as share 0
-                sum = sum.add(inShares[i]);
-            }
-        }
-        return sum;
+        StudyShares shares = getShares();
+        return new ArithmeticShare(shares.getSum(index), shares.getColumn(false, 0).getPrime());
     }
 
     /**
@@ -199,17 +268,12 @@ public class Bin implements Serializable, Cloneable {
     @Override
     public int hashCode() {
         int result = name.hashCode();
-        for (ArithmeticShare as : inShares) {
-            if (as != null)
-                result = 31 * result + as.hashCode();
-            else
-                result = 31 * result;
-        }
-        for (ArithmeticShare as : outShares) {
-            if (as != null)
-                result = 31 * result + as.hashCode();
-            else
-                result = 31 * result;
+        StudyShares shares = getShares();
+        if (shares != null) {
+            for (int i = 0; i < shares.getNumParticipants(); i++) {
+                result = 31 * result + Objects.hashCode(getShare(false, i));
+                result = 31 * result + Objects.hashCode(getShare(true, i));
+            }
         }
         return result;
     }
@@ -221,10 +285,10 @@ public class Bin implements Serializable, Cloneable {
      * @throws IllegalStateException the illegal state exception
      */
     public void initialize(int numParties) throws IllegalStateException {
-        if (inShares != null)
+        if (isInitialized())
             throw new IllegalStateException("Unable to initialize already initialized bin");
-        inShares = new ArithmeticShare[numParties];
-        outShares = new ArithmeticShare[numParties];
+        this.index = 0;
+        this.shares = new StudyShares(1, numParties);
     }
 
     /**
@@ -233,11 +297,7 @@ public class Bin implements Serializable, Cloneable {
      * @return true, if is complete
      */
     public boolean isComplete() {
-        for (ArithmeticShare b : inShares) {
-            if (b == null)
-                return false;
-        }
-        return true;
+        return getShares().isComplete(index);
     }
 
     /**
@@ -247,7 +307,7 @@ public class Bin implements Serializable, Cloneable {
      * @return true, if is complete for participant id
      */
     public boolean isCompleteForParticipantId(int participantId) {
-        return inShares[participantId] != null ? true : false;
+        return getShares().isPresent(false, participantId, index);
     }
 
     /**
@@ -256,7 +316,7 @@ public class Bin implements Serializable, Cloneable {
      * @return true, if is initialized
      */
     public boolean isInitialized() {
-        return inShares != null;
+        return shares != null || inShares != null;
     }
 
     /**
@@ -270,7 +330,8 @@ public class Bin implements Serializable, Cloneable {
           throw new IllegalArgumentException("fractionalBits must be positive");
         if (!isComplete())
             throw new IllegalStateException("Can not reconstruct incomplete shares");
-        return ArithmeticSharing.reconstruct(inShares, fractionalBits);
+        final BigDecimal scaleFactor = BigDecimal.valueOf(2).pow(fractionalBits);
+        return new BigDecimal(getShares().getSum(index)).divide(scaleFactor);
     }
     
     /**
@@ -278,9 +339,10 @@ public class Bin implements Serializable, Cloneable {
      *
      * @param share the share
      * @param participant the participant
+     * @throws IllegalArgumentException Incompatible primes
      */
-    public void setInShare(ArithmeticShare share, int participant) {
-        inShares[participant] = share;
+    public void setInShare(ArithmeticShare share, int participant) throws IllegalArgumentException {
+        getShares().setShare(false, participant, index, share);
     }
 
     /**
@@ -290,10 +352,17 @@ public class Bin implements Serializable, Cloneable {
      * @throws IllegalArgumentException the illegal argument exception
      */
     public void setInShares(ArithmeticShare[] shares) throws IllegalArgumentException {
-        if (shares.length != inShares.length) {
-            throw new IllegalArgumentException("Number of shares not compatible with number of parties");
-        }
-        inShares = shares;
+        setShares(false, shares);
+    }
+
+    /**
+     * Sets the out shares.
+     *
+     * @param shares the new out shares
+     * @throws IllegalArgumentException the illegal argument exception
+     */
+    public void setOutShares(ArithmeticShare[] shares) throws IllegalArgumentException {
+        setShares(true, shares);
     }
 
     /**
@@ -308,8 +377,8 @@ public class Bin implements Serializable, Cloneable {
           throw new IllegalArgumentException("fractionalBits must be positive");
         if (!isInitialized())
             throw new IllegalStateException("Unable to share value in unititialized bin");
-        ArithmeticSharing as = new ArithmeticSharing(outShares.length);
-        outShares = as.share(value, fractionalBits);
+        ArithmeticSharing as = new ArithmeticSharing(getShares().getNumParticipants());
+        setOutShares(as.share(value, fractionalBits));
     }
     /**
      * To string.
@@ -318,13 +387,15 @@ public class Bin implements Serializable, Cloneable {
      */
     @Override
     public String toString() {
+        StudyShares shares = getShares();
+        int numParticipants = shares != null ? shares.getNumParticipants() : 0;
         String result = name + "\nInShares:\n";
-        for (ArithmeticShare as : inShares) {
-            result = result + as + "\n";
+        for (int i = 0; i < numParticipants; i++) {
+            result = result + getShare(false, i) + "\n";
         }
         result = result + "\nOutShares:\n";
-        for (ArithmeticShare as : outShares) {
-            result = result + as + "\n";
+        for (int i = 0; i < numParticipants; i++) {
+            result = result + getShare(true, i) + "\n";
         }
         return result;
 
@@ -336,27 +407,142 @@ public class Bin implements Serializable, Cloneable {
      * @param ownId the own id
      */
     public void transferSharesOutIn(int ownId) {
-        inShares[ownId] = outShares[ownId];
-        outShares[ownId] = null;
+        getShares().transfer(ownId, index);
     }
-    
+
     /**
-     * Gets the filled array indices.
+     * Copies the shares of this bin into other shares and turns this bin into a view on them.
      *
-     * @param array the array
-     * @return the filled array indices
+     * @param target the shares
+     * @param index the index of the bin in the shares
+     * @throws IllegalArgumentException Number of shares not compatible with number of parties or incompatible primes
+     */
+    synchronized void attach(StudyShares target, int index) throws IllegalArgumentException {
+        if (shares != null) {
+            target.copy(index, shares, this.index);
+        } else if (inShares != null) {
+            target.setShares(index, inShares, outShares);
+        }
+        inShares = null;
+        outShares = null;
+        this.index = index;
+        this.shares = target;
+    }
+
+    /**
+     * Gets an in or out share.
+     *
+     * @param out whether to return an out share
+     * @param participant the participant
+     * @return the share, null if not present
+     */
+    ArithmeticShare getShare(boolean out, int participant) {
+        return getShares().getShare(out, participant, index);
+    }
+
+    /**
+     * Returns the shares this bin is a view on. Shares read from the serialized form are converted on first access.
+     *
+     * @return the shares, null if not initialized
+     */
+    StudyShares getShares() {
+        StudyShares shares = this.shares;
+        if (shares == null) {
+            synchronized (this) {
+                if (this.shares == null && inShares != null) {
+                    attach(new StudyShares(1, inShares.length), 0);
+                }
+                shares = this.shares;
+            }
+        }
+        return shares;
+    }
+
+    /**
+     * Is this bin a view on the given index of the given shares?
+     *
+     * @param shares the shares
+     * @param index the index
+     * @return true, if so
+     */
+    boolean isView(StudyShares shares, int index) {
+        return this.shares == shares && this.index == index;
+    }
+
+    /**
+     * Converts the shares to the serialized form.
+     *
+     * @param stream the stream
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        StudyShares shares = getShares();
+        ObjectOutputStream.PutField fields = stream.putFields();
+        fields.put("name", name);
+        fields.put("inShares", shares != null ? getShares(false) : null);
+        fields.put("outShares", shares != null ? getShares(true) : null);
+        stream.writeFields();
+    }
+
+    /**
+     * Reads the serialized form. The shares are converted when the bin is attached to a study or on first access.
+     *
+     * @param stream the stream
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        if (inShares == null || outShares == null) {
+            inShares = null;
+            outShares = null;
+        } else if (inShares.length != outShares.length) {
+            throw new IOException("Number of shares not compatible with number of parties");
+        }
+    }
+
+    /**
+     * Gets the participants with an in or out share.
+     *
+     * @param out whether to check the out shares
+     * @return the participants
      * @throws IllegalArgumentException the illegal argument exception
      */
-    private int[] getFilledArrayIndices(ArithmeticShare[] array) throws IllegalArgumentException {
-        if (array == null)
+    private int[] getFilledIndices(boolean out) throws IllegalArgumentException {
+        StudyShares shares = getShares();
+        if (shares == null)
             throw new IllegalArgumentException("Not a valid array");
-        int[] result = new int[0]; // How is Data locality of lists in Java?
-        for (int i = 0; i < array.length; i++) {
-            if (array[i] != null) {
-                result = Arrays.copyOf(result, result.length + 1);
-                result[result.length - 1] = i;
-            }
+        return shares.getFilledIndices(out, index);
+    }
+
+    /**
+     * Returns the in or out shares as an array, with null for missing shares.
+     *
+     * @param out whether to return the out shares
+     * @return the shares
+     */
+    private ArithmeticShare[] getShares(boolean out) {
+        ArithmeticShare[] result = new ArithmeticShare[getShares().getNumParticipants()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getShare(out, i);
         }
         return result;
     }
+
+    /**
+     * Sets or clears all in or out shares.
+     *
+     * @param out whether to set the out shares
+     * @param shares the shares, null entries to clear
+     * @throws IllegalArgumentException the illegal argument exception
+     */
+    private void setShares(boolean out, ArithmeticShare[] shares) throws IllegalArgumentException {
+        StudyShares target = getShares();
+        if (shares.length != target.getNumParticipants()) {
+            throw new IllegalArgumentException("Number of shares not compatible with number of parties");
+        }
+        for (int i = 0; i < shares.length; i++) {
+            target.setShare(out, i, index, shares[i]);
+        }
+    }
 }
@@ -16,9 +16,12 @@ package de.tu_darmstadt.cbs.emailsmpc;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
@@ -44,8 +47,19 @@ public class Message implements Serializable, Cloneable {
      * @throws ClassNotFoundException the class not found exception
      */
     public static Message deserializeMessage(String msg) throws IOException, ClassNotFoundException {
-        byte[] data = Base64.getDecoder().decode(msg);
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+        return deserializeMessage(new ByteArrayInputStream(Base64.getDecoder().decode(msg)));
+    }
+    
+    /**
+     * Deserialize message from a stream of raw, i.e. not Base64-encoded, bytes.
+     *
+     * @param stream the stream
+     * @return the message
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws ClassNotFoundException the class not found exception
+     */
+    public static Message deserializeMessage(InputStream stream) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(stream));
         Message message = (Message) ois.readObject();
         ois.close();
         return message;
@@ -79,7 +93,8 @@ public class Message implements Serializable, Cloneable {
     }
     
     /**
-     * Serialize message.
+     * Serialize message. Buses carry messages as Base64 strings, because they
+     * are split into fragments of a maximal size and reassembled before delivery.
      *
      * @param msg the msg
      * @return the string
@@ -87,10 +102,26 @@ public class Message implements Serializable, Cloneable {
      */
     public static String serializeMessage(Message msg) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(bos));
+        OutputStream out = Base64.getEncoder().wrap(bos);
+        serializeMessage(msg, out);
+        out.close();
+        return bos.toString(StandardCharsets.ISO_8859_1);
+    }
+    
+    /**
+     * Serialize message as raw, i.e. not Base64-encoded, bytes into the given stream.
+     * The stream is not closed.
+     *
+     * @param msg the msg
+     * @param stream the stream
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void serializeMessage(Message msg, OutputStream stream) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(stream);
+        ObjectOutputStream oos = new ObjectOutputStream(gzip);
         oos.writeObject(msg);
-        oos.close();
-        return Base64.getEncoder().encodeToString(bos.toByteArray());
+        oos.flush();
+        gzip.finish();
     }
 
     /**
@@ -0,0 +1,269 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.emailsmpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import de.tu_darmstadt.cbs.secretshare.ArithmeticShare;
+
+/**
+ * Compact binary codec for share and result messages. Layout of version 1:
+ * magic (2 bytes), version (1 byte), type (1 byte), sender, optional recipient,
+ * number of bins (int), CRC-32 of the bin names (int), prime (length-prefixed),
+ * followed by one fixed 16-byte unsigned share value per bin. Bin names are replaced
+ * by the index into the study's bin list and the checksum is verified against the
+ * study when decoding. Messages in the legacy format (Java serialization) are still understood.
+ * The binary format must be enabled per study, as older versions cannot decode it.
+ * 
+ * @author agent
+ */
+public class MessageCodec {
+
+    /** Legacy format based on Java serialization */
+    public static final int     FORMAT_SERIALIZED = 0;
+
+    /** Binary format, version 1 */
+    public static final int     FORMAT_BINARY_V1  = 1;
+
+    /** Most recent format supported */
+    public static final int     FORMAT_CURRENT    = FORMAT_BINARY_V1;
+
+    /** Type of share messages */
+    static final byte           TYPE_SHARE        = 1;
+
+    /** Type of result messages */
+    static final byte           TYPE_RESULT       = 2;
+
+    /** Magic bytes, Java serialization streams start with 0xACED */
+    private static final byte[] MAGIC             = new byte[] { 'E', 'S' };
+
+    /** Number of bytes per share value */
+    private static final int    SIZE_VALUE        = 16;
+
+    /**
+     * Returns whether the data is encoded in the binary format
+     * 
+     * @param data
+     * @return
+     */
+    public static boolean isBinary(byte[] data) {
+        return data.length >= 4 && data[0] == MAGIC[0] && data[1] == MAGIC[1];
+    }
+
+    /**
+     * Returns whether the bins can be represented in the binary format
+     * 
+     * @param bins
+     * @return
+     */
+    static boolean isEncodable(MessageBin[] bins) {
+        if (bins.length == 0 || bins[0].share == null) {
+            return false;
+        }
+        BigInteger prime = bins[0].share.prime;
+        if (prime.signum() <= 0 || prime.bitLength() > SIZE_VALUE * 8) {
+            return false;
+        }
+        for (MessageBin bin : bins) {
+            if (bin.share == null || !bin.share.prime.equals(prime)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes bins of a message
+     * 
+     * @param type
+     * @param sender
+     * @param recipient or null
+     * @param bins
+     * @return
+     * @throws IOException
+     */
+    static byte[] encode(byte type, Participant sender, Participant recipient, MessageBin[] bins) throws IOException {
+        
+        // Prepare
+        BigInteger prime = bins[0].share.prime;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(64 + bins.length * SIZE_VALUE);
+        DataOutputStream out = new DataOutputStream(stream);
+        
+        // Header
+        out.write(MAGIC);
+        out.writeByte(FORMAT_BINARY_V1);
+        out.writeByte(type);
+        writeParticipant(out, sender);
+        out.writeBoolean(recipient != null);
+        if (recipient != null) {
+            writeParticipant(out, recipient);
+        }
+        out.writeInt(bins.length);
+        CRC32 checksum = new CRC32();
+        for (MessageBin bin : bins) {
+            update(checksum, bin.name);
+        }
+        out.writeInt((int) checksum.getValue());
+        byte[] primeBytes = prime.toByteArray();
+        out.writeShort(primeBytes.length);
+        out.write(primeBytes);
+        
+        // Values
+        byte[] buffer = new byte[SIZE_VALUE];
+        for (MessageBin bin : bins) {
+            writeValue(out, bin.share.value.mod(prime), buffer);
+        }
+        out.close();
+        return stream.toByteArray();
+    }
+
+    /**
+     * Decodes a binary message
+     * 
+     * @param data
+     * @param type expected type
+     * @param model study used to resolve and verify bin names, may be null
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    static Decoded decode(byte[] data, byte type, Study model) throws IOException, IllegalArgumentException {
+        
+        // Header
+        if (!isBinary(data)) {
+            throw new IllegalArgumentException("Message invalid");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, MAGIC.length, data.length - MAGIC.length));
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_BINARY_V1) {
+            throw new IllegalArgumentException("Unsupported message format " + version);
+        }
+        if (in.readByte() != type) {
+            throw new IllegalArgumentException("Message invalid");
+        }
+        Decoded result = new Decoded();
+        result.sender = readParticipant(in);
+        result.recipient = in.readBoolean() ? readParticipant(in) : null;
+        int numBins = in.readInt();
+        int checksum = in.readInt();
+        if (numBins < 0 || (long) numBins * SIZE_VALUE > data.length) {
+            throw new IllegalArgumentException("Message invalid");
+        }
+        
+        // Verify bin names
+        Bin[] bins = model != null ? model.getBins() : null;
+        if (bins != null) {
+            CRC32 expected = new CRC32();
+            for (Bin bin : bins) {
+                update(expected, bin.name);
+            }
+            if (numBins != bins.length || checksum != (int) expected.getValue()) {
+                throw new IllegalArgumentException("Bins of message do not match study");
+            }
+        }
+        byte[] primeBytes = new byte[in.readUnsignedShort()];
+        in.readFully(primeBytes);
+        BigInteger prime = new BigInteger(primeBytes);
+        
+        // Values
+        result.bins = new MessageBin[numBins];
+        byte[] buffer = new byte[SIZE_VALUE];
+        for (int i = 0; i < numBins; i++) {
+            in.readFully(buffer);
+            String name = bins != null ? bins[i].name : String.valueOf(i);
+            result.bins[i] = new MessageBin(name, new ArithmeticShare(new BigInteger(1, buffer), prime));
+        }
+        return result;
+    }
+
+    /**
+     * Reads a participant
+     * 
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static Participant readParticipant(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        String emailAddress = in.readUTF();
+        return new Participant(name, emailAddress);
+    }
+
+    /**
+     * Updates a checksum with a bin name, prefixed by its length
+     * 
+     * @param checksum
+     * @param name
+     */
+    private static void update(CRC32 checksum, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            checksum.update(bytes.length >>> shift);
+        }
+        checksum.update(bytes);
+    }
+
+    /**
+     * Writes a participant
+     * 
+     * @param out
+     * @param participant
+     * @throws IOException
+     */
+    private static void writeParticipant(DataOutputStream out, Participant participant) throws IOException {
+        out.writeUTF(participant.name);
+        out.writeUTF(participant.emailAddress);
+    }
+
+    /**
+     * Writes a non-negative value as fixed-width unsigned big-endian number
+     * 
+     * @param out
+     * @param value
+     * @param buffer
+     * @throws IOException
+     */
+    private static void writeValue(DataOutputStream out, BigInteger value, byte[] buffer) throws IOException {
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, SIZE_VALUE);
+        Arrays.fill(buffer, (byte) 0);
+        System.arraycopy(bytes, bytes.length - length, buffer, SIZE_VALUE - length, length);
+        out.write(buffer);
+    }
+
+    /**
+     * Decoded contents of a binary message
+     * 
+     * @author agent
+     */
+    static class Decoded {
+        
+        /** The sender */
+        Participant  sender;
+        
+        /** The recipient, may be null */
+        Participant  recipient;
+        
+        /** The bins */
+        MessageBin[] bins;
+    }
+}
@@ -72,11 +72,17 @@ public class MessageInitial implements Serializable {
         model.setNumParticipants(msg.participants.length);
         model.setOwnId(msg.recipientId);
         model.setExchangeMode(msg.exchangeMode);
+        model.setMessageFormat(Math.min(msg.messageFormat, MessageCodec.FORMAT_CURRENT));
         model.setState(StudyState.PARTICIPATING);
-        model.setBins(new Bin[msg.bins.length]);
+        String[] names = new String[msg.bins.length];
         for (int i = 0; i < msg.bins.length; i++) {
-            model.getBins()[i] = MessageBin.getBin(msg.bins[i], model.getNumParticipants());
+            names[i] = msg.bins[i].name;
         }
+        Bin[] bins = Bin.createBins(names, model.getNumParticipants());
+        for (int i = 0; i < msg.bins.length; i++) {
+            bins[i].setInShare(msg.bins[i].share, 0);
+        }
+        model.setBins(bins);
         return model;
     }
     
@@ -96,6 +102,8 @@ public class MessageInitial implements Serializable {
     public String studyUID;
     /** Exchange mode */
     private ExchangeMode exchangeMode;
+    /** Message format proposed by the creator. Zero if sent by an older version. */
+    private int messageFormat;
     
 
     /**
@@ -110,6 +118,7 @@ public class MessageInitial implements Serializable {
         this.participants = model.getParticipants();
         this.recipientId = recipientId;
         this.exchangeMode = model.getExchangeMode();
+        this.messageFormat = model.getMessageFormat();
         this.bins = new MessageBin[model.getBins().length];
         for (int i = 0; i < model.getBins().length; i++) {
             bins[i] = new MessageBin(model.getBins()[i], recipientId);
@@ -136,7 +145,7 @@ public class MessageInitial implements Serializable {
         int result = 1;
         result = prime * result + Arrays.hashCode(bins);
         result = prime * result + Arrays.hashCode(participants);
-        result = prime * result + Objects.hash(exchangeMode, name, recipientId, studyUID);
+        result = prime * result + Objects.hash(exchangeMode, messageFormat, name, recipientId, studyUID);
         return result;
     }
 
@@ -147,6 +156,7 @@ public class MessageInitial implements Serializable {
         if (getClass() != obj.getClass()) return false;
         MessageInitial other = (MessageInitial) obj;
         return Arrays.equals(bins, other.bins) && exchangeMode == other.exchangeMode &&
+               messageFormat == other.messageFormat &&
                Objects.equals(name, other.name) &&
                Arrays.equals(participants, other.participants) &&
                recipientId == other.recipientId && Objects.equals(studyUID, other.studyUID);
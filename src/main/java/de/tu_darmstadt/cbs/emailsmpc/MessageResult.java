@@ -23,6 +23,8 @@ import java.util.Base64;
 import java.util.Base64.Decoder;
 import java.util.Base64.Encoder;
 
+import de.tu_darmstadt.cbs.secretshare.ArithmeticShare;
+
 /**
  * Message for results
  * @author Tobias Kussel
@@ -44,7 +46,7 @@ public class MessageResult implements Serializable {
      */
     public static MessageResult decodeAndVerify(String msg, Participant sender, Study model)
             throws IOException, ClassNotFoundException {
-        MessageResult rm = decodeMessage(msg);
+        MessageResult rm = decodeMessage(msg, model);
         if (verify(rm, sender, model))
             return rm;
         else
@@ -62,8 +64,27 @@ public class MessageResult implements Serializable {
      */
     public static MessageResult decodeMessage(String msg)
             throws IOException, IllegalArgumentException, ClassNotFoundException {
+        return decodeMessage(msg, null);
+    }
+    
+    /**
+     * Decode message. Supports the binary and the serialized format.
+     *
+     * @param msg the msg
+     * @param model the model used to resolve bin names, may be null
+     * @return the result message
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws IllegalArgumentException the illegal argument exception
+     * @throws ClassNotFoundException the class not found exception
+     */
+    public static MessageResult decodeMessage(String msg, Study model)
+            throws IOException, IllegalArgumentException, ClassNotFoundException {
         Decoder decoder = Base64.getDecoder();
-        ByteArrayInputStream stream = new ByteArrayInputStream(decoder.decode(msg));
+        byte[] data = decoder.decode(msg);
+        if (MessageCodec.isBinary(data)) {
+            return new MessageResult(MessageCodec.decode(data, MessageCodec.TYPE_RESULT, model));
+        }
+        ByteArrayInputStream stream = new ByteArrayInputStream(data);
         ObjectInputStream ois = new ObjectInputStream(stream);
         Object o = ois.readObject();
         if (!(o instanceof MessageResult))
@@ -89,6 +110,9 @@ public class MessageResult implements Serializable {
     /** The sender. */
     public Participant sender;
 
+    /** The format used for encoding */
+    private transient int format;
+
     /**
      * Instantiates a new result message.
      *
@@ -96,12 +120,41 @@ public class MessageResult implements Serializable {
      */
     public MessageResult(Study model) {
         sender = model.getParticipants()[model.getOwnId()];
+        format = model.getMessageFormat();
         bins = new MessageBin[model.getBins().length];
         for (int i = 0; i < model.getBins().length; i++) {
             bins[i] = new MessageBin(model.getBins()[i].name, model.getBins()[i].getSumShare());
         }
     }
 
+    /**
+     * Instantiates a new result message from precomputed sum shares.
+     *
+     * @param model the model
+     * @param sumShares the sum shares of all bins
+     */
+    public MessageResult(Study model, ArithmeticShare[] sumShares) {
+        if (sumShares.length != model.getBins().length)
+            throw new IllegalArgumentException("Number of sum shares not equal number of bins");
+        sender = model.getParticipants()[model.getOwnId()];
+        format = model.getMessageFormat();
+        bins = new MessageBin[sumShares.length];
+        for (int i = 0; i < sumShares.length; i++) {
+            bins[i] = new MessageBin(model.getBins()[i].name, sumShares[i]);
+        }
+    }
+
+    /**
+     * Instantiates a new result message from decoded data.
+     *
+     * @param decoded the decoded data
+     */
+    MessageResult(MessageCodec.Decoded decoded) {
+        this.sender = decoded.sender;
+        this.bins = decoded.bins;
+        this.format = MessageCodec.FORMAT_BINARY_V1;
+    }
+
     /**
      * Equals.
      *
@@ -134,6 +187,9 @@ public class MessageResult implements Serializable {
      */
     public String getMessage() throws IOException {
         Encoder encoder = Base64.getEncoder();
+        if (format >= MessageCodec.FORMAT_BINARY_V1 && MessageCodec.isEncodable(bins)) {
+            return encoder.encodeToString(MessageCodec.encode(MessageCodec.TYPE_RESULT, sender, null, bins));
+        }
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         ObjectOutputStream oos = new ObjectOutputStream(stream);
         oos.writeObject(this);
@@ -44,7 +44,7 @@ public class MessageShare implements Serializable {
      */
     public static MessageShare decodeAndVerify(String msg, Participant sender, Study model)
             throws IOException, ClassNotFoundException {
-        MessageShare sm = decodeMessage(msg);
+        MessageShare sm = decodeMessage(msg, model);
         if (verify(sm, sender, model))
             return sm;
         else
@@ -62,8 +62,27 @@ public class MessageShare implements Serializable {
      */
     public static MessageShare decodeMessage(String msg)
             throws IOException, IllegalArgumentException, ClassNotFoundException {
+        return decodeMessage(msg, null);
+    }
+    
+    /**
+     * Decode message. Supports the binary and the serialized format.
+     *
+     * @param msg the msg
+     * @param model the model used to resolve bin names, may be null
+     * @return the share message
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws IllegalArgumentException the illegal argument exception
+     * @throws ClassNotFoundException the class not found exception
+     */
+    public static MessageShare decodeMessage(String msg, Study model)
+            throws IOException, IllegalArgumentException, ClassNotFoundException {
         Decoder decoder = Base64.getDecoder();
-        ByteArrayInputStream stream = new ByteArrayInputStream(decoder.decode(msg));
+        byte[] data = decoder.decode(msg);
+        if (MessageCodec.isBinary(data)) {
+            return new MessageShare(MessageCodec.decode(data, MessageCodec.TYPE_SHARE, model));
+        }
+        ByteArrayInputStream stream = new ByteArrayInputStream(data);
         ObjectInputStream ois = new ObjectInputStream(stream);
         Object o = ois.readObject();
         if (!(o instanceof MessageShare))
@@ -93,6 +112,9 @@ public class MessageShare implements Serializable {
     /** The sender. */
     public Participant sender;
 
+    /** The format used for encoding */
+    private transient int format;
+
     /**
      * Instantiates a new share message.
      *
@@ -102,12 +124,25 @@ public class MessageShare implements Serializable {
     public MessageShare(Study model, int recipientId) {
         this.recipient = model.getParticipants()[recipientId];
         this.sender = model.getParticipants()[model.getOwnId()];
+        this.format = model.getMessageFormat();
         this.bins = new MessageBin[model.getBins().length];
         for (int i = 0; i < model.getBins().length; i++) {
             bins[i] = new MessageBin(model.getBins()[i], recipientId);
         }
     }
 
+    /**
+     * Instantiates a new share message from decoded data.
+     *
+     * @param decoded the decoded data
+     */
+    MessageShare(MessageCodec.Decoded decoded) {
+        this.recipient = decoded.recipient;
+        this.sender = decoded.sender;
+        this.bins = decoded.bins;
+        this.format = MessageCodec.FORMAT_BINARY_V1;
+    }
+
     /**
      * Equals.
      *
@@ -141,6 +176,9 @@ public class MessageShare implements Serializable {
      */
     public String getMessage() throws IOException {
         Encoder encoder = Base64.getEncoder();
+        if (format >= MessageCodec.FORMAT_BINARY_V1 && MessageCodec.isEncodable(bins)) {
+            return encoder.encodeToString(MessageCodec.encode(MessageCodec.TYPE_SHARE, sender, recipient, bins));
+        }
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         ObjectOutputStream oos = new ObjectOutputStream(stream);
         oos.writeObject(this);
@@ -15,18 +15,22 @@ package de.tu_darmstadt.cbs.emailsmpc;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
 import java.util.stream.IntStream;
 
 import org.bihealth.mi.easybus.Bus;
 import org.bihealth.mi.easybus.BusException;
+import org.bihealth.mi.easybus.BusManager;
 import org.bihealth.mi.easybus.ConnectionSettings;
 import org.bihealth.mi.easybus.ConnectionSettings.ExchangeMode;
 import org.bihealth.mi.easybus.implementations.email.BusEmail;
@@ -36,6 +40,8 @@ import org.bihealth.mi.easybus.implementations.http.easybackend.BusEasyBackend;
 import org.bihealth.mi.easybus.implementations.http.easybackend.ConnectionSettingsEasyBackend;
 import org.bihealth.mi.easysmpc.resources.Resources;
 
+import de.tu_darmstadt.cbs.secretshare.ShareVector;
+
 /**
  * Main class of the API
  * @author Tobias Kussel
@@ -85,13 +91,31 @@ public class Study implements Serializable, Cloneable {
      * @throws IllegalArgumentException the illegal argument exception
      */
     public static Study loadModel(File filename) throws IOException, ClassNotFoundException, IllegalArgumentException {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filename));
-        Object o = ois.readObject();
-        ois.close();
-        if (!(o instanceof Study))
-            throw new IllegalArgumentException("Invalid project file");
-        Study model = (Study) o;
+        Study model;
+        boolean columnar = StudyColumns.isColumnar(filename);
+        if (columnar) {
+            model = StudyColumns.read(filename);
+        } else {
+            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filename));
+            Object o = ois.readObject();
+            ois.close();
+            if (!(o instanceof Study))
+                throw new IllegalArgumentException("Invalid project file");
+            model = (Study) o;
+        }
         model.setFilename(filename);
+        synchronized (model) {
+            model.columnarFormat = columnar;
+            try {
+                model.sizeJournal = StudyJournal.replay(model, filename, model.generation);
+            } catch (IOException | RuntimeException e) {
+                model.releaseColumns();
+                throw e;
+            }
+            model.sizeSnapshot = filename.length();
+            model.journalPending = null;
+            model.journalValid = model.sizeJournal >= 0;
+        }
         return model;
     }
 
@@ -137,6 +161,45 @@ public class Study implements Serializable, Cloneable {
     /** Exchange mode */
     private ExchangeMode exchangeMode = ExchangeMode.MANUAL;
 
+    /** Format used to encode share and result messages. The binary format is only used if enabled by the creator, as older versions cannot decode it. */
+    private int messageFormat = MessageCodec.FORMAT_SERIALIZED;
+
+    /** Number of threads used to process bins. Zero means the number of available processors, one means sequential processing. */
+    private transient int parallelism;
+
+    /** Pool used to process bins if parallelism is set, created on first use and reused */
+    private transient ForkJoinPool pool;
+
+    /** Participants whose shares are present in all bins, null if this must be determined from the bins */
+    private transient boolean[] sharesComplete;
+
+    /** Number of participants whose shares are still missing in at least one bin */
+    private transient int sharesMissing;
+
+    /** Generation of the last snapshot written, identifies the journal belonging to it */
+    private long generation;
+
+    /** Journal records of changes not saved yet */
+    private transient List<byte[]> journalPending;
+
+    /** Whether the snapshot and journal saved reflect this study except for the pending journal records */
+    private transient boolean journalValid;
+
+    /** Size of the last snapshot written in bytes */
+    private transient long sizeSnapshot;
+
+    /** Size of the valid part of the journal in bytes */
+    private transient long sizeJournal;
+
+    /** Whether snapshots are written in the columnar format */
+    private transient boolean columnarFormat;
+
+    /** Columns the shares of the bins are loaded from, if loaded from a columnar snapshot */
+    private transient StudyColumns columns;
+
+    /** Shares of all bins, the bins are views on them. Null if the bins must be attached first. */
+    private transient StudyShares shares;
+
     /**
      * Instantiates a new app model.
      */
@@ -170,9 +233,9 @@ public class Study implements Serializable, Cloneable {
      * Clear bins.
      */
     public synchronized void clearBins() {
-        for (Bin b : this.getBins()) {
-            b.clearShares();
-        }
+        invalidateSharesComplete();
+        requireSnapshot();
+        getShares().clear();
     }
 
     /**
@@ -195,10 +258,13 @@ public class Study implements Serializable, Cloneable {
         newModel.setState(this.getState());
         newModel.setFilename(this.getFilename());   
         newModel.setFractionalBits(this.getFractionalBits());
+        newModel.shares = null;
+        newModel.columns = null;
         if (this.getBins() != null) {
+            StudyShares shares = (StudyShares) getShares().clone();
             newModel.setBins(new Bin[this.getBins().length]);
             for (int i = 0; i < newModel.getBins().length; i++) {
-                newModel.getBins()[i] = (Bin) this.getBins()[i].clone();
+                newModel.getBins()[i] = new Bin(this.getBins()[i].name, shares, i);
             }
         }
       
@@ -215,6 +281,8 @@ public class Study implements Serializable, Cloneable {
                 if (this.unsentMessages[i] != null) newModel.unsentMessages[i] = (Message) this.unsentMessages[i].clone();
             }
         }
+      newModel.journalPending = null;
+      newModel.pool = null;
      
       return newModel;
     }
@@ -275,10 +343,19 @@ public class Study implements Serializable, Cloneable {
     public synchronized BinResult[] getAllResults() throws IllegalStateException {
         if (getState() != StudyState.FINISHED)
             throw new IllegalStateException("Forbidden action (getBinResult) at current state " + getState());
-        BinResult[] result = new BinResult[getBins().length];
-        for (int i = 0; i < getBins().length; i++) {
-            result[i] = getBinResult(i);
-        }
+        if (fractionalBits < 0)
+            throw new IllegalArgumentException("fractionalBits must be positive");
+        if (!areSharesComplete())
+            throw new IllegalStateException("Can not reconstruct incomplete shares");
+        Bin[] bins = getBins();
+        BinResult[] result = new BinResult[bins.length];
+        ShareVector sum = getSumShares();
+        final BigDecimal scaleFactor = BigDecimal.valueOf(2).pow(fractionalBits);
+        processBins(bins.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                result[i] = new BinResult(bins[i].name, new BigDecimal(sum.getValue(i)).divide(scaleFactor));
+            }
+        });
         return result;
     }
     
@@ -327,7 +404,8 @@ public class Study implements Serializable, Cloneable {
     }
     
     /**
-     * Returns the bus
+     * Returns the bus. Studies using the same mailbox or account share the underlying connection,
+     * the interval is determined by the study which creates it.
      * 
      * @param millis milliseconds interval to check for new mails. If zero a send only bus is returned
      * @return the bus
@@ -337,23 +415,32 @@ public class Study implements Serializable, Cloneable {
         
         if ((this.bus == null || !this.bus.isAlive()) && this.getConnectionSettings() != null) {
 
+            // Release handle to a bus which is not alive anymore
+            if (this.bus != null) {
+                this.bus.stop();
+            }
+
             // Is e-mails bus?
             if (this.getConnectionSettings() instanceof ConnectionSettingsIMAP) {
 
-                this.bus = new BusEmail(new ConnectionIMAP((ConnectionSettingsIMAP) this.getConnectionSettings(),
-                                                           isSharedMailbox),
-                                        millis > 0 ? millis : getConnectionSettings().getCheckInterval() ,
+                ConnectionSettingsIMAP settings = (ConnectionSettingsIMAP) this.getConnectionSettings();
+                int interval = millis > 0 ? millis : settings.getCheckInterval();
+                this.bus = BusManager.getBus(BusManager.getKey(settings, null, isSharedMailbox, interval), () -> new BusEmail(new ConnectionIMAP(settings, isSharedMailbox),
+                                        interval,
                                                 Resources.SIZE_THREADPOOL,
-                                                ((ConnectionSettingsIMAP) this.getConnectionSettings()).getMaxMessageSize());
+                                                settings.getMaxMessageSize()));
             }
 
             // Is EasyBackend bus?
             if (this.getConnectionSettings() instanceof ConnectionSettingsEasyBackend) {
-                this.bus = new BusEasyBackend(Resources.SIZE_THREADPOOL,
-                                              millis > 0 ? millis : getConnectionSettings().getCheckInterval(),
-                                                      ((ConnectionSettingsEasyBackend) getConnectionSettings()),
-                                                      new org.bihealth.mi.easybus.Participant(participants[getOwnId()].name , getConnectionSettings().getIdentifier()),
-                                                      getConnectionSettings().getMaxMessageSize());
+                ConnectionSettingsEasyBackend settings = (ConnectionSettingsEasyBackend) this.getConnectionSettings();
+                org.bihealth.mi.easybus.Participant self = new org.bihealth.mi.easybus.Participant(participants[getOwnId()].name , settings.getIdentifier());
+                int interval = millis > 0 ? millis : settings.getCheckInterval();
+                this.bus = BusManager.getBus(BusManager.getKey(settings, self, isSharedMailbox, interval), () -> new BusEasyBackend(Resources.SIZE_THREADPOOL,
+                                              interval,
+                                                      settings,
+                                                      self,
+                                                      settings.getMaxMessageSize()));
             }
         }
         
@@ -380,6 +467,13 @@ public class Study implements Serializable, Cloneable {
         return fractionalBits;
     }
 
+    /**
+     * @return the format used to encode share and result messages
+     */
+    public synchronized int getMessageFormat() {
+        return messageFormat;
+    }
+
     /**
      * @return the name
      */
@@ -429,6 +523,13 @@ public class Study implements Serializable, Cloneable {
         throw new IllegalArgumentException("Unknown participant " + p);
     }
 
+    /**
+     * @return the number of threads used to process bins
+     */
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
     /**
      * @return the participants
      */
@@ -508,6 +609,7 @@ public class Study implements Serializable, Cloneable {
     public synchronized void initializeStudy(String name, Participant[] participants, Bin[] bins, ConnectionSettings connectionSettings) throws IllegalStateException {
         if (!(getState() == StudyState.NONE || getState() == StudyState.STARTING))
             throw new IllegalStateException("Unable to initialize study at state" + getState());
+        requireSnapshot();
         this.setName(name);
         this.setConnectionSettings(connectionSettings);
         this.exchangeMode = connectionSettings == null ? ExchangeMode.MANUAL : connectionSettings.getExchangeMode(); 
@@ -583,17 +685,53 @@ public class Study implements Serializable, Cloneable {
         }
     }
 
+    /**
+     * Checks whether the shares of all participants are present in all bins. Tracks shares set via
+     * setShareFromMessage and state transitions, so that bins are only scanned after structural changes.
+     *
+     * @return true, if all shares are complete
+     */
+    public synchronized boolean areSharesComplete() {
+        getSharesComplete();
+        return sharesMissing == 0;
+    }
+
+    /**
+     * Checks whether the shares of a participant are present in all bins
+     *
+     * @param participantId the participant id
+     * @return true, if the shares of the participant are complete
+     */
+    public synchronized boolean areSharesComplete(int participantId) {
+        return getSharesComplete()[participantId];
+    }
+
+    /**
+     * Waits until the shares of all participants are present in all bins or the time has passed
+     *
+     * @param millis the maximal time to wait in milliseconds
+     * @return true, if all shares are complete
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitSharesComplete(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (!areSharesComplete()) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
     /**
      * Checks if is result computable.
      *
      * @return true, if is result computable
      */
     public synchronized boolean isResultComputable() {
-        boolean ready = true;
-        for (Bin b : getBins()) {
-            ready &= b.isComplete();
-        }
-        return ready;
+        return areSharesComplete();
     }
 
     /**
@@ -603,6 +741,7 @@ public class Study implements Serializable, Cloneable {
      */
     public synchronized void markMessageRetrieved(int recipientId) {
         retrievedMessages[recipientId] = true;
+        journal(StudyJournal.retrieved(recipientId));
     }
 
     /**
@@ -615,6 +754,7 @@ public class Study implements Serializable, Cloneable {
         if (unsentMessages[recipientId] == null)
             throw new IllegalArgumentException("Message " + recipientId + " nonexistent");
         unsentMessages[recipientId] = null;
+        journal(StudyJournal.sent(recipientId));
     }
 
     /**
@@ -643,14 +783,10 @@ public class Study implements Serializable, Cloneable {
           if (i != getOwnId())
             unsentMessages[i] = getInitialMessage(i);
           else {
-            for (Bin b : getBins()) {
-              b.transferSharesOutIn(getOwnId());
-            }
+            getShares().transfer(getOwnId());
           }
         }
-        for (Bin b : getBins()) {
-          b.clearOutSharesExceptId(getOwnId());
-        }
+        getShares().clearExcept(true, getOwnId());
     }
 
     /**
@@ -662,7 +798,8 @@ public class Study implements Serializable, Cloneable {
     public synchronized void populateResultMessages() throws IllegalStateException, IOException {
         if (getState() != StudyState.SENDING_RESULT)
             throw new IllegalStateException("Forbidden action (populateResultMessage) at current state " + getState());
-      MessageResult data = new MessageResult(this);
+      ShareVector sum = getSumShares();
+      MessageResult data = new MessageResult(this, sum.toShares());
       for (int i = 0; i < getNumParticipants(); i++) {
         if (i != getOwnId()) {
           Participant recipient = this.getParticipants()[i];
@@ -671,14 +808,12 @@ public class Study implements Serializable, Cloneable {
           retrievedMessages[i] = false;
           retrievedMessages[getOwnId()] = true;
         } else {
-          for (Bin b : getBins()) {
-            b.setInShare(b.getSumShare(), getOwnId());
-          }
+          getShares().setColumn(false, getOwnId(), sum);
         }
       }
-      for (Bin b : getBins()) {
-        b.clearInSharesExceptId(getOwnId());
-      }
+      getShares().clearExcept(false, getOwnId());
+      invalidateSharesComplete();
+      requireSnapshot();
     }
 
     /**
@@ -694,14 +829,12 @@ public class Study implements Serializable, Cloneable {
             if (i != getOwnId()) {
               unsentMessages[i] = getShareMessage(i);
             } else {
-              for (Bin b : getBins()) {
-                b.transferSharesOutIn(getOwnId());
-              }
+              getShares().transfer(getOwnId());
             }
           }
-          for (Bin b : getBins()) {
-            b.clearOutSharesExceptId(getOwnId());
-          }
+          getShares().clearExcept(true, getOwnId());
+          invalidateSharesComplete();
+          requireSnapshot();
     }
 
     /**
@@ -713,10 +846,80 @@ public class Study implements Serializable, Cloneable {
     public synchronized void saveProgram() throws IllegalStateException, IOException {
         if (getFilename() == null) {
             throw new IllegalStateException("No filename defined");
+        } else if (journalValid && sizeJournal <= sizeSnapshot * Resources.JOURNAL_MAX_RELATIVE_SIZE) {
+            // Append changes to journal
+            if (journalPending != null && !journalPending.isEmpty()) {
+                try {
+                    sizeJournal = StudyJournal.append(getFilename(), sizeJournal, journalPending);
+                    journalPending.clear();
+                } catch (IOException e) {
+                    // Records may be torn, write a snapshot next time
+                    requireSnapshot();
+                    throw e;
+                }
+            }
         } else {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(getFilename()));
-            oos.writeObject(this);
-            oos.close();
+            // Compact into a new snapshot, the old one can not be replaced while mapped
+            requireSnapshot();
+            releaseColumns();
+            generation++;
+            sizeSnapshot = StudyJournal.writeSnapshot(this, getFilename(), generation);
+            sizeJournal = StudyJournal.SIZE_HEADER;
+            journalPending = null;
+            journalValid = true;
+        }
+    }
+
+    /**
+     * Are snapshots written in the columnar format, which allows to load shares lazily from a memory-mapped file?
+     *
+     * @return columnar format
+     */
+    public synchronized boolean isColumnarFormat() {
+        return columnarFormat;
+    }
+
+    /**
+     * Sets whether snapshots are written in the columnar format, which allows to load shares lazily from a
+     * memory-mapped file.
+     *
+     * @param columnarFormat the columnar format
+     */
+    public synchronized void setColumnarFormat(boolean columnarFormat) {
+        if (this.columnarFormat != columnarFormat) {
+            requireSnapshot();
+        }
+        this.columnarFormat = columnarFormat;
+    }
+
+    /**
+     * Sets the columns the shares of the bins are loaded from.
+     *
+     * @param columns the columns
+     */
+    synchronized void setColumns(StudyColumns columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Loads all shares from the columns and releases the mapping of the snapshot, so that it can be replaced or deleted.
+     */
+    private void releaseColumns() {
+        if (columns != null) {
+            getShares().load();
+            columns.close();
+            columns = null;
+        }
+    }
+
+    /**
+     * Deletes the files the study has been saved to.
+     */
+    public synchronized void deleteProgram() {
+        if (getFilename() != null) {
+            releaseColumns();
+            getFilename().delete();
+            StudyJournal.getJournalFile(getFilename()).delete();
         }
     }
 
@@ -724,13 +927,17 @@ public class Study implements Serializable, Cloneable {
      * @param bins the bins to set
      */
     public synchronized void setBins(Bin[] bins) {
+        invalidateSharesComplete();
+        requireSnapshot();
         this.bins = bins;
+        this.shares = null;
     }
 
     /**
      * @param connectionSettings the connectionSettings to set
      */
     public synchronized void setConnectionSettings(ConnectionSettings connectionSettings) {
+        requireSnapshot();
         this.connectionSettings = connectionSettings;
     }
 
@@ -738,6 +945,7 @@ public class Study implements Serializable, Cloneable {
      * @param filename the filename to set
      */
     public synchronized void setFilename(File filename) {
+        requireSnapshot();
         this.filename = filename;
     }
 
@@ -745,9 +953,22 @@ public class Study implements Serializable, Cloneable {
      * @param fractionalBits the fractional bits to sets
      */
     public void setFractionalBits(int fractionalBits) {
+        requireSnapshot();
         this.fractionalBits = fractionalBits;
     }
 
+    /**
+     * Sets the format used to encode share and result messages. The creator of a study may enable
+     * the binary format if all participants run a version supporting it. Participants adopt the format
+     * from the initial message.
+     * 
+     * @param messageFormat the format used to encode share and result messages
+     */
+    public synchronized void setMessageFormat(int messageFormat) {
+        requireSnapshot();
+        this.messageFormat = messageFormat;
+    }
+
     /**
      * Sets the model from message.
      *
@@ -770,6 +991,7 @@ public class Study implements Serializable, Cloneable {
      * @param name the name to set
      */
     public synchronized void setName(String name) {
+        requireSnapshot();
         this.name = name;
     }
 
@@ -777,6 +999,8 @@ public class Study implements Serializable, Cloneable {
      * @param numParticipants the numParticipants to set
      */
     public synchronized void setNumParticipants(int numParticipants) {
+        invalidateSharesComplete();
+        requireSnapshot();
         this.numParticipants = numParticipants;
     }
 
@@ -784,13 +1008,32 @@ public class Study implements Serializable, Cloneable {
      * @param ownId the ownId to set
      */
     public synchronized void setOwnId(int ownId) {
+        requireSnapshot();
         this.ownId = ownId;
     }
     
+    /**
+     * Sets the number of threads used to share values, compute sum shares and reconstruct results.
+     * Zero means the number of available processors, one means sequential processing.
+     * 
+     * @param parallelism the parallelism to set
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 0)
+            throw new IllegalArgumentException("parallelism must not be negative");
+        if (pool != null && parallelism != this.parallelism) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.parallelism = parallelism;
+    }
+
     /**
      * @param participants the participants to set
      */
     public synchronized void setParticipants(Participant[] participants) {
+        invalidateSharesComplete();
+        requireSnapshot();
         this.participants = participants;
     }
     
@@ -816,16 +1059,22 @@ public class Study implements Serializable, Cloneable {
             if (getState() == StudyState.RECIEVING_SHARE) {
                 MessageShare sm = MessageShare.decodeAndVerify(Message.getMessageData(msg), sender, this);
                 int senderId = getParticipantId(sender);
-                for (int i = 0; i < getBins().length; i++) {
-                    getBins()[i].setInShare(sm.bins[i].share, senderId);
+                StudyShares shares = getShares();
+                for (int i = 0; i < sm.bins.length; i++) {
+                    shares.setShare(false, senderId, i, sm.bins[i].share);
                 }
             } else {
                 MessageResult rm = MessageResult.decodeAndVerify(Message.getMessageData(msg), sender, this);
                 int senderId = getParticipantId(sender);
-                for (int i = 0; i < getBins().length; i++) {
-                    getBins()[i].setInShare(rm.bins[i].share, senderId);
+                StudyShares shares = getShares();
+                for (int i = 0; i < rm.bins.length; i++) {
+                    shares.setShare(false, senderId, i, rm.bins[i].share);
                 }
             }
+            markSharesComplete(getParticipantId(sender));
+            if (journalValid) {
+                journal(StudyJournal.share(msg));
+            }
         } else {
             throw new IllegalArgumentException("Message invalid");
         }
@@ -835,6 +1084,7 @@ public class Study implements Serializable, Cloneable {
      * @param state the state to set
      */
     public synchronized void setState(StudyState state) {
+        requireSnapshot();
         this.state = state;
     }
 
@@ -842,6 +1092,7 @@ public class Study implements Serializable, Cloneable {
      * @param studyUID the studyUID to set
      */
     public synchronized void setStudyUID(String studyUID) {
+        requireSnapshot();
         this.studyUID = studyUID;
     }
 
@@ -950,9 +1201,11 @@ public class Study implements Serializable, Cloneable {
             throw new IllegalArgumentException("Number of values not equal number of bins");
         if (fractionalBits < 0)
             throw new IllegalArgumentException("fractionalBits must be positive");
-        for (int i = 0; i < getBins().length; i++) {
-            getBins()[i].shareValue(values[i], fractionalBits);
-        }
+        Bin[] bins = getBins();
+        // Each task uses its own random number generator
+        processBins(bins.length, (from, to) -> {
+            Bin.shareValues(Arrays.copyOfRange(bins, from, to), Arrays.copyOfRange(values, from, to), fractionalBits);
+        });
         advanceState(StudyState.SENDING_SHARE);
     }
 
@@ -1037,6 +1290,7 @@ public class Study implements Serializable, Cloneable {
         setName(model.getName());
         setState(model.getState());
         setFractionalBits(model.getFractionalBits());
+        setMessageFormat(model.getMessageFormat());
     }
 
     /**
@@ -1049,6 +1303,66 @@ public class Study implements Serializable, Cloneable {
         return retrievedMessages[recipientId];
     }
 
+    /**
+     * Returns for each participant whether its shares are present in all bins, determines this from the bins if unknown
+     *
+     * @return
+     */
+    private boolean[] getSharesComplete() {
+        if (sharesComplete == null) {
+            sharesComplete = new boolean[getNumParticipants()];
+            sharesMissing = 0;
+            for (int participant = 0; participant < sharesComplete.length; participant++) {
+                boolean complete = getBins() == null || getShares().isComplete(false, participant);
+                sharesComplete[participant] = complete;
+                sharesMissing += complete ? 0 : 1;
+            }
+        }
+        return sharesComplete;
+    }
+
+    /**
+     * Records a change which can be saved by appending to the journal
+     *
+     * @param record
+     */
+    private void journal(byte[] record) {
+        if (journalValid) {
+            if (journalPending == null) {
+                journalPending = new ArrayList<>();
+            }
+            journalPending.add(record);
+        }
+    }
+
+    /**
+     * Marks that the next save must write a snapshot, as the study has changed in a way not covered by the journal
+     */
+    private void requireSnapshot() {
+        journalValid = false;
+    }
+
+    /**
+     * Forgets which shares are complete after bins or participants have changed and wakes up waiting threads
+     */
+    private void invalidateSharesComplete() {
+        sharesComplete = null;
+        notifyAll();
+    }
+
+    /**
+     * Marks the shares of a participant as present in all bins and wakes up waiting threads
+     *
+     * @param participantId
+     */
+    private void markSharesComplete(int participantId) {
+        if (sharesComplete != null && !sharesComplete[participantId]) {
+            sharesComplete[participantId] = true;
+            sharesMissing--;
+        }
+        notifyAll();
+    }
+
     /**
      * Advance state.
      *
@@ -1057,6 +1371,8 @@ public class Study implements Serializable, Cloneable {
      * @throws IOException Signals that an I/O exception has occurred.
      */
     private void advanceState(StudyState newState) throws IllegalStateException, IOException {
+        invalidateSharesComplete();
+        requireSnapshot();
         switch (getState()) {
         case NONE:
             if (!(newState == StudyState.STARTING || newState == StudyState.PARTICIPATING))
@@ -1160,6 +1476,73 @@ public class Study implements Serializable, Cloneable {
 
     }
 
+    /**
+     * Returns the shares of all bins, attaching the bins to them first if needed.
+     *
+     * @return the shares
+     */
+    synchronized StudyShares getShares() {
+        if (shares == null) {
+            shares = StudyShares.attach(getBins(), getNumParticipants());
+        }
+        return shares;
+    }
+
+    /**
+     * Sums the in shares of all participants per bin, in parallel chunks if there are enough bins.
+     *
+     * @return the sums
+     */
+    private ShareVector getSumShares() {
+        ShareVector[] columns = getShares().getColumns(false);
+        ShareVector sum = new ShareVector(getShares().getNumBins(), columns[0].getPrime());
+        processBins(sum.size(), (from, to) -> {
+            for (ShareVector column : columns) {
+                sum.addInPlace(column, from, to);
+            }
+        });
+        return sum;
+    }
+
+    /**
+     * Processes bins in chunks, in parallel if there are enough bins.
+     * Tasks must not call synchronized methods of this study, as the calling thread holds the lock.
+     *
+     * @param numBins the number of bins
+     * @param task consumer of the first (inclusive) and last (exclusive) index of a chunk
+     */
+    private void processBins(int numBins, BiConsumer<Integer, Integer> task) {
+        
+        // Determine number of chunks
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        int numChunks = Math.min(threads, numBins / Resources.MIN_BINS_PER_PARALLEL_TASK);
+        if (numChunks <= 1) {
+            task.accept(0, numBins);
+            return;
+        }
+        
+        // Prepare pool. Idle workers of the pool terminate on their own.
+        if (parallelism > 0 && pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        ForkJoinPool pool = parallelism > 0 ? this.pool : ForkJoinPool.commonPool();
+        
+        // Process chunks
+        try {
+            pool.submit(() -> IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+                task.accept((int) ((long) numBins * chunk / numChunks), (int) ((long) numBins * (chunk + 1) / numChunks));
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing bins", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to process bins", e.getCause());
+        }
+    }
+
     /**
      * Gets the initial message.
      *
@@ -1196,6 +1579,7 @@ public class Study implements Serializable, Cloneable {
     }
 
     public void setExchangeMode(ExchangeMode exchangeMode) {
+        requireSnapshot();
         this.exchangeMode = exchangeMode;
     }
 }
@@ -0,0 +1,442 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.emailsmpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import de.tu_darmstadt.cbs.secretshare.ArithmeticSharing;
+import de.tu_darmstadt.cbs.secretshare.ShareVector;
+
+/**
+ * Columnar file format for studies. The file consists of fixed-width sections:
+ * <ul>
+ * <li>a header with the number of bins and participants and the offsets of the other sections,</li>
+ * <li>a directory with the prime of each share column,</li>
+ * <li>the metadata, i.e. the study serialized without any shares,</li>
+ * <li>one column per participant for the in and the out shares, each consisting of a bitmap marking the bins which
+ * contain a share followed by a 128-bit value per bin.</li>
+ * </ul>
+ * The columns are memory-mapped when a study is read, each column is loaded into the shares of the study on first
+ * access.
+ * The mappings must be closed before the file is replaced or deleted, as some platforms do not allow this while a
+ * file is mapped.
+ * 
+ * @author agent
+ */
+class StudyColumns {
+
+    /**
+     * Replaces an initialized bin in the metadata
+     * 
+     * @author agent
+     */
+    private static class BinReference implements Serializable {
+
+        /** SVUID */
+        private static final long serialVersionUID = 2457925375716528735L;
+        /** Name of the bin */
+        private final String      name;
+        /** Index of the bin in the columns */
+        private final int         index;
+
+        /**
+         * Creates a new instance
+         * 
+         * @param name
+         * @param index
+         */
+        private BinReference(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    /** Magic number at the beginning of each file */
+    static final int          MAGIC        = 0x45534d43;
+    /** Version of the format */
+    private static final int  VERSION      = 1;
+    /** Size of the header */
+    private static final int  SIZE_HEADER  = 32;
+    /** Size of a value or prime */
+    private static final int  SIZE_VALUE   = 16;
+    /** Largest value which can be stored */
+    private static final BigInteger LIMIT  = BigInteger.ONE.shiftLeft(8 * SIZE_VALUE);
+
+    /**
+     * Is the file a columnar study file?
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static boolean isColumnar(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            return input.length() >= SIZE_HEADER && input.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Reads a study. The metadata is deserialized, the share columns are memory-mapped.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws IllegalArgumentException
+     */
+    static Study read(File file) throws IOException, ClassNotFoundException, IllegalArgumentException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+            
+            // Read header
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IllegalArgumentException("Invalid project file");
+            }
+            int numBins = input.readInt();
+            int numParticipants = input.readInt();
+            long offsetMetadata = input.readLong();
+            long offsetColumns = input.readLong();
+            
+            // Read primes
+            BigInteger[][] primes = new BigInteger[2][numParticipants];
+            byte[] value = new byte[SIZE_VALUE];
+            for (int kind = 0; kind < 2; kind++) {
+                for (int participant = 0; participant < numParticipants; participant++) {
+                    input.readFully(value);
+                    primes[kind][participant] = new BigInteger(1, value);
+                }
+            }
+            
+            // Map columns
+            StudyColumns columns = new StudyColumns(numBins, numParticipants, primes);
+            try {
+                for (int kind = 0; kind < 2; kind++) {
+                    for (int participant = 0; participant < numParticipants; participant++) {
+                        long offset = offsetColumns + (kind * numParticipants + participant) * columns.sizeColumn;
+                        columns.columns[kind][participant] = channel.map(MapMode.READ_ONLY, offset, columns.sizeColumn);
+                    }
+                }
+
+                // Read metadata and attach bins to columns
+                StudyShares shares = new StudyShares(columns);
+                channel.position(offsetMetadata);
+                ObjectInputStream stream = new ObjectInputStream(new BufferedInputStream(Channels.newInputStream(channel))) {
+                    {
+                        enableResolveObject(true);
+                    }
+
+                    @Override
+                    protected Object resolveObject(Object object) throws IOException {
+                        if (object instanceof BinReference) {
+                            return new Bin(((BinReference) object).name, shares, ((BinReference) object).index);
+                        }
+                        return object;
+                    }
+                };
+                Object object = stream.readObject();
+                if (!(object instanceof Study)) {
+                    throw new IllegalArgumentException("Invalid project file");
+                }
+                ((Study) object).setColumns(columns);
+                return (Study) object;
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                // Do not keep the file mapped
+                columns.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes a study
+     * 
+     * @param study
+     * @param file
+     * @throws IOException
+     * @throws IllegalArgumentException if a share can not be represented in the format
+     */
+    static void write(Study study, File file) throws IOException, IllegalArgumentException {
+        
+        // Prepare
+        Bin[] bins = study.getBins() != null ? study.getBins() : new Bin[0];
+        StudyShares shares = study.getShares();
+        int numParticipants = shares.getNumParticipants();
+        Map<Bin, Integer> indices = new IdentityHashMap<>();
+        for (int index = 0; index < bins.length; index++) {
+            indices.put(bins[index], index);
+        }
+        StudyColumns columns = new StudyColumns(bins.length, numParticipants, new BigInteger[2][numParticipants]);
+        
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw"); FileChannel channel = output.getChannel()) {
+            
+            // Write metadata behind header and primes
+            output.setLength(0);
+            long offsetMetadata = SIZE_HEADER + 2L * numParticipants * SIZE_VALUE;
+            channel.position(offsetMetadata);
+            OutputStream buffer = new BufferedOutputStream(Channels.newOutputStream(channel));
+            ObjectOutputStream metadata = new ObjectOutputStream(buffer) {
+                {
+                    enableReplaceObject(true);
+                }
+
+                @Override
+                protected Object replaceObject(Object object) throws IOException {
+                    if (object instanceof Bin && indices.containsKey(object)) {
+                        return new BinReference(((Bin) object).name, indices.get(object));
+                    }
+                    return object;
+                }
+            };
+            metadata.writeObject(study);
+            metadata.flush();
+            
+            // Align columns
+            long offsetColumns = (channel.position() + 7) / 8 * 8;
+            DataOutputStream data = new DataOutputStream(buffer);
+            for (long position = channel.position(); position < offsetColumns; position++) {
+                data.write(0);
+            }
+            
+            // Write columns
+            for (int kind = 0; kind < 2; kind++) {
+                for (int participant = 0; participant < numParticipants; participant++) {
+                    columns.primes[kind][participant] = writeColumn(data, shares, kind == 1, participant, columns.sizeBitmap);
+                }
+            }
+            data.flush();
+            
+            // Write header and primes
+            ByteBuffer header = ByteBuffer.allocate((int) offsetMetadata);
+            header.putInt(MAGIC).putInt(VERSION).putInt(bins.length).putInt(numParticipants).putLong(offsetMetadata).putLong(offsetColumns);
+            for (int kind = 0; kind < 2; kind++) {
+                for (int participant = 0; participant < numParticipants; participant++) {
+                    header.put(toBytes(columns.primes[kind][participant]));
+                }
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Writes a column
+     * 
+     * @param data
+     * @param shares
+     * @param out
+     * @param participant
+     * @param sizeBitmap
+     * @return the prime of the column, zero if the column is empty
+     * @throws IOException
+     */
+    private static BigInteger writeColumn(DataOutputStream data, StudyShares shares, boolean out, int participant, int sizeBitmap) throws IOException {
+        
+        // Write bitmap
+        ShareVector values = shares.getColumn(out, participant);
+        boolean[] present = shares.getPresent(out, participant);
+        boolean empty = true;
+        byte[] bitmap = new byte[sizeBitmap];
+        for (int index = 0; index < present.length; index++) {
+            if (present[index]) {
+                bitmap[index >>> 3] |= 1 << (index & 7);
+                empty = false;
+            }
+        }
+        data.write(bitmap);
+        
+        // Write values, missing shares are zero
+        for (int index = 0; index < present.length; index++) {
+            values.write(index, data);
+        }
+        
+        // Return
+        return empty ? BigInteger.ZERO : values.getPrime();
+    }
+
+    /**
+     * Converts a value to fixed-width bytes
+     * 
+     * @param value
+     * @return
+     * @throws IllegalArgumentException if the value can not be represented
+     */
+    private static byte[] toBytes(BigInteger value) throws IllegalArgumentException {
+        if (value.signum() < 0 || value.compareTo(LIMIT) >= 0) {
+            throw new IllegalArgumentException("Value can not be represented with 128 bits");
+        }
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[SIZE_VALUE];
+        int length = Math.min(bytes.length, SIZE_VALUE);
+        System.arraycopy(bytes, bytes.length - length, result, SIZE_VALUE - length, length);
+        return result;
+    }
+
+    /**
+     * Releases a mapping. Mappings are otherwise only released when garbage collected, which is not done
+     * before the file is replaced. If the mapping can not be released explicitly, it is left to the garbage collector.
+     * 
+     * @param buffer
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method method = type.getMethod("invokeCleaner", ByteBuffer.class);
+            method.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Ignore, released when garbage collected
+        }
+    }
+
+    /** Number of bins */
+    private final int                  numBins;
+    /** Primes of the in and out columns per participant */
+    private final BigInteger[][]       primes;
+    /** In and out columns per participant */
+    private final MappedByteBuffer[][] columns;
+    /** Size of the bitmap of a column in bytes */
+    private final int                  sizeBitmap;
+    /** Size of a column in bytes */
+    private final long                 sizeColumn;
+    /** Whether the mappings have been released */
+    private boolean                    closed;
+
+    /**
+     * Creates a new instance
+     * 
+     * @param numBins
+     * @param numParticipants
+     * @param primes
+     * @throws IllegalArgumentException
+     */
+    private StudyColumns(int numBins, int numParticipants, BigInteger[][] primes) throws IllegalArgumentException {
+        this.numBins = numBins;
+        this.primes = primes;
+        this.columns = new MappedByteBuffer[2][numParticipants];
+        this.sizeBitmap = (numBins + 63) / 64 * 8;
+        this.sizeColumn = sizeBitmap + (long) numBins * SIZE_VALUE;
+        if (sizeColumn > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many bins for columnar format");
+        }
+    }
+
+    /**
+     * Releases the mappings. Columns can not be loaded afterwards, the shares of the study must be loaded before.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (MappedByteBuffer[] kind : columns) {
+            for (int participant = 0; participant < kind.length; participant++) {
+                if (kind[participant] != null) {
+                    unmap(kind[participant]);
+                    kind[participant] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bins
+     */
+    int getNumBins() {
+        return numBins;
+    }
+
+    /**
+     * @return the number of participants
+     */
+    int getNumParticipants() {
+        return columns[0].length;
+    }
+
+    /**
+     * Returns which in or out shares of a participant are present
+     * 
+     * @param out
+     * @param participant
+     * @return whether the share of each bin is present
+     */
+    synchronized boolean[] getPresent(boolean out, int participant) {
+        boolean[] result = new boolean[numBins];
+        for (int index = 0; index < numBins; index++) {
+            result[index] = isPresent(out, participant, index);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the in or out shares of a participant
+     * 
+     * @param out
+     * @param participant
+     * @return the shares, zero for missing shares
+     */
+    synchronized ShareVector getValues(boolean out, int participant) {
+        BigInteger prime = primes[out ? 1 : 0][participant];
+        ShareVector result = new ShareVector(numBins, prime.signum() != 0 ? prime : ArithmeticSharing.DEFAULT_PRIME);
+        ByteBuffer column = columns[out ? 1 : 0][participant];
+        if (closed) {
+            throw new IllegalStateException("Columns have been closed");
+        }
+        for (int index = 0; index < numBins; index++) {
+            if (isPresent(out, participant, index)) {
+                result.read(index, column, sizeBitmap + index * SIZE_VALUE);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Is a share present in the columns?
+     * 
+     * @param out
+     * @param participant
+     * @param index of the bin
+     * @return
+     */
+    synchronized boolean isPresent(boolean out, int participant, int index) {
+        if (index < 0 || index >= numBins) {
+            throw new IllegalArgumentException("Invalid bin index");
+        }
+        if (closed) {
+            throw new IllegalStateException("Columns have been closed");
+        }
+        return (columns[out ? 1 : 0][participant].get(index >>> 3) & (1 << (index & 7))) != 0;
+    }
+}
@@ -0,0 +1,325 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.emailsmpc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.bihealth.mi.easysmpc.resources.Resources;
+
+/**
+ * Persists a study as a snapshot and an append-only journal of the changes made since the snapshot was written.
+ * Snapshots and fresh journals are written to a temporary file, synced and renamed atomically, so that a crash
+ * never corrupts the last complete state. Journal records are checksummed, a record torn by a crash is ignored
+ * when replaying and removed before appending.
+ * 
+ * @author agent
+ */
+class StudyJournal {
+
+    /** Magic number at the beginning of each journal */
+    private static final int  MAGIC          = 0x534d5043;
+    /** Size of the journal header */
+    static final int          SIZE_HEADER    = 12;
+    /** Size of the header of each record */
+    private static final int  SIZE_RECORD    = 8;
+    /** Record type: share or result received */
+    private static final byte TYPE_SHARE     = 1;
+    /** Record type: message sent */
+    private static final byte TYPE_SENT      = 2;
+    /** Record type: message retrieved */
+    private static final byte TYPE_RETRIEVED = 3;
+
+    /**
+     * Returns the journal belonging to a snapshot
+     * 
+     * @param snapshot
+     * @return
+     */
+    static File getJournalFile(File snapshot) {
+        return new File(snapshot.getPath() + "." + Resources.FILE_ENDING_JOURNAL);
+    }
+
+    /**
+     * Creates a record for a share or result received
+     * 
+     * @param message
+     * @return
+     * @throws IOException
+     */
+    static byte[] share(Message message) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(TYPE_SHARE);
+        Message.serializeMessage(message, stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Creates a record for a message sent
+     * 
+     * @param recipientId
+     * @return
+     */
+    static byte[] sent(int recipientId) {
+        return new byte[] { TYPE_SENT, (byte) (recipientId >>> 24), (byte) (recipientId >>> 16), (byte) (recipientId >>> 8), (byte) recipientId };
+    }
+
+    /**
+     * Creates a record for a message retrieved
+     * 
+     * @param recipientId
+     * @return
+     */
+    static byte[] retrieved(int recipientId) {
+        byte[] result = sent(recipientId);
+        result[0] = TYPE_RETRIEVED;
+        return result;
+    }
+
+    /**
+     * Writes a snapshot of the study and starts an empty journal for it
+     * 
+     * @param study
+     * @param snapshot
+     * @param generation identifies the snapshot a journal belongs to
+     * @return size of the snapshot in bytes
+     * @throws IOException
+     */
+    static long writeSnapshot(Study study, File snapshot, long generation) throws IOException {
+        
+        // Write snapshot
+        File temp = getTempFile(snapshot);
+        boolean written = false;
+        if (study.isColumnarFormat()) {
+            try {
+                StudyColumns.write(study, temp);
+                written = true;
+            } catch (IllegalArgumentException e) {
+                // Shares not representable, use serialization
+            }
+        }
+        if (!written) {
+            try (FileOutputStream file = new FileOutputStream(temp)) {
+                ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(file));
+                stream.writeObject(study);
+                stream.flush();
+                file.getFD().sync();
+            }
+        }
+        move(temp, snapshot);
+        
+        // Start journal
+        File journal = getJournalFile(snapshot);
+        temp = getTempFile(journal);
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream stream = new DataOutputStream(file);
+            stream.writeInt(MAGIC);
+            stream.writeLong(generation);
+            stream.flush();
+            file.getFD().sync();
+        }
+        move(temp, journal);
+        
+        // Return
+        return snapshot.length();
+    }
+
+    /**
+     * Appends records to the journal of a snapshot
+     * 
+     * @param snapshot
+     * @param valid size of the valid part of the journal in bytes, anything behind it is removed
+     * @param records
+     * @return size of the journal in bytes
+     * @throws IOException
+     */
+    static long append(File snapshot, long valid, List<byte[]> records) throws IOException {
+        
+        // Check
+        File journal = getJournalFile(snapshot);
+        if (!journal.exists()) {
+            throw new IOException("Journal does not exist");
+        }
+        
+        // Append
+        try (FileOutputStream file = new FileOutputStream(journal, true)) {
+            
+            // Remove torn record
+            FileChannel channel = file.getChannel();
+            if (channel.size() > valid) {
+                channel.truncate(valid);
+            }
+            
+            // Write records
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(file));
+            CRC32 checksum = new CRC32();
+            for (byte[] record : records) {
+                checksum.reset();
+                checksum.update(record);
+                stream.writeInt(record.length);
+                stream.writeInt((int) checksum.getValue());
+                stream.write(record);
+            }
+            stream.flush();
+            file.getFD().sync();
+        }
+        
+        // Return
+        return journal.length();
+    }
+
+    /**
+     * Applies the journal of a snapshot to the study loaded from it. A journal which does not belong to the snapshot
+     * is ignored, a torn record at the end of the journal is skipped. The journal is not modified.
+     * 
+     * @param study
+     * @param snapshot
+     * @param generation of the snapshot
+     * @return size of the valid part of the journal in bytes or -1 if there is no journal belonging to the snapshot
+     * @throws IOException
+     */
+    static long replay(Study study, File snapshot, long generation) throws IOException {
+        
+        // Check
+        File journal = getJournalFile(snapshot);
+        if (!journal.exists()) {
+            return -1;
+        }
+        
+        try (RandomAccessFile file = new RandomAccessFile(journal, "r")) {
+            
+            // Check header
+            if (file.length() < SIZE_HEADER || file.readInt() != MAGIC || file.readLong() != generation) {
+                return -1;
+            }
+            
+            // Loop over complete records
+            long valid = SIZE_HEADER;
+            CRC32 checksum = new CRC32();
+            while (file.length() - valid >= SIZE_RECORD) {
+                
+                // Read record
+                int length = file.readInt();
+                int expected = file.readInt();
+                if (length < 1 || length > file.length() - valid - SIZE_RECORD) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                file.readFully(record);
+                
+                // Verify
+                checksum.reset();
+                checksum.update(record);
+                if ((int) checksum.getValue() != expected) {
+                    break;
+                }
+                
+                // Apply
+                apply(study, record);
+                valid = file.getFilePointer();
+            }
+            
+            // Return
+            return valid;
+        }
+    }
+
+    /**
+     * Applies a record to the study
+     * 
+     * @param study
+     * @param record
+     * @throws IOException
+     */
+    private static void apply(Study study, byte[] record) throws IOException {
+        try {
+            switch (record[0]) {
+            case TYPE_SHARE:
+                study.setShareFromMessage(Message.deserializeMessage(new ByteArrayInputStream(record, 1, record.length - 1)));
+                break;
+            case TYPE_SENT:
+                study.markMessageSent(getRecipientId(record));
+                break;
+            case TYPE_RETRIEVED:
+                study.markMessageRetrieved(getRecipientId(record));
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + record[0]);
+            }
+        } catch (ClassNotFoundException | NoSuchAlgorithmException | IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Unable to replay journal", e);
+        }
+    }
+
+    /**
+     * Reads the recipient id from a record
+     * 
+     * @param record
+     * @return
+     */
+    private static int getRecipientId(byte[] record) {
+        return ((record[1] & 0xff) << 24) | ((record[2] & 0xff) << 16) | ((record[3] & 0xff) << 8) | (record[4] & 0xff);
+    }
+
+    /**
+     * Returns the temporary file used to replace a file
+     * 
+     * @param file
+     * @return
+     */
+    private static File getTempFile(File file) {
+        return new File(file.getPath() + "." + Resources.FILE_ENDING_TEMP);
+    }
+
+    /**
+     * Replaces the target by the source, atomically if supported by the file system. Syncs the directory
+     * afterwards, so that the rename itself survives a crash.
+     * 
+     * @param source
+     * @param target
+     * @throws IOException
+     */
+    private static void move(File source, File target) throws IOException {
+        
+        // Move
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        // Sync directory
+        File directory = target.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories can not be opened on some platforms, e.g. Windows
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.emailsmpc;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import de.tu_darmstadt.cbs.secretshare.ArithmeticShare;
+import de.tu_darmstadt.cbs.secretshare.ArithmeticSharing;
+import de.tu_darmstadt.cbs.secretshare.ShareVector;
+
+/**
+ * Shares of the bins of a study, stored in columns: one share vector per participant for the in and the out
+ * shares, indexed by bin, and flags marking which shares are present. Missing shares are stored as zero.
+ * Bins are views on one index of the columns. If the shares are read from a columnar study file, each column
+ * is loaded from the file on first access.
+ *
+ * @author agent
+ */
+class StudyShares implements Cloneable {
+
+    /**
+     * Attaches bins to the shares of a study. If the bins are already views on one set of shares in the same
+     * order, these shares are used. Otherwise the shares of the bins are copied into new columns.
+     *
+     * @param bins
+     * @param numParticipants
+     * @return the shares
+     * @throws IllegalArgumentException Number of shares of a bin not compatible with number of parties
+     */
+    static StudyShares attach(Bin[] bins, int numParticipants) throws IllegalArgumentException {
+        if (bins == null) {
+            return new StudyShares(0, numParticipants);
+        }
+
+        // Use shares if all bins are views on them
+        StudyShares shares = bins.length > 0 ? bins[0].getShares() : null;
+        boolean views = shares != null && shares.numBins == bins.length;
+        for (int index = 0; views && index < bins.length; index++) {
+            views = bins[index].isView(shares, index);
+        }
+        if (views) {
+            return shares;
+        }
+
+        // Copy otherwise
+        shares = new StudyShares(bins.length, numParticipants);
+        for (int index = 0; index < bins.length; index++) {
+            bins[index].attach(shares, index);
+        }
+        return shares;
+    }
+
+    /** Number of bins */
+    private final int                  numBins;
+    /** Number of participants */
+    private final int                  numParticipants;
+    /** In and out columns per participant, null if not loaded yet */
+    private final ShareVector[][]      values;
+    /** Whether the shares of the in and out columns are present, null if not loaded yet */
+    private final boolean[][][]        present;
+    /** File the columns are loaded from, null if all columns are loaded */
+    private volatile StudyColumns      columns;
+
+    /**
+     * Creates a new instance without shares
+     *
+     * @param numBins
+     * @param numParticipants
+     */
+    StudyShares(int numBins, int numParticipants) {
+        this(numBins, numParticipants, null);
+        for (int kind = 0; kind < 2; kind++) {
+            for (int participant = 0; participant < numParticipants; participant++) {
+                values[kind][participant] = new ShareVector(numBins, ArithmeticSharing.DEFAULT_PRIME);
+                present[kind][participant] = new boolean[numBins];
+            }
+        }
+    }
+
+    /**
+     * Creates a new instance loading the columns from a columnar study file on first access
+     *
+     * @param columns
+     */
+    StudyShares(StudyColumns columns) {
+        this(columns.getNumBins(), columns.getNumParticipants(), columns);
+    }
+
+    /**
+     * Creates a new instance without allocating columns
+     *
+     * @param numBins
+     * @param numParticipants
+     * @param columns
+     */
+    private StudyShares(int numBins, int numParticipants, StudyColumns columns) {
+        this.numBins = numBins;
+        this.numParticipants = numParticipants;
+        this.values = new ShareVector[2][numParticipants];
+        this.present = new boolean[2][numParticipants][];
+        this.columns = columns;
+    }
+
+    /**
+     * Removes all shares
+     */
+    void clear() {
+        for (int participant = 0; participant < numParticipants; participant++) {
+            clear(false, participant);
+            clear(true, participant);
+        }
+    }
+
+    /**
+     * Removes all in or out shares of a participant
+     *
+     * @param out
+     * @param participant
+     */
+    void clear(boolean out, int participant) {
+        getColumn(out, participant).clear();
+        Arrays.fill(getPresent(out, participant), false);
+    }
+
+    /**
+     * Removes all in or out shares except the ones of a participant
+     *
+     * @param out
+     * @param participant
+     */
+    void clearExcept(boolean out, int participant) {
+        for (int other = 0; other < numParticipants; other++) {
+            if (other != participant) {
+                clear(out, other);
+            }
+        }
+    }
+
+    /**
+     * Creates a copy, loading all columns
+     *
+     * @return the copy
+     */
+    @Override
+    public Object clone() {
+        load();
+        StudyShares result = new StudyShares(numBins, numParticipants, null);
+        for (int kind = 0; kind < 2; kind++) {
+            for (int participant = 0; participant < numParticipants; participant++) {
+                result.values[kind][participant] = (ShareVector) values[kind][participant].clone();
+                result.present[kind][participant] = present[kind][participant].clone();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the shares of a bin
+     *
+     * @param index of the bin
+     * @param source
+     * @param sourceIndex index of the bin in the source
+     * @throws IllegalArgumentException Number of shares not compatible with number of parties or incompatible primes
+     */
+    void copy(int index, StudyShares source, int sourceIndex) throws IllegalArgumentException {
+        if (source.numParticipants != numParticipants) {
+            throw new IllegalArgumentException("Number of shares not compatible with number of parties");
+        }
+        for (int kind = 0; kind < 2; kind++) {
+            for (int participant = 0; participant < numParticipants; participant++) {
+                if (source.isPresent(kind == 1, participant, sourceIndex)) {
+                    setShare(kind == 1, participant, index, source.getColumn(kind == 1, participant), sourceIndex);
+                } else {
+                    setShare(kind == 1, participant, index, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the in or out shares of a participant. The vector is not copied and must not be modified.
+     *
+     * @param out
+     * @param participant
+     * @return the shares, zero for missing shares
+     */
+    ShareVector getColumn(boolean out, int participant) {
+        load(out ? 1 : 0, participant);
+        return values[out ? 1 : 0][participant];
+    }
+
+    /**
+     * Returns the in or out shares of all participants. The vectors are not copied and must not be modified.
+     *
+     * @param out
+     * @return the shares, zero for missing shares
+     */
+    ShareVector[] getColumns(boolean out) {
+        ShareVector[] result = new ShareVector[numParticipants];
+        for (int participant = 0; participant < numParticipants; participant++) {
+            result[participant] = getColumn(out, participant);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the participants with an in or out share in a bin
+     *
+     * @param out
+     * @param index of the bin
+     * @return the participants
+     */
+    int[] getFilledIndices(boolean out, int index) {
+        int size = 0;
+        for (int participant = 0; participant < numParticipants; participant++) {
+            if (isPresent(out, participant, index)) {
+                size++;
+            }
+        }
+        int[] result = new int[size];
+        for (int participant = 0, i = 0; participant < numParticipants; participant++) {
+            if (isPresent(out, participant, index)) {
+                result[i++] = participant;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bins
+     */
+    int getNumBins() {
+        return numBins;
+    }
+
+    /**
+     * @return the number of participants
+     */
+    int getNumParticipants() {
+        return numParticipants;
+    }
+
+    /**
+     * Returns which in or out shares of a participant are present. The array is not copied and must not be modified.
+     *
+     * @param out
+     * @param participant
+     * @return whether the share of each bin is present
+     */
+    boolean[] getPresent(boolean out, int participant) {
+        load(out ? 1 : 0, participant);
+        return present[out ? 1 : 0][participant];
+    }
+
+    /**
+     * Returns an in or out share
+     *
+     * @param out
+     * @param participant
+     * @param index of the bin
+     * @return the share or null if not present
+     */
+    ArithmeticShare getShare(boolean out, int participant, int index) {
+        return isPresent(out, participant, index) ? getColumn(out, participant).get(index) : null;
+    }
+
+    /**
+     * Returns the sum of the in shares of all participants in a bin
+     *
+     * @param index of the bin
+     * @return the sum
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    BigInteger getSum(int index) throws IllegalArgumentException {
+        return ShareVector.getSum(getColumns(false), index);
+    }
+
+    /**
+     * Are the in or out shares of a participant present in all bins?
+     *
+     * @param out
+     * @param participant
+     * @return
+     */
+    boolean isComplete(boolean out, int participant) {
+        for (boolean value : getPresent(out, participant)) {
+            if (!value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Are the in shares of all participants present in a bin?
+     *
+     * @param index of the bin
+     * @return
+     */
+    boolean isComplete(int index) {
+        for (int participant = 0; participant < numParticipants; participant++) {
+            if (!isPresent(false, participant, index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Is an in or out share present?
+     *
+     * @param out
+     * @param participant
+     * @param index of the bin
+     * @return
+     */
+    boolean isPresent(boolean out, int participant, int index) {
+        return getPresent(out, participant)[index];
+    }
+
+    /**
+     * Loads all columns not loaded yet
+     */
+    void load() {
+        for (int kind = 0; kind < 2; kind++) {
+            for (int participant = 0; participant < numParticipants; participant++) {
+                load(kind, participant);
+            }
+        }
+    }
+
+    /**
+     * Sets the in or out shares of a participant in all bins. The vector is not copied.
+     *
+     * @param out
+     * @param participant
+     * @param shares
+     * @throws IllegalArgumentException Incompatible size
+     */
+    void setColumn(boolean out, int participant, ShareVector shares) throws IllegalArgumentException {
+        if (shares.size() != numBins) {
+            throw new IllegalArgumentException("Number of shares not equal number of bins");
+        }
+        load(out ? 1 : 0, participant);
+        values[out ? 1 : 0][participant] = shares;
+        Arrays.fill(present[out ? 1 : 0][participant], true);
+    }
+
+    /**
+     * Sets or removes an in or out share
+     *
+     * @param out
+     * @param participant
+     * @param index of the bin
+     * @param share the share, null to remove
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    void setShare(boolean out, int participant, int index, ArithmeticShare share) throws IllegalArgumentException {
+        if (share != null) {
+            getColumn(out, participant, share.prime).set(index, share);
+            getPresent(out, participant)[index] = true;
+        } else {
+            getColumn(out, participant).set(index, BigInteger.ZERO);
+            getPresent(out, participant)[index] = false;
+        }
+    }
+
+    /**
+     * Sets an in or out share to a share of another vector
+     *
+     * @param out
+     * @param participant
+     * @param index of the bin
+     * @param other
+     * @param otherIndex
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    void setShare(boolean out, int participant, int index, ShareVector other, int otherIndex) throws IllegalArgumentException {
+        getColumn(out, participant, other.getPrime()).set(index, other, otherIndex);
+        getPresent(out, participant)[index] = true;
+    }
+
+    /**
+     * Sets the shares of a bin from arrays of shares
+     *
+     * @param index of the bin
+     * @param in the in shares, null for missing shares
+     * @param out the out shares, null for missing shares
+     * @throws IllegalArgumentException Number of shares not compatible with number of parties or incompatible primes
+     */
+    void setShares(int index, ArithmeticShare[] in, ArithmeticShare[] out) throws IllegalArgumentException {
+        if (in.length != numParticipants || out.length != numParticipants) {
+            throw new IllegalArgumentException("Number of shares not compatible with number of parties");
+        }
+        for (int participant = 0; participant < numParticipants; participant++) {
+            setShare(false, participant, index, in[participant]);
+            setShare(true, participant, index, out[participant]);
+        }
+    }
+
+    /**
+     * Moves the out shares of a participant in all bins to its in shares
+     *
+     * @param participant
+     */
+    void transfer(int participant) {
+        load(0, participant);
+        load(1, participant);
+        ShareVector values = this.values[0][participant];
+        boolean[] present = this.present[0][participant];
+        this.values[0][participant] = this.values[1][participant];
+        this.present[0][participant] = this.present[1][participant];
+        this.values[1][participant] = values;
+        this.present[1][participant] = present;
+        clear(true, participant);
+    }
+
+    /**
+     * Moves the out share of a participant in a bin to its in share
+     *
+     * @param participant
+     * @param index of the bin
+     */
+    void transfer(int participant, int index) {
+        if (isPresent(true, participant, index)) {
+            setShare(false, participant, index, getColumn(true, participant), index);
+        } else {
+            setShare(false, participant, index, null);
+        }
+        setShare(true, participant, index, null);
+    }
+
+    /**
+     * Returns a column to store shares with the given prime. A column without shares is replaced if it uses
+     * another prime.
+     *
+     * @param out
+     * @param participant
+     * @param prime
+     * @return the column
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    private ShareVector getColumn(boolean out, int participant, BigInteger prime) throws IllegalArgumentException {
+        ShareVector result = getColumn(out, participant);
+        if (!result.getPrime().equals(prime)) {
+            for (boolean value : getPresent(out, participant)) {
+                if (value) {
+                    throw new IllegalArgumentException("Incompatible primes found!");
+                }
+            }
+            result = new ShareVector(numBins, prime);
+            values[out ? 1 : 0][participant] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Loads a column from the file if not loaded yet
+     *
+     * @param kind zero for in, one for out
+     * @param participant
+     */
+    private void load(int kind, int participant) {
+        if (columns != null) {
+            synchronized (this) {
+                StudyColumns columns = this.columns;
+                if (columns != null && values[kind][participant] == null) {
+                    values[kind][participant] = columns.getValues(kind == 1, participant);
+                    present[kind][participant] = columns.getPresent(kind == 1, participant);
+
+                    // Do not access the file anymore if all columns are loaded
+                    boolean loaded = true;
+                    for (int i = 0; i < 2 && loaded; i++) {
+                        for (int j = 0; j < numParticipants && loaded; j++) {
+                            loaded = values[i][j] != null;
+                        }
+                    }
+                    if (loaded) {
+                        this.columns = null;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -24,6 +24,9 @@ import java.security.SecureRandom;
  */
 public class ArithmeticSharing {
     
+    /** Default prime: the Mersenne prime 2^127-1 */
+    public static final BigInteger DEFAULT_PRIME = BigInteger.valueOf(2).pow(127).subtract(BigInteger.ONE);
+    
     /**
      * Convert a BigDecimal to a fixed point representation
      * @param value Value as (unscaled) BigDecimal
@@ -46,8 +49,11 @@ public class ArithmeticSharing {
      * @throws IllegalArgumentException Incompatible primes
      */
     public static BigInteger reconstruct(ArithmeticShare[] shares) throws IllegalArgumentException {
-        BigInteger reconstruction = BigInteger.ZERO;
         BigInteger first_prime = shares[0].prime;
+        if (Mersenne127.isMersenne127(first_prime) && isCanonical(shares)) {
+            return reconstructMersenne127(shares);
+        }
+        BigInteger reconstruction = BigInteger.ZERO;
         for (int i = 0; i != shares.length; i++) {
             if (!(shares[i].prime.equals(first_prime))) {
                 throw new IllegalArgumentException("Incompatible primes found!");
@@ -85,7 +91,7 @@ public class ArithmeticSharing {
     }
     
     /** Prime*/
-    private BigInteger prime = BigInteger.valueOf(2).pow(127).subtract(BigInteger.ONE);
+    private BigInteger prime = DEFAULT_PRIME;
 
     /** Number of parties*/
     private int numParties;
@@ -126,6 +132,9 @@ public class ArithmeticSharing {
      * @return Array of arithmetic shares
      */
     public ArithmeticShare[] share(BigInteger secret) {
+        if (Mersenne127.isMersenne127(prime) && Mersenne127.isCanonical(secret)) {
+            return shareMersenne127(secret);
+        }
         BigInteger[] shares = new BigInteger[numParties];
         shares[numParties - 1] = secret;
         for (int i = 0; i != numParties - 1; i++) {
@@ -139,6 +148,61 @@ public class ArithmeticSharing {
         return result;
     }
 
+    /**
+     * Share several secrets at once. Randomness is drawn in large blocks from the
+     * random number generator of this instance and all shares are filled in one pass.
+     * @param secrets Secret BigDecimal values to share
+     * @param fractionalBits number of bits for fixed point scaling. Must be positive
+     * @return Array of arithmetic shares for each secret
+     * @throws IllegalArgumentException Negative fractionalBits
+     */
+    public ArithmeticShare[][] shareAll(BigDecimal[] secrets, int fractionalBits) throws IllegalArgumentException {
+      BigInteger[] fixedPoint = new BigInteger[secrets.length];
+      for (int i = 0; i < secrets.length; i++) {
+        fixedPoint[i] = ArithmeticSharing.convertToFixedPoint(secrets[i], fractionalBits);
+      }
+      return shareAll(fixedPoint);
+    }
+
+    /**
+     * Share several secrets at once. Randomness is drawn in large blocks from the
+     * random number generator of this instance and all shares are filled in one pass.
+     * Primes with more than 128 bits are shared one secret at a time.
+     * @param secrets BigInteger secret values to share
+     * @return Array of arithmetic shares for each secret
+     */
+    public ArithmeticShare[][] shareAll(BigInteger[] secrets) {
+        ArithmeticShare[][] result = new ArithmeticShare[secrets.length][];
+        if (prime.bitLength() > 128) {
+            for (int i = 0; i != secrets.length; i++) {
+                result[i] = share(secrets[i]);
+            }
+            return result;
+        }
+        ShareVector[] vectors = shareVectors(secrets);
+        for (int i = 0; i != secrets.length; i++) {
+            result[i] = new ArithmeticShare[numParties];
+        }
+        for (int party = 0; party != numParties; party++) {
+            for (int i = 0; i != secrets.length; i++) {
+                result[i][party] = vectors[party].get(i);
+            }
+            vectors[party] = null;
+        }
+        return result;
+    }
+
+    /**
+     * Share several secrets at once into one share vector per party. Randomness is drawn
+     * in large blocks from the random number generator of this instance.
+     * @param secrets BigInteger secret values to share
+     * @return Array of share vectors for each party
+     * @throws IllegalArgumentException Prime not smaller than 2^128
+     */
+    public ShareVector[] shareVectors(BigInteger[] secrets) throws IllegalArgumentException {
+        return ShareVector.share(secrets, numParties, prime, new BlockRandom(randomGenerator, BlockRandom.DEFAULT_BLOCK_SIZE));
+    }
+
     /**
      * Share a secret
      * @param secret Secret double value to share
@@ -169,11 +233,67 @@ public class ArithmeticSharing {
       if (bitlength < 2)
         throw new IllegalArgumentException("Bitlength must be larger than 2");
       BigInteger value = new BigInteger(bitlength-1, randomGenerator);
-      byte[] randomByte = new byte[1];
-      randomGenerator.nextBytes(randomByte);
-      int signum = Byte.valueOf(randomByte[0]).intValue() & 0x01;
-      if (signum == 1)
+      if (randomGenerator.nextBoolean())
         value = value.negate();
       return value;
     }
+
+    /**
+     * Share a canonical secret modulo 2^127-1 on 64-bit limbs
+     * @param secret BigInteger secret value to share
+     * @return Array of arithmetic shares
+     */
+    private ArithmeticShare[] shareMersenne127(BigInteger secret) {
+        long[] high = new long[numParties];
+        long[] low = new long[numParties];
+        int last = numParties - 1;
+        high[last] = Mersenne127.toHigh(secret);
+        low[last] = Mersenne127.toLow(secret);
+        for (int i = 0; i != last; i++) {
+            Mersenne127.random(randomGenerator, high, low, i);
+            Mersenne127.add(high[last], low[last], Mersenne127.negateHigh(high[i]), Mersenne127.negateLow(low[i]), high, low, last);
+        }
+        ArithmeticShare[] result = new ArithmeticShare[numParties];
+        for (int i = 0; i != numParties; i++) {
+            result[i] = new ArithmeticShare(Mersenne127.toBigInteger(high[i], low[i]), prime);
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether all shares are in canonical form modulo 2^127-1
+     * @param shares Array of arithmetic shares
+     * @return
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    private static boolean isCanonical(ArithmeticShare[] shares) throws IllegalArgumentException {
+        for (int i = 0; i != shares.length; i++) {
+            if (!Mersenne127.isMersenne127(shares[i].prime)) {
+                throw new IllegalArgumentException("Incompatible primes found!");
+            }
+            if (!Mersenne127.isCanonical(shares[i].value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reconstruct secret from canonical shares modulo 2^127-1 on 64-bit limbs
+     * @param shares Array of all arithmetic shares
+     * @return Clear text BigInteger
+     */
+    private static BigInteger reconstructMersenne127(ArithmeticShare[] shares) {
+        long high = 0L;
+        long low = 0L;
+        for (int i = 0; i != shares.length; i++) {
+            BigInteger value = shares[i].value;
+            long valueHigh = Mersenne127.toHigh(value);
+            long valueLow = Mersenne127.toLow(value);
+            long sumHigh = Mersenne127.addHigh(high, low, valueHigh, valueLow);
+            low = Mersenne127.addLow(high, low, valueHigh, valueLow);
+            high = sumHigh;
+        }
+        return Mersenne127.toBigInteger(high, low);
+    }
 }
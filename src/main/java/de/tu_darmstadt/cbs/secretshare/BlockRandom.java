@@ -0,0 +1,95 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.secretshare;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * A source of randomness that draws bytes from a cryptographically secure
+ * random number generator in large blocks and serves them from a buffer.
+ * This avoids one call into the generator per random value.
+ * Instances are not thread-safe.
+ * 
+ * @author agent
+ */
+class BlockRandom extends Random {
+
+    /** SVUID */
+    private static final long  serialVersionUID   = 1830478296451025046L;
+
+    /** Default size of blocks in bytes */
+    static final int           DEFAULT_BLOCK_SIZE = 8192;
+
+    /** Generator */
+    private final SecureRandom generator;
+
+    /** Buffer */
+    private final ByteBuffer   buffer;
+
+    /**
+     * Creates a new instance
+     * 
+     * @param generator
+     * @param blockSize in bytes, must be a positive multiple of 8
+     */
+    BlockRandom(SecureRandom generator, int blockSize) {
+        if (blockSize <= 0 || blockSize % 8 != 0) {
+            throw new IllegalArgumentException("Block size must be a positive multiple of 8");
+        }
+        this.generator = generator;
+        this.buffer = ByteBuffer.allocate(blockSize);
+        this.buffer.position(blockSize);
+    }
+
+    @Override
+    public long nextLong() {
+        if (buffer.remaining() < Long.BYTES) {
+            refill();
+        }
+        return buffer.getLong();
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (!buffer.hasRemaining()) {
+                refill();
+            }
+            bytes[i] = buffer.get();
+        }
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        // Seeding is left to the underlying generator
+    }
+
+    @Override
+    protected int next(int bits) {
+        if (buffer.remaining() < Integer.BYTES) {
+            refill();
+        }
+        return buffer.getInt() >>> (32 - bits);
+    }
+
+    /**
+     * Draws the next block from the generator
+     */
+    private void refill() {
+        generator.nextBytes(buffer.array());
+        buffer.clear();
+    }
+}
@@ -0,0 +1,207 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.secretshare;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * This class implements arithmetic modulo the Mersenne prime 2^127-1 on pairs of 64-bit limbs.
+ * Reduction is performed by shift-and-add. Arithmetic on limbs does not allocate, only the
+ * conversion from and to BigInteger does. All values are expected to be in canonical form,
+ * i.e. in the range [0, 2^127-1).
+ * 
+ * @author agent
+ */
+class Mersenne127 {
+
+    /** Upper 64 bits of the prime */
+    static final long PRIME_HIGH = 0x7FFFFFFFFFFFFFFFL;
+
+    /** Lower 64 bits of the prime */
+    static final long PRIME_LOW  = 0xFFFFFFFFFFFFFFFFL;
+
+    /**
+     * Adds two canonical values modulo 2^127-1 and stores the result at the given index
+     * 
+     * @param aHigh
+     * @param aLow
+     * @param bHigh
+     * @param bLow
+     * @param targetHigh
+     * @param targetLow
+     * @param index
+     */
+    static void add(long aHigh, long aLow, long bHigh, long bLow, long[] targetHigh, long[] targetLow, int index) {
+        targetHigh[index] = addHigh(aHigh, aLow, bHigh, bLow);
+        targetLow[index] = addLow(aHigh, aLow, bHigh, bLow);
+    }
+
+    /**
+     * Adds two canonical values modulo 2^127-1 and returns the upper limb of the result
+     * 
+     * @param aHigh
+     * @param aLow
+     * @param bHigh
+     * @param bLow
+     * @return
+     */
+    static long addHigh(long aHigh, long aLow, long bHigh, long bLow) {
+        
+        // Sum has at most 128 bits, as both values have at most 127 bits
+        long low = aLow + bLow;
+        long high = aHigh + bHigh + (Long.compareUnsigned(low, aLow) < 0 ? 1L : 0L);
+        
+        // Reduce: x = (x mod 2^127) + (x >> 127)
+        long carry = high >>> 63;
+        high &= PRIME_HIGH;
+        low += carry;
+        if (carry == 1L && low == 0L) {
+            high++;
+        }
+        
+        // Final subtraction if x == p
+        return high == PRIME_HIGH && low == PRIME_LOW ? 0L : high;
+    }
+
+    /**
+     * Adds two canonical values modulo 2^127-1 and returns the lower limb of the result
+     * 
+     * @param aHigh
+     * @param aLow
+     * @param bHigh
+     * @param bLow
+     * @return
+     */
+    static long addLow(long aHigh, long aLow, long bHigh, long bLow) {
+        
+        // Sum has at most 128 bits, as both values have at most 127 bits
+        long low = aLow + bLow;
+        long high = aHigh + bHigh + (Long.compareUnsigned(low, aLow) < 0 ? 1L : 0L);
+        
+        // Reduce: x = (x mod 2^127) + (x >> 127)
+        long carry = high >>> 63;
+        low += carry;
+        
+        // Final subtraction if x == p, which requires the lower 127 bits to be all ones
+        return (high & PRIME_HIGH) == PRIME_HIGH && low == PRIME_LOW ? 0L : low;
+    }
+
+    /**
+     * Returns whether the given value is in canonical form
+     * 
+     * @param value
+     * @return
+     */
+    static boolean isCanonical(BigInteger value) {
+        return value.signum() >= 0 && value.bitLength() <= 127 && !value.equals(ArithmeticSharing.DEFAULT_PRIME);
+    }
+
+    /**
+     * Returns whether the given prime is the Mersenne prime 2^127-1
+     * 
+     * @param prime
+     * @return
+     */
+    static boolean isMersenne127(BigInteger prime) {
+        return prime.bitLength() == 127 && prime.equals(ArithmeticSharing.DEFAULT_PRIME);
+    }
+
+    /**
+     * Negates a canonical value modulo 2^127-1 and returns the upper limb.
+     * The lower limb is ~low.
+     * 
+     * @param high
+     * @return
+     */
+    static long negateHigh(long high) {
+        return ~high & PRIME_HIGH;
+    }
+
+    /**
+     * Negates a canonical value modulo 2^127-1 and returns the lower limb.
+     * The upper limb is given by negateHigh().
+     * 
+     * @param low
+     * @return
+     */
+    static long negateLow(long low) {
+        return ~low;
+    }
+
+    /**
+     * Draws a uniformly distributed canonical value
+     * 
+     * @param random
+     * @param targetHigh
+     * @param targetLow
+     * @param index
+     */
+    static void random(Random random, long[] targetHigh, long[] targetLow, int index) {
+        long high, low;
+        do {
+            high = random.nextLong() >>> 1;
+            low = random.nextLong();
+        } while (high == PRIME_HIGH && low == PRIME_LOW);
+        targetHigh[index] = high;
+        targetLow[index] = low;
+    }
+
+    /**
+     * Converts limbs to a BigInteger. This allocates the result.
+     * 
+     * @param high
+     * @param low
+     * @return
+     */
+    static BigInteger toBigInteger(long high, long low) {
+        if (high == 0L && low >= 0L) {
+            return BigInteger.valueOf(low);
+        }
+        byte[] bytes = new byte[17];
+        for (int i = 0; i < 8; i++) {
+            bytes[8 - i] = (byte) (high >>> (8 * i));
+            bytes[16 - i] = (byte) (low >>> (8 * i));
+        }
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Returns the upper limb of a non-negative value with at most 128 bits.
+     * For values with more than 64 bits this allocates an intermediate BigInteger.
+     * 
+     * @param value
+     * @return
+     */
+    static long toHigh(BigInteger value) {
+        return value.bitLength() <= 64 ? 0L : value.shiftRight(64).longValue();
+    }
+
+    /**
+     * Returns the lower limb of a non-negative value with at most 128 bits
+     * 
+     * @param value
+     * @return
+     */
+    static long toLow(BigInteger value) {
+        return value.longValue();
+    }
+
+    /**
+     * No instances
+     */
+    private Mersenne127() {
+        // Empty by design
+    }
+}
@@ -0,0 +1,587 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.secretshare;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class implements a columnar vector of arithmetic shares, e.g. all shares of one participant
+ * over all bins of a study. Values are stored as packed 128-bit limbs in canonical form,
+ * i.e. in the range [0, prime), and the prime is held only once.
+ *
+ * @author agent
+ */
+public class ShareVector implements Serializable, Cloneable {
+
+    /** SVUID */
+    private static final long serialVersionUID = -2315498474360184717L;
+
+    /**
+     * Reconstruct secrets from share vectors
+     *
+     * @param shares Share vectors of all parties
+     * @return Clear text BigIntegers
+     * @throws IllegalArgumentException Incompatible primes or sizes
+     */
+    public static BigInteger[] reconstruct(ShareVector[] shares) throws IllegalArgumentException {
+        ShareVector sum = sum(shares);
+        BigInteger[] result = new BigInteger[sum.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sum.getValue(i);
+        }
+        return result;
+    }
+
+    /**
+     * Reconstruct secrets from share vectors
+     *
+     * @param shares Share vectors of all parties (containing decimal values)
+     * @param fractionalBits Number of bits for fractional part during construction of shares
+     * @return Clear text BigDecimals
+     * @throws IllegalArgumentException Incompatible primes or sizes
+     */
+    public static BigDecimal[] reconstruct(ShareVector[] shares, int fractionalBits) throws IllegalArgumentException {
+        final BigDecimal scaleFactor = BigDecimal.valueOf(2).pow(fractionalBits);
+        BigInteger[] values = reconstruct(shares);
+        BigDecimal[] result = new BigDecimal[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = new BigDecimal(values[i]).divide(scaleFactor);
+        }
+        return result;
+    }
+
+    /**
+     * Reconstruct secrets from share vectors
+     *
+     * @param shares Share vectors of all parties (containing decimal values)
+     * @param fractionalBits Number of bits for fractional part during construction of shares
+     * @param roundingMode Rounding mode for final rescaling
+     * @return Clear text BigDecimals
+     * @throws IllegalArgumentException Incompatible primes or sizes
+     */
+    public static BigDecimal[] reconstruct(ShareVector[] shares, int fractionalBits, RoundingMode roundingMode) throws IllegalArgumentException {
+        final BigDecimal scaleFactor = BigDecimal.valueOf(2).pow(fractionalBits);
+        BigInteger[] values = reconstruct(shares);
+        BigDecimal[] result = new BigDecimal[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = new BigDecimal(values[i]).divide(scaleFactor, roundingMode);
+        }
+        return result;
+    }
+
+    /**
+     * Share a vector of secrets
+     *
+     * @param secrets Secret values
+     * @param numParties Number of parties
+     * @param prime Prime, must be smaller than 2^128
+     * @param random Source of randomness, should be cryptographically secure
+     * @return One share vector per party
+     * @throws IllegalArgumentException Invalid prime or number of parties
+     */
+    public static ShareVector[] share(BigInteger[] secrets, int numParties, BigInteger prime, Random random) throws IllegalArgumentException {
+        if (numParties < 1)
+            throw new IllegalArgumentException("Number of parties must be positive");
+        ShareVector[] result = new ShareVector[numParties];
+        for (int party = 0; party < numParties; party++) {
+            result[party] = new ShareVector(secrets.length, prime);
+        }
+        ShareVector last = result[numParties - 1];
+        for (int i = 0; i < secrets.length; i++) {
+            last.set(i, secrets[i]);
+        }
+        for (int party = 0; party < numParties - 1; party++) {
+            ShareVector vector = result[party];
+            for (int i = 0; i < secrets.length; i++) {
+                vector.setRandom(i, random);
+                last.subtractAt(i, vector.high[i], vector.low[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sum of the shares at an index of several share vectors modulo prime
+     *
+     * @param shares
+     * @param index
+     * @return the sum
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    public static BigInteger getSum(ShareVector[] shares, int index) throws IllegalArgumentException {
+        if (shares.length == 0)
+            throw new IllegalArgumentException("No shares provided");
+        ShareVector first = shares[0];
+        long sumHigh = 0L;
+        long sumLow = 0L;
+        for (ShareVector vector : shares) {
+            if (!first.prime.equals(vector.prime))
+                throw new IllegalArgumentException("Incompatible primes found!");
+            long resultHigh;
+            if (first.mersenne) {
+                resultHigh = Mersenne127.addHigh(sumHigh, sumLow, vector.high[index], vector.low[index]);
+                sumLow = Mersenne127.addLow(sumHigh, sumLow, vector.high[index], vector.low[index]);
+            } else {
+                resultHigh = addModuloHigh(sumHigh, sumLow, vector.high[index], vector.low[index], first.primeHigh, first.primeLow);
+                sumLow = addModuloLow(sumHigh, sumLow, vector.high[index], vector.low[index], first.primeHigh, first.primeLow);
+            }
+            sumHigh = resultHigh;
+        }
+        return Mersenne127.toBigInteger(sumHigh, sumLow);
+    }
+
+    /**
+     * Sum of share vectors
+     *
+     * @param shares
+     * @return Sum
+     * @throws IllegalArgumentException Incompatible primes or sizes
+     */
+    public static ShareVector sum(ShareVector[] shares) throws IllegalArgumentException {
+        if (shares.length == 0)
+            throw new IllegalArgumentException("No shares provided");
+        ShareVector sum = (ShareVector) shares[0].clone();
+        for (int i = 1; i < shares.length; i++) {
+            sum.addInPlace(shares[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Adds two unsigned 128-bit values and reduces modulo prime
+     *
+     * @param high
+     * @param low
+     * @param otherHigh
+     * @param otherLow
+     * @param primeHigh
+     * @param primeLow
+     * @param targetHigh
+     * @param targetLow
+     * @param index
+     */
+    private static void addModulo(long high, long low, long otherHigh, long otherLow, long primeHigh, long primeLow, long[] targetHigh, long[] targetLow, int index) {
+        targetHigh[index] = addModuloHigh(high, low, otherHigh, otherLow, primeHigh, primeLow);
+        targetLow[index] = addModuloLow(high, low, otherHigh, otherLow, primeHigh, primeLow);
+    }
+
+    /**
+     * Adds two unsigned 128-bit values, reduces modulo prime and returns the upper limb
+     *
+     * @param high
+     * @param low
+     * @param otherHigh
+     * @param otherLow
+     * @param primeHigh
+     * @param primeLow
+     * @return
+     */
+    private static long addModuloHigh(long high, long low, long otherHigh, long otherLow, long primeHigh, long primeLow) {
+        long sumLow = low + otherLow;
+        long carry = Long.compareUnsigned(sumLow, low) < 0 ? 1L : 0L;
+        long partialHigh = high + otherHigh;
+        long sumHigh = partialHigh + carry;
+        boolean overflow = Long.compareUnsigned(partialHigh, high) < 0 || Long.compareUnsigned(sumHigh, partialHigh) < 0;
+        if (overflow || compareUnsigned(sumHigh, sumLow, primeHigh, primeLow) >= 0) {
+            long borrow = Long.compareUnsigned(sumLow, primeLow) < 0 ? 1L : 0L;
+            return sumHigh - primeHigh - borrow;
+        }
+        return sumHigh;
+    }
+
+    /**
+     * Adds two unsigned 128-bit values, reduces modulo prime and returns the lower limb
+     *
+     * @param high
+     * @param low
+     * @param otherHigh
+     * @param otherLow
+     * @param primeHigh
+     * @param primeLow
+     * @return
+     */
+    private static long addModuloLow(long high, long low, long otherHigh, long otherLow, long primeHigh, long primeLow) {
+        long sumLow = low + otherLow;
+        long carry = Long.compareUnsigned(sumLow, low) < 0 ? 1L : 0L;
+        long partialHigh = high + otherHigh;
+        long sumHigh = partialHigh + carry;
+        boolean overflow = Long.compareUnsigned(partialHigh, high) < 0 || Long.compareUnsigned(sumHigh, partialHigh) < 0;
+        if (overflow || compareUnsigned(sumHigh, sumLow, primeHigh, primeLow) >= 0) {
+            return sumLow - primeLow;
+        }
+        return sumLow;
+    }
+
+    /**
+     * Compares two unsigned 128-bit values
+     *
+     * @param high
+     * @param low
+     * @param otherHigh
+     * @param otherLow
+     * @return
+     */
+    private static int compareUnsigned(long high, long low, long otherHigh, long otherLow) {
+        int result = Long.compareUnsigned(high, otherHigh);
+        return result != 0 ? result : Long.compareUnsigned(low, otherLow);
+    }
+
+    /** Prime */
+    private final BigInteger prime;
+
+    /** Upper 64 bits of the prime */
+    private final long       primeHigh;
+
+    /** Lower 64 bits of the prime */
+    private final long       primeLow;
+
+    /** Upper 64 bits of the values */
+    private final long[]     high;
+
+    /** Lower 64 bits of the values */
+    private final long[]     low;
+
+    /** Whether the prime is 2^127-1 */
+    private final boolean    mersenne;
+
+    /**
+     * Creates a new instance with all shares set to zero
+     *
+     * @param size
+     * @param prime Prime, must be smaller than 2^128
+     * @throws IllegalArgumentException Invalid prime
+     */
+    public ShareVector(int size, BigInteger prime) throws IllegalArgumentException {
+        if (prime.signum() <= 0 || prime.bitLength() > 128)
+            throw new IllegalArgumentException("Prime must be positive and smaller than 2^128");
+        this.prime = prime;
+        this.primeHigh = Mersenne127.toHigh(prime);
+        this.primeLow = Mersenne127.toLow(prime);
+        this.high = new long[size];
+        this.low = new long[size];
+        this.mersenne = Mersenne127.isMersenne127(prime);
+    }
+
+    /**
+     * Creates a new instance from arithmetic shares
+     *
+     * @param shares
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    public ShareVector(ArithmeticShare[] shares) throws IllegalArgumentException {
+        this(shares.length, shares.length == 0 ? ArithmeticSharing.DEFAULT_PRIME : shares[0].prime);
+        for (int i = 0; i < shares.length; i++) {
+            set(i, shares[i]);
+        }
+    }
+
+    /**
+     * Creates a copy of another share vector
+     *
+     * @param other
+     */
+    private ShareVector(ShareVector other) {
+        this.prime = other.prime;
+        this.primeHigh = other.primeHigh;
+        this.primeLow = other.primeLow;
+        this.high = other.high.clone();
+        this.low = other.low.clone();
+        this.mersenne = other.mersenne;
+    }
+
+    /**
+     * Adds another share vector element-wise
+     *
+     * @param other
+     * @return Sum as new share vector
+     * @throws IllegalArgumentException Incompatible primes or sizes
+     */
+    public ShareVector add(ShareVector other) throws IllegalArgumentException {
+        ShareVector result = new ShareVector(this);
+        result.addInPlace(other);
+        return result;
+    }
+
+    /**
+     * Adds another share vector element-wise to this vector
+     *
+     * @param other
+     * @throws IllegalArgumentException Incompatible primes or sizes
+     */
+    public void addInPlace(ShareVector other) throws IllegalArgumentException {
+        addInPlace(other, 0, high.length);
+    }
+
+    /**
+     * Adds a range of another share vector element-wise to this vector
+     *
+     * @param other
+     * @param from first index, inclusive
+     * @param to last index, exclusive
+     * @throws IllegalArgumentException Incompatible primes or sizes
+     */
+    public void addInPlace(ShareVector other, int from, int to) throws IllegalArgumentException {
+        checkCompatible(other);
+        if (mersenne) {
+            for (int i = from; i < to; i++) {
+                Mersenne127.add(high[i], low[i], other.high[i], other.low[i], high, low, i);
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                addModulo(high[i], low[i], other.high[i], other.low[i], primeHigh, primeLow, high, low, i);
+            }
+        }
+    }
+
+    /**
+     * Sets all shares to zero
+     */
+    public void clear() {
+        Arrays.fill(high, 0L);
+        Arrays.fill(low, 0L);
+    }
+
+    @Override
+    public Object clone() {
+        return new ShareVector(this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof ShareVector))
+            return false;
+        ShareVector other = (ShareVector) o;
+        return prime.equals(other.prime) && Arrays.equals(high, other.high) && Arrays.equals(low, other.low);
+    }
+
+    /**
+     * Returns the share at the given index
+     *
+     * @param index
+     * @return the share
+     */
+    public ArithmeticShare get(int index) {
+        return new ArithmeticShare(getValue(index), prime);
+    }
+
+    /**
+     * @return the prime
+     */
+    public BigInteger getPrime() {
+        return prime;
+    }
+
+    /**
+     * Returns the sum of all shares in this vector modulo prime
+     *
+     * @return the sum
+     */
+    public BigInteger getSum() {
+        long sumHigh = 0L;
+        long sumLow = 0L;
+        for (int i = 0; i < high.length; i++) {
+            long resultHigh;
+            if (mersenne) {
+                resultHigh = Mersenne127.addHigh(sumHigh, sumLow, high[i], low[i]);
+                sumLow = Mersenne127.addLow(sumHigh, sumLow, high[i], low[i]);
+            } else {
+                resultHigh = addModuloHigh(sumHigh, sumLow, high[i], low[i], primeHigh, primeLow);
+                sumLow = addModuloLow(sumHigh, sumLow, high[i], low[i], primeHigh, primeLow);
+            }
+            sumHigh = resultHigh;
+        }
+        return Mersenne127.toBigInteger(sumHigh, sumLow);
+    }
+
+    /**
+     * Returns the value of the share at the given index
+     *
+     * @param index
+     * @return the value
+     */
+    public BigInteger getValue(int index) {
+        return Mersenne127.toBigInteger(high[index], low[index]);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = prime.hashCode();
+        result = 31 * result + Arrays.hashCode(high);
+        result = 31 * result + Arrays.hashCode(low);
+        return result;
+    }
+
+    /**
+     * Reads the value at the given index from 16 bytes in big-endian order. The value is reduced modulo the prime.
+     *
+     * @param index
+     * @param buffer
+     * @param position of the first byte in the buffer
+     */
+    public void read(int index, ByteBuffer buffer, int position) {
+        long high = buffer.getLong(position);
+        long low = buffer.getLong(position + 8);
+        if (compareUnsigned(high, low, primeHigh, primeLow) < 0) {
+            this.high[index] = high;
+            this.low[index] = low;
+        } else {
+            set(index, new BigInteger(1, ByteBuffer.allocate(16).putLong(high).putLong(low).array()));
+        }
+    }
+
+    /**
+     * Sets the share at the given index
+     *
+     * @param index
+     * @param share
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    public void set(int index, ArithmeticShare share) throws IllegalArgumentException {
+        if (!prime.equals(share.prime))
+            throw new IllegalArgumentException("Incompatible primes found!");
+        set(index, share.value);
+    }
+
+    /**
+     * Sets the share at the given index to the share at an index of another vector
+     *
+     * @param index
+     * @param other
+     * @param otherIndex
+     * @throws IllegalArgumentException Incompatible primes
+     */
+    public void set(int index, ShareVector other, int otherIndex) throws IllegalArgumentException {
+        if (!prime.equals(other.prime))
+            throw new IllegalArgumentException("Incompatible primes found!");
+        high[index] = other.high[otherIndex];
+        low[index] = other.low[otherIndex];
+    }
+
+    /**
+     * Sets the value at the given index. The value is reduced modulo the prime.
+     *
+     * @param index
+     * @param value
+     */
+    public void set(int index, BigInteger value) {
+        BigInteger canonical = value.signum() >= 0 && value.compareTo(prime) < 0 ? value : value.mod(prime);
+        high[index] = Mersenne127.toHigh(canonical);
+        low[index] = Mersenne127.toLow(canonical);
+    }
+
+    /**
+     * @return the number of shares
+     */
+    public int size() {
+        return high.length;
+    }
+
+    /**
+     * Converts to arithmetic shares
+     *
+     * @return the shares
+     */
+    public ArithmeticShare[] toShares() {
+        ArithmeticShare[] result = new ArithmeticShare[high.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the value at the given index as 16 bytes in big-endian order
+     *
+     * @param index
+     * @param output
+     * @throws IOException
+     */
+    public void write(int index, DataOutput output) throws IOException {
+        output.writeLong(high[index]);
+        output.writeLong(low[index]);
+    }
+
+    @Override
+    public String toString() {
+        return "ShareVector [size=" + size() + ", prime=" + prime + "]";
+    }
+
+    /**
+     * Checks compatibility
+     *
+     * @param other
+     * @throws IllegalArgumentException
+     */
+    private void checkCompatible(ShareVector other) throws IllegalArgumentException {
+        if (!prime.equals(other.prime))
+            throw new IllegalArgumentException("Incompatible primes found!");
+        if (high.length != other.high.length)
+            throw new IllegalArgumentException("Incompatible sizes found!");
+    }
+
+    /**
+     * Sets a uniformly distributed random value in [0, prime) at the given index
+     *
+     * @param index
+     * @param random
+     */
+    private void setRandom(int index, Random random) {
+        if (mersenne) {
+            Mersenne127.random(random, high, low, index);
+            return;
+        }
+        int bitsHigh = Math.max(prime.bitLength() - 64, 0);
+        long maskHigh = bitsHigh == 0 ? 0L : (bitsHigh == 64 ? -1L : (1L << bitsHigh) - 1L);
+        long maskLow = prime.bitLength() >= 64 ? -1L : (1L << prime.bitLength()) - 1L;
+        long h, l;
+        do {
+            h = random.nextLong() & maskHigh;
+            l = random.nextLong() & maskLow;
+        } while (compareUnsigned(h, l, primeHigh, primeLow) >= 0);
+        high[index] = h;
+        low[index] = l;
+    }
+
+    /**
+     * Subtracts a canonical value modulo prime at the given index
+     *
+     * @param index
+     * @param otherHigh
+     * @param otherLow
+     */
+    private void subtractAt(int index, long otherHigh, long otherLow) {
+        // Negate other: prime - other is canonical unless other is zero
+        if (otherHigh == 0L && otherLow == 0L) {
+            return;
+        }
+        if (mersenne) {
+            Mersenne127.add(high[index], low[index], Mersenne127.negateHigh(otherHigh), Mersenne127.negateLow(otherLow), high, low, index);
+            return;
+        }
+        long borrow = Long.compareUnsigned(primeLow, otherLow) < 0 ? 1L : 0L;
+        long negLow = primeLow - otherLow;
+        long negHigh = primeHigh - otherHigh - borrow;
+        addModulo(high[index], low[index], negHigh, negLow, primeHigh, primeLow, high, low, index);
+    }
+}
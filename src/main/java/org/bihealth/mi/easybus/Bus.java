@@ -13,15 +13,27 @@
  */
 package org.bihealth.mi.easybus;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Callable;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,12 +46,206 @@ import org.apache.logging.log4j.Logger;
  */
 public abstract class Bus {
     
+    /**
+     * A send which is attempted repeatedly. Attempts run on the executor of the bus,
+     * waiting between attempts is done by rescheduling, not by blocking a thread.
+     * 
+     * @author agent
+     */
+    private class SendTask extends FutureTask<Void> {
+        
+        /** Message */
+        private final BusMessage  message;
+        /** Policy */
+        private final RetryPolicy policy;
+        /** Number of failed attempts */
+        private int               failures;
+        /** Thread running the current attempt */
+        private Thread            runner;
+        
+        /**
+         * Creates a new instance
+         * 
+         * @param message
+         * @param policy
+         */
+        private SendTask(BusMessage message, RetryPolicy policy) {
+            super(() -> null);
+            this.message = message;
+            this.policy = policy;
+        }
+        
+        /**
+         * Attempts to send, waits while the circuit breaker is open
+         */
+        private void attempt() {
+            
+            // Check
+            if (isDone()) {
+                return;
+            }
+            
+            // Wait while the endpoint is considered unavailable
+            long wait = getCircuitBreakerWait();
+            if (wait > 0) {
+                schedule(wait);
+                return;
+            }
+            
+            // Run attempt
+            try {
+                executor.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                setException(new BusException("Bus has been stopped", e));
+            }
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(false);
+            if (result && mayInterruptIfRunning) {
+                synchronized (this) {
+                    if (runner != null) {
+                        runner.interrupt();
+                    }
+                }
+            }
+            return result;
+        }
+        
+        @Override
+        public void run() {
+            
+            // Check
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            
+            // Send
+            try {
+                sendInternal(message);
+                recordSendSuccess();
+                set(null);
+            } catch (BusException e) {
+                
+                // Log
+                failures++;
+                recordSendFailure(policy);
+                LOGGER.error("Error sending message", e);
+                
+                // Give up or repeat later
+                if (!policy.isAttemptAllowed(failures)) {
+                    setException(new BusException(String.format("Unable to send message after %d attempts", failures), e));
+                } else {
+                    schedule(policy.getDelay(failures));
+                }
+            } catch (Exception e) {
+                setException(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    
+                    // Clear an interrupt caused by cancelling this task
+                    if (isCancelled()) {
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Schedules the next attempt
+         * 
+         * @param delay in milliseconds
+         */
+        private void schedule(long delay) {
+            try {
+                SCHEDULER.schedule(this::attempt, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                setException(new BusException("Unable to schedule sending", e));
+            }
+        }
+    }
+    
+    /**
+     * Runs tasks one after another in the order of submission on the executor for delivering messages
+     * 
+     * @author agent
+     */
+    private static class SerialExecutor implements Executor {
+        
+        /** Tasks waiting */
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        /** Task running */
+        private Runnable              active;
+        
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        next();
+                    }
+                }
+            });
+            if (active == null) {
+                next();
+            }
+        }
+        
+        /**
+         * Starts the next task
+         */
+        private synchronized void next() {
+            active = tasks.poll();
+            if (active != null) {
+                DELIVERY.execute(active);
+            }
+        }
+    }
+    
     /** Logger */
     private static final Logger                                       LOGGER = LogManager.getLogger(Bus.class);
+    /** Executor delivering received messages, separate from sending */
+    private static final ExecutorService                              DELIVERY = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return ThreadManager.newThread(runnable, true);
+        }
+    });
+    /** Scheduler used to start repeated attempts to send */
+    private static final ScheduledExecutorService                     SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Bus retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     /** Stores the subscriptions with known participants */
     private final Map<Scope, Map<Participant, List<MessageListener>>> subscriptions;
     /** Executor service */
     private final ExecutorService                                     executor;
+    /** Serial executors delivering messages by listener */
+    private final Map<MessageListener, Executor>                      deliveries  = Collections.synchronizedMap(new WeakHashMap<>());
+    /** Messages passed to listeners which have not been processed, yet */
+    private final Set<BusMessage>                                     processing  = new HashSet<>();
+    /** Actions to run when no message is being processed */
+    private final List<Runnable>                                      whenIdle    = new ArrayList<>();
+    /** Policy for retrying failed sends */
+    private volatile RetryPolicy                                      retryPolicy = RetryPolicy.DEFAULT;
+    /** Lock for the state of the circuit breaker */
+    private final Object                                              breakerLock = new Object();
+    /** Number of consecutive failed sends */
+    private int                                                       breakerFailures;
+    /** Time until which no sends are attempted */
+    private long                                                      breakerOpenUntil;
     
     /**
      * Creates a new instance
@@ -54,8 +260,16 @@ public abstract class Bus {
         }
         
         // Create
-        this.executor = Executors.newFixedThreadPool(sizeThreadpool);
-        this.subscriptions = new HashMap<>();
+        this.executor = ThreadManager.newExecutor(sizeThreadpool);
+        this.subscriptions = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Creates a new instance without an executor, for buses delegating sending to another bus
+     */
+    protected Bus() {
+        this.executor = null;
+        this.subscriptions = new ConcurrentHashMap<>();
     }
 
     /**
@@ -71,24 +285,25 @@ public abstract class Bus {
      * @param participant
      * @param messageListener
      */
-    public synchronized void receive(Scope scope, Participant participant, MessageListener messageListener) {
-        
-        // Get or create scope
-        Map<Participant,List<MessageListener>> subscriptionsForScope = subscriptions.get(scope);
-        if (subscriptionsForScope == null) {
-            subscriptionsForScope = new HashMap<>();
-            subscriptions.put(scope, subscriptionsForScope);
-        }
-        
-        // Get or create listeners for participant
-        List<MessageListener> listenerForParticipant = subscriptionsForScope.get(participant);
-        if (listenerForParticipant == null) {
-            listenerForParticipant = new ArrayList<>();
-            subscriptionsForScope.put(participant, listenerForParticipant);
+    public void receive(Scope scope, Participant participant, MessageListener messageListener) {
+        subscriptions.computeIfAbsent(scope, key -> new ConcurrentHashMap<>())
+                     .computeIfAbsent(participant, key -> new CopyOnWriteArrayList<>())
+                     .add(messageListener);
+    }
+    
+    /**
+     * Removes a subscription made with receive
+     * 
+     * @param scope
+     * @param participant
+     * @param messageListener
+     */
+    protected void unsubscribe(Scope scope, Participant participant, MessageListener messageListener) {
+        Map<Participant, List<MessageListener>> subscriptionsForScope = subscriptions.get(scope);
+        List<MessageListener> listeners = subscriptionsForScope != null ? subscriptionsForScope.get(participant) : null;
+        if (listeners != null) {
+            listeners.remove(messageListener);
         }
-        
-        // Add listener
-        listenerForParticipant.add(messageListener);
     }
     
     /**
@@ -96,7 +311,7 @@ public abstract class Bus {
      *  
      * @param messageListener
      */
-    public synchronized void receiveErrorInternal(Exception exception) {
+    public void receiveErrorInternal(Exception exception) {
         
         for(Entry<Scope, Map<Participant, List<MessageListener>>> scope : subscriptions.entrySet()) {
             for(Entry<Participant, List<MessageListener>> participant : scope.getValue().entrySet()) {
@@ -109,7 +324,7 @@ public abstract class Bus {
 
     /**
      * Allows to send a message to a participant
-     * In case of error retries infinitely - error handling must be done by using the returned FutureTask object
+     * In case of error retries according to the retry policy - error handling must be done by using the returned FutureTask object
      * 
      * @param message
      * @param scope
@@ -118,32 +333,30 @@ public abstract class Bus {
      * @throws BusException
      */
     public FutureTask<Void> send(String message, Scope scope, Participant participant) throws BusException {
-        // Create future task 
-        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                // Init
-                boolean sent = false;
-                
-                // Retry until sent successful or interrupted
-                while (!sent && !Thread.interrupted()) {
-                    try {
-                        sendInternal(new BusMessage(participant, scope, message));
-                        sent = true;
-                    } catch (BusException e) {
-                        // Log and repeat
-                        LOGGER.error("Error sending message", e);
-                    }
-                }
-                return null;
-            }
-        });
-        
-        // Start and return
-        executor.execute(task);
+        // Create and start task
+        SendTask task = new SendTask(new BusMessage(participant, scope, message), retryPolicy);
+        task.attempt();
         return task;
     }
     
+    /**
+     * Returns the policy for retrying failed sends
+     * 
+     * @return
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    
+    /**
+     * Sets the policy for retrying failed sends
+     * 
+     * @param retryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.DEFAULT;
+    }
+    
     /**
      * Stops all backend services that might be running
      */
@@ -163,7 +376,7 @@ public abstract class Bus {
      * @param participant
      * @return
      */
-    protected synchronized boolean isParticipantScopeRegistered(Scope scope, Participant participant) {
+    protected boolean isParticipantScopeRegistered(Scope scope, Participant participant) {
         // Check not null
         if (scope == null || participant == null) {
             return false;
@@ -176,8 +389,8 @@ public abstract class Bus {
         }
         
         // Check if participant is registered for scope
-        if (subscriptionsForScope.get(participant) == null ||
-            subscriptionsForScope.get(participant).size() == 0) {
+        List<MessageListener> listeners = subscriptionsForScope.get(participant);
+        if (listeners == null || listeners.isEmpty()) {
             return false;
         }
         
@@ -186,35 +399,165 @@ public abstract class Bus {
     }    
     
     /**
-     * Receives an external received message
+     * Returns how long the circuit breaker stays open
+     * 
+     * @return time in milliseconds, 0 if closed
+     */
+    private long getCircuitBreakerWait() {
+        synchronized (breakerLock) {
+            return Math.max(0, breakerOpenUntil - System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * Records a successful send and closes the circuit breaker
+     */
+    private void recordSendSuccess() {
+        synchronized (breakerLock) {
+            breakerFailures = 0;
+        }
+    }
+    
+    /**
+     * Records a failed send and opens the circuit breaker if the threshold is reached
+     * 
+     * @param policy
+     */
+    private void recordSendFailure(RetryPolicy policy) {
+        synchronized (breakerLock) {
+            breakerFailures++;
+            if (policy.getCircuitBreakerThreshold() > 0 && breakerFailures >= policy.getCircuitBreakerThreshold()) {
+                long now = System.currentTimeMillis();
+                if (breakerOpenUntil <= now) {
+                    LOGGER.info(String.format("Pausing sending for %d ms after %d consecutive failures", policy.getCircuitBreakerOpenTime(), breakerFailures));
+                }
+                breakerOpenUntil = Math.max(breakerOpenUntil, now + policy.getCircuitBreakerOpenTime());
+            }
+        }
+    }
+    
+    /**
+     * Receives an external received message. The message is passed to the listeners on an executor 
+     * separate from sending, each listener receiving one message at a time in the order of calls. 
+     * Returns without waiting for the listeners.
      * 
      * @param message
-     * @throws InterruptedException 
+     * @return whether there are listeners for the message
      */
-    protected synchronized boolean receiveInternal(BusMessage message) throws InterruptedException {
+    protected boolean receiveInternal(BusMessage message) {
+        return receiveInternal(message, null);
+    }
+    
+    /**
+     * Receives an external received message. The message is passed to the listeners on an executor 
+     * separate from sending, each listener receiving one message at a time in the order of calls. 
+     * Returns without waiting for the listeners. When all listeners have processed the message, the 
+     * given action is run on the executor delivering messages, e.g., to delete the message. Until then, 
+     * the message is ignored if received again.
+     * 
+     * @param message
+     * @param processed - run when the message has been processed, may be null
+     * @return whether there are listeners for the message or the message is still being processed
+     */
+    protected boolean receiveInternal(BusMessage message, Runnable processed) {
         
-        Scope scope = message.getScope();
-        Participant participant = message.getReceiver();
+        // Ignore if still being processed
+        synchronized (processing) {
+            if (!processing.add(message)) {
+                return true;
+            }
+        }
         
-        // Mark received
-        boolean received = false;
+        // Get subscribers
+        Map<Participant, List<MessageListener>> subscriptionsForScope = subscriptions.get(message.getScope());
+        List<MessageListener> listeners = subscriptionsForScope != null ? subscriptionsForScope.get(message.getReceiver()) : null;
+        listeners = listeners != null ? new ArrayList<>(listeners) : new ArrayList<>();
         
-        // Send to subscribers
-        if (subscriptions.get(scope) != null && subscriptions.get(scope).get(participant) != null) {
-            for (MessageListener messageListener : subscriptions.get(scope).get(participant)) {
-
-                // Check for interrupt
-                if (Thread.interrupted()) { 
-                    throw new InterruptedException();
+        // Complete when processed by all subscribers
+        AtomicInteger remaining = new AtomicInteger(listeners.size());
+        Runnable complete = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (processed != null) {
+                        processed.run();
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error finishing processing of message", e);
+                } finally {
+                    finish(message);
                 }
-
-                messageListener.receive(message.getMessage());
-                received = true;
             }
+        };
+        if (listeners.isEmpty()) {
+            DELIVERY.execute(complete);
+            return false;
+        }
+        
+        // Send to subscribers
+        for (MessageListener messageListener : listeners) {
+            deliveries.computeIfAbsent(messageListener, key -> new SerialExecutor()).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        messageListener.receive(message.getMessage());
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Error processing message", e);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            complete.run();
+                        }
+                    }
+                }
+            });
         }
 
         // Done
-        return received;
+        return true;
+    }
+    
+    /**
+     * Runs the action when no message is being processed, i.e. immediately or when the last 
+     * message currently being processed has been processed. Can be used to release resources 
+     * needed to finish processing, e.g., when stopping.
+     * 
+     * @param action
+     */
+    protected void whenProcessed(Runnable action) {
+        synchronized (processing) {
+            if (!processing.isEmpty()) {
+                whenIdle.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+    
+    /**
+     * Marks a message as processed
+     * 
+     * @param message
+     */
+    private void finish(BusMessage message) {
+        
+        // Remove
+        List<Runnable> actions = new ArrayList<>();
+        synchronized (processing) {
+            processing.remove(message);
+            if (processing.isEmpty()) {
+                actions.addAll(whenIdle);
+                whenIdle.clear();
+            }
+        }
+        
+        // Run actions
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Error after processing messages", e);
+            }
+        }
     }
 
     /**
@@ -240,7 +583,7 @@ public abstract class Bus {
      * @param participant
      * @return
      */
-    protected synchronized List<String> getScopesForParticipant(Participant participant) {
+    protected List<String> getScopesForParticipant(Participant participant) {
         // Prepare
         List<String> result = new ArrayList<>();
         
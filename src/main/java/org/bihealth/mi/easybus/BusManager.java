@@ -0,0 +1,308 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Shares one bus, i.e. one connection and one polling loop, among all users of the same mailbox or account.
+ * Each user obtains an own handle. The underlying bus is stopped when the last handle is stopped.
+ * If the bus has died, it is replaced for all handles including their subscriptions.
+ * 
+ * @author agent
+ */
+public class BusManager {
+    
+    /**
+     * Creates a new bus
+     * 
+     * @author agent
+     */
+    public interface BusFactory {
+        
+        /**
+         * Creates a new bus
+         * 
+         * @return
+         * @throws BusException
+         */
+        public Bus create() throws BusException;
+    }
+    
+    /**
+     * An underlying bus with the handles using it. Guards the subscriptions of its handles.
+     * 
+     * @author agent
+     */
+    private static class SharedBus {
+        
+        /** Key */
+        private final String          key;
+        /** Handles not stopped yet */
+        private final List<BusHandle> handles = new ArrayList<>();
+        /** Bus */
+        private volatile Bus          bus;
+        
+        /**
+         * Creates a new instance
+         * 
+         * @param key
+         * @param bus
+         */
+        SharedBus(String key, Bus bus) {
+            this.key = key;
+            this.bus = bus;
+        }
+        
+        /**
+         * Replaces the bus and subscribes all handles to the new one
+         * 
+         * @param bus
+         * @return the previous bus
+         */
+        synchronized Bus replace(Bus bus) {
+            Bus previous = this.bus;
+            this.bus = bus;
+            for (BusHandle handle : handles) {
+                for (Subscription subscription : handle.subscriptions) {
+                    bus.receive(subscription.scope, subscription.participant, subscription.listener);
+                }
+            }
+            return previous;
+        }
+    }
+    
+    /**
+     * A subscription made via a handle
+     * 
+     * @author agent
+     */
+    private static class Subscription {
+        
+        /** Scope */
+        private final Scope           scope;
+        /** Participant */
+        private final Participant     participant;
+        /** Listener */
+        private final MessageListener listener;
+        
+        /**
+         * Creates a new instance
+         * 
+         * @param scope
+         * @param participant
+         * @param listener
+         */
+        Subscription(Scope scope, Participant participant, MessageListener listener) {
+            this.scope = scope;
+            this.participant = participant;
+            this.listener = listener;
+        }
+    }
+    
+    /**
+     * Handle to a shared bus. Stopping the handle unsubscribes its listeners and releases the underlying bus.
+     * 
+     * @author agent
+     */
+    private static class BusHandle extends Bus {
+        
+        /** Shared bus */
+        private final SharedBus             shared;
+        /** Subscriptions made via this handle */
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        /** Stopped */
+        private boolean                  stopped       = false;
+        
+        /**
+         * Creates a new instance
+         * 
+         * @param shared
+         */
+        BusHandle(SharedBus shared) {
+            super();
+            this.shared = shared;
+        }
+
+        @Override
+        public boolean isAlive() {
+            synchronized (shared) {
+                return !stopped && shared.bus.isAlive();
+            }
+        }
+
+        @Override
+        public void receive(Scope scope, Participant participant, MessageListener messageListener) {
+            synchronized (shared) {
+                subscriptions.add(new Subscription(scope, participant, messageListener));
+                shared.bus.receive(scope, participant, messageListener);
+            }
+        }
+
+        @Override
+        public FutureTask<Void> send(String message, Scope scope, Participant participant) throws BusException {
+            return shared.bus.send(message, scope, participant);
+        }
+
+        @Override
+        public RetryPolicy getRetryPolicy() {
+            return shared.bus.getRetryPolicy();
+        }
+
+        @Override
+        public void setRetryPolicy(RetryPolicy retryPolicy) {
+            shared.bus.setRetryPolicy(retryPolicy);
+        }
+
+        @Override
+        public void stop() {
+            synchronized (shared) {
+                if (stopped) {
+                    return;
+                }
+                stopped = true;
+                for (Subscription subscription : subscriptions) {
+                    shared.bus.unsubscribe(subscription.scope, subscription.participant, subscription.listener);
+                }
+                subscriptions.clear();
+            }
+            release(this);
+        }
+
+        @Override
+        protected Void sendInternal(BusMessage message) throws Exception {
+            return shared.bus.sendInternal(message);
+        }
+
+        @Override
+        public void purge(MessageFilter filter) throws BusException, InterruptedException {
+            shared.bus.purge(filter);
+        }
+    }
+
+    /** Logger */
+    private static final Logger                 LOGGER = LogManager.getLogger(BusManager.class);
+    /** Shared buses by key */
+    private static final Map<String, SharedBus> BUSES  = new HashMap<>();
+
+    /**
+     * Returns a handle to the bus for the given key. Creates the bus if there is none. If the bus is not 
+     * alive anymore, it is replaced by a new one, which is then also used by all existing handles.
+     * 
+     * @param key - identifies the mailbox or account, e.g. the identifier of the connection settings
+     * @param factory - creates the bus if necessary
+     * @return
+     * @throws BusException
+     */
+    public static Bus getBus(String key, BusFactory factory) throws BusException {
+        
+        Bus stale = null;
+        BusHandle handle;
+        synchronized (BUSES) {
+            
+            // Create if necessary
+            SharedBus shared = BUSES.get(key);
+            if (shared == null) {
+                shared = new SharedBus(key, factory.create());
+                BUSES.put(key, shared);
+                LOGGER.debug(String.format("Shared bus created for %s", key));
+                
+            // Replace for all handles if died in the meantime
+            } else if (!shared.bus.isAlive()) {
+                stale = shared.replace(factory.create());
+                LOGGER.debug(String.format("Shared bus replaced for %s", key));
+            }
+            
+            // Register
+            handle = new BusHandle(shared);
+            synchronized (shared) {
+                shared.handles.add(handle);
+            }
+        }
+        
+        // Stop the bus which has died
+        if (stale != null) {
+            stale.stop();
+        }
+        
+        // Done
+        return handle;
+    }
+    
+    /**
+     * Returns the key identifying the bus for a mailbox or account. Buses polling in different intervals
+     * are not shared, as the interval of the bus created first would otherwise apply to all handles.
+     * 
+     * @param settings
+     * @param self - own participant, relevant for buses receiving only for one participant
+     * @param sharedMailbox - whether the mailbox is shared by several participants
+     * @param millis - interval in milliseconds in which the bus polls for messages
+     * @return
+     */
+    public static String getKey(ConnectionSettings settings, Participant self, boolean sharedMailbox, long millis) {
+        return settings.getExchangeMode().name() + ":" + settings.getIdentifier() + ":" + sharedMailbox + ":" + millis +
+               (self != null ? ":" + self.getName() + ":" + self.getEmailAddress() : "");
+    }
+    
+    /**
+     * Returns the number of handles to the bus for the given key
+     * 
+     * @param key
+     * @return
+     */
+    public static int getReferences(String key) {
+        synchronized (BUSES) {
+            SharedBus shared = BUSES.get(key);
+            if (shared == null) {
+                return 0;
+            }
+            synchronized (shared) {
+                return shared.handles.size();
+            }
+        }
+    }
+
+    /**
+     * Releases a handle and stops the bus if it is not used anymore
+     * 
+     * @param handle
+     */
+    private static void release(BusHandle handle) {
+        
+        // Count
+        SharedBus shared = handle.shared;
+        synchronized (BUSES) {
+            synchronized (shared) {
+                shared.handles.remove(handle);
+                if (!shared.handles.isEmpty()) {
+                    return;
+                }
+            }
+            if (BUSES.get(shared.key) == shared) {
+                BUSES.remove(shared.key);
+            }
+        }
+        
+        // Stop
+        LOGGER.debug(String.format("Shared bus stopped for %s", shared.key));
+        shared.bus.stop();
+    }
+}
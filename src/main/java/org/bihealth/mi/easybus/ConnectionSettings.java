@@ -28,6 +28,10 @@ public abstract class ConnectionSettings implements Serializable {
     private static final long serialVersionUID = -3887172032343688839L;
     /** Password store */
     private transient PasswordStore passwordStore;
+    /** Policy for retrying failed sends */
+    private RetryPolicy             retryPolicy;
+    /** Send messages to all recipients concurrently */
+    private boolean                 sendingParallel   = false;
     
     /**
      * Returns the identifier
@@ -76,6 +80,46 @@ public abstract class ConnectionSettings implements Serializable {
         return this;
     }
     
+    /**
+     * Are messages to all recipients sent concurrently?
+     * 
+     * @return
+     */
+    public boolean isParallelSending() {
+        return sendingParallel;
+    }
+    
+    /**
+     * Sets whether messages to all recipients are sent concurrently
+     * 
+     * @param parallel
+     * @return
+     */
+    public ConnectionSettings setParallelSending(boolean parallel) {
+        this.sendingParallel = parallel;
+        return this;
+    }
+    
+    /**
+     * Returns the policy for retrying failed sends
+     * 
+     * @return
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy != null ? retryPolicy : RetryPolicy.DEFAULT;
+    }
+    
+    /**
+     * Sets the policy for retrying failed sends
+     * 
+     * @param retryPolicy
+     * @return
+     */
+    public ConnectionSettings setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+    
     /**
      * Returns the exchange mode
      * 
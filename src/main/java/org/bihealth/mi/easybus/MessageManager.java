@@ -16,15 +16,20 @@ package org.bihealth.mi.easybus;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bihealth.mi.easysmpc.resources.Resources;
+
 import de.tu_darmstadt.cbs.emailsmpc.UIDGenerator;
 
 /**
@@ -36,11 +41,58 @@ import de.tu_darmstadt.cbs.emailsmpc.UIDGenerator;
  * @author Fabian Prasser
  */
 public class MessageManager {
+    
+    /**
+     * Fragments of a message which has not been received completely, yet
+     * 
+     * @author agent
+     */
+    private static class PendingMessage {
+        
+        /** Fragments */
+        private final BusMessageFragment[] fragments;
+        /** Time of creation */
+        private final long                 created = System.currentTimeMillis();
+        /** Number of fragments received */
+        private int                        received;
+        /** Size of fragments received in characters */
+        private long                       size;
+        
+        /**
+         * Creates a new instance
+         * 
+         * @param numberOfFragments
+         */
+        private PendingMessage(int numberOfFragments) {
+            this.fragments = new BusMessageFragment[numberOfFragments];
+        }
+        
+        /**
+         * Is the message complete?
+         * 
+         * @return
+         */
+        private boolean isComplete() {
+            return received == fragments.length;
+        }
+    }
 
+    /** Logger */
+    private static final Logger                 LOGGER = LogManager.getLogger(MessageManager.class);
     /** Maximal size of a single message in byte */
-    private int                                     maxMessageSize;
-    /** Message fragments */
-    private final Map<String, BusMessageFragment[]> messagesFragments;
+    private int                                 maxMessageSize;
+    /** Maximal total size of pending fragments in characters */
+    private final long                          maxPendingSize;
+    /** Maximal age of pending fragments in milliseconds */
+    private final long                          maxPendingAge;
+    /** Pending messages in order of creation */
+    private final Map<String, PendingMessage>   messagesFragments;
+    /** Total size of pending fragments in characters */
+    private long                                pendingSize;
+    /** Number of evicted messages */
+    private long                                evictedMessages;
+    /** Number of evicted fragments */
+    private long                                evictedFragments;
 
     /**
      * Creates a new instance
@@ -48,10 +100,79 @@ public class MessageManager {
      * @param maxMessageSize in bytes
      */
     public MessageManager(int maxMessageSize) {
+        this(maxMessageSize, Resources.FRAGMENTS_MAX_PENDING_SIZE_DEFAULT, Resources.FRAGMENTS_MAX_PENDING_AGE_DEFAULT);
+    }
+    
+    /**
+     * Creates a new instance. Fragments of incomplete messages are evicted when they are older than
+     * the given age or, starting with the oldest, when their total size exceeds the given limit.
+     * Evicted fragments are not deleted from their source and will be merged again when re-received.
+     * 
+     * @param maxMessageSize in bytes
+     * @param maxPendingSize maximal total size of pending fragments in characters
+     * @param maxPendingAge maximal age of pending fragments in milliseconds
+     */
+    public MessageManager(int maxMessageSize, long maxPendingSize, long maxPendingAge) {
+        
+        // Check
+        if (maxPendingSize <= 0 || maxPendingAge <= 0) {
+            throw new IllegalArgumentException("Limits must be positive numbers");
+        }
         
         // Store and init
         this.maxMessageSize = maxMessageSize;
-        this.messagesFragments = new ConcurrentHashMap<>();
+        this.maxPendingSize = maxPendingSize;
+        this.maxPendingAge = maxPendingAge;
+        this.messagesFragments = new LinkedHashMap<>();
+    }
+    
+    /**
+     * Returns the number of fragments evicted so far
+     * 
+     * @return
+     */
+    public synchronized long getEvictedFragments() {
+        return evictedFragments;
+    }
+    
+    /**
+     * Returns the number of incomplete messages evicted so far
+     * 
+     * @return
+     */
+    public synchronized long getEvictedMessages() {
+        return evictedMessages;
+    }
+    
+    /**
+     * Returns the number of fragments of incomplete messages currently held
+     * 
+     * @return
+     */
+    public synchronized int getPendingFragments() {
+        int result = 0;
+        for (PendingMessage pending : messagesFragments.values()) {
+            result += pending.received;
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of incomplete messages currently held
+     * 
+     * @return
+     */
+    public synchronized int getPendingMessages() {
+        return messagesFragments.size();
+    }
+    
+    /**
+     * Returns the total size of fragments of incomplete messages currently held in characters
+     * 
+     * @return
+     */
+    public synchronized long getPendingSize() {
+        return pendingSize;
     }
     
     /**
@@ -84,31 +205,11 @@ public class MessageManager {
             return message;
         }
         
-        // Convert to fragment
-        BusMessageFragment messageFragment = (BusMessageFragment)message;
-        
-        // Get or create fragments array
-        BusMessageFragment[] messageFragments = this.messagesFragments.computeIfAbsent(messageFragment.getMessageID(), new Function<String, BusMessageFragment[]>() {
-
-            @Override
-            public BusMessageFragment[] apply(String key) {
-                return new BusMessageFragment[messageFragment.getNumberOfFragments()];
-            }            
-        });               
-        
-        // Check
-        if (messageFragment.getNumberOfFragments() > messageFragments.length) {
-            throw new BusException(String.format("Index for number of messages %d for new fragment does not suit to total number of messages %d for message %s",
-                                                 messageFragment.getFragmentNumber(),
-                                                 messageFragments.length,
-                                                 messageFragment.getMessageID()));
-        }
-
         // Add to list
-        messageFragments[messageFragment.getFragmentNumber()] = messageFragment;
+        BusMessageFragment[] messageFragments = addFragment((BusMessageFragment) message);
         
         // If message complete return or return null
-        return messageComplete(messageFragments) ? buildMessage(messageFragment.getMessageID(), deleteNow) : null;
+        return messageFragments != null ? buildMessage(messageFragments, deleteNow) : null;
     }    
     
     /**
@@ -142,27 +243,118 @@ public class MessageManager {
         return result;
     }
     
+    /**
+     * Adds a fragment to the fragments of its message. If the message is complete, it is removed
+     * from the pending messages and all fragments are returned.
+     * 
+     * @param messageFragment
+     * @return all fragments of the message or null if the message is not complete, yet
+     * @throws BusException
+     */
+    private synchronized BusMessageFragment[] addFragment(BusMessageFragment messageFragment) throws BusException {
+        
+        // Evict outdated fragments
+        evict(System.currentTimeMillis() - maxPendingAge, Long.MAX_VALUE, null);
+        
+        // Get or create pending message
+        PendingMessage pending = this.messagesFragments.computeIfAbsent(messageFragment.getMessageID(), new Function<String, PendingMessage>() {
+
+            @Override
+            public PendingMessage apply(String key) {
+                return new PendingMessage(messageFragment.getNumberOfFragments());
+            }            
+        });               
+        
+        // Check
+        if (messageFragment.getNumberOfFragments() > pending.fragments.length) {
+            throw new BusException(String.format("Index for number of messages %d for new fragment does not suit to total number of messages %d for message %s",
+                                                 messageFragment.getFragmentNumber(),
+                                                 pending.fragments.length,
+                                                 messageFragment.getMessageID()));
+        }
+
+        // Add to list, fragments may be received more than once
+        int index = messageFragment.getFragmentNumber();
+        if (pending.fragments[index] == null) {
+            pending.received++;
+        } else {
+            pending.size -= pending.fragments[index].getMessage().length();
+            pendingSize -= pending.fragments[index].getMessage().length();
+        }
+        pending.fragments[index] = messageFragment;
+        pending.size += messageFragment.getMessage().length();
+        pendingSize += messageFragment.getMessage().length();
+        
+        // Complete
+        if (pending.isComplete()) {
+            messagesFragments.remove(messageFragment.getMessageID());
+            pendingSize -= pending.size;
+            return pending.fragments;
+        }
+        
+        // Evict oldest messages if too large, but keep the current one
+        evict(Long.MIN_VALUE, maxPendingSize, pending);
+        
+        // Not complete
+        return null;
+    }
+    
+    /**
+     * Evicts pending messages created before the given point in time. Additionally evicts the
+     * oldest pending messages until their total size is below the given limit.
+     * 
+     * @param createdBefore
+     * @param maxSize
+     * @param keep message not to be evicted, may be null
+     */
+    private void evict(long createdBefore, long maxSize, PendingMessage keep) {
+        
+        Iterator<PendingMessage> iterator = messagesFragments.values().iterator();
+        while (iterator.hasNext()) {
+            
+            // Entries are ordered by creation
+            PendingMessage pending = iterator.next();
+            if (pending.created >= createdBefore && pendingSize <= maxSize) {
+                break;
+            }
+            if (pending == keep) {
+                continue;
+            }
+            
+            // Evict
+            iterator.remove();
+            pendingSize -= pending.size;
+            evictedMessages++;
+            evictedFragments += pending.received;
+            LOGGER.debug("Evicted incomplete message with {} of {} fragments", pending.received, pending.fragments.length);
+        }
+    }
+    
     /**
      * Builds a message object from all fragments
      * 
-     * @param messageId
+     * @param messageFragments
      * @param deleteNow
      * @return
      * @throws BusException 
      */
-    private BusMessage buildMessage(String messageId, boolean deleteNow) throws BusException {
+    private BusMessage buildMessage(BusMessageFragment[] messageFragments, boolean deleteNow) throws BusException {
         
         // Init
-        BusMessageFragment[] messageFragments = this.messagesFragments.get(messageId);
-        String messageContent = "";
+        int length = 0;
+        for (BusMessageFragment fragment : messageFragments) {
+            length += fragment.getMessage().length();
+        }
+        StringBuilder builder = new StringBuilder(length);
 
         // Loop over fragments to re-assemble string
         for (int index = 0; index < messageFragments.length; index++) {
-            messageContent = messageContent + messageFragments[index].getMessage();
+            builder.append(messageFragments[index].getMessage());
             if(deleteNow) {
                 messageFragments[index].delete();
             }
         }
+        String messageContent = builder.toString();
         
         // Finish
         if(deleteNow) {
@@ -195,25 +387,6 @@ public class MessageManager {
         }
     }
     
-    /**
-     * Is a message complete?
-     * 
-     * @param fragments
-     * @return
-     */
-    private boolean messageComplete(BusMessageFragment[] fragments) {
-        
-        // Loop over array
-        for(int index = 0; index < fragments.length; index++) {
-            if(fragments[index] == null) {
-                return false;
-            }
-        }  
-        
-        // Finished
-        return true;
-    }
-    
     /**
      * Splits a string into a list of strings suiting the size limit
      * Derived from: https://stackoverflow.com/questions/48868721/splitting-a-string-with-byte-length-limits-in-java
@@ -226,11 +399,20 @@ public class MessageManager {
     private List<String> splitStringByByteLength(String src, int maxsize) {
         
         // Prepare
-        Charset cs = Charset.forName("UTF-8");
-        CharsetEncoder coder = cs.newEncoder();
+        List<String> stringList = new ArrayList<>(src.length() / maxsize + 1);
+        
+        // Single-byte characters only, e.g., Base64: split by position without encoding
+        if (isASCII(src)) {
+            for (int pos = 0; pos < src.length() || pos == 0; pos += maxsize) {
+                stringList.add(src.substring(pos, Math.min(src.length(), pos + maxsize)));
+            }
+            return stringList;
+        }
+        
+        // Prepare encoding
+        CharsetEncoder coder = StandardCharsets.UTF_8.newEncoder();
         ByteBuffer out = ByteBuffer.allocate(maxsize);
         CharBuffer in = CharBuffer.wrap(src);
-        List<String> stringList = new ArrayList<>();
         int pos = 0;
         
         // Create result
@@ -257,5 +439,20 @@ public class MessageManager {
         // Return
         return stringList;
     }
+    
+    /**
+     * Returns whether the string only contains single-byte characters
+     * 
+     * @param src
+     * @return
+     */
+    private static boolean isASCII(String src) {
+        for (int i = 0; i < src.length(); i++) {
+            if (src.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
 
 }
\ No newline at end of file
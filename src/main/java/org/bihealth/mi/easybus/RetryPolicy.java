@@ -0,0 +1,166 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.bihealth.mi.easysmpc.resources.Resources;
+
+/**
+ * Policy for retrying failed sends: exponential backoff with jitter, a maximal
+ * number of attempts and a circuit breaker pausing all sends to an endpoint after
+ * too many consecutive failures
+ * 
+ * @author agent
+ */
+public class RetryPolicy implements Serializable {
+
+    /** SVUID */
+    private static final long       serialVersionUID = -2207305389373420475L;
+    /** Default policy */
+    public static final RetryPolicy DEFAULT          = new RetryPolicy();
+    /** Delay before the first retry in milliseconds */
+    private final long              initialDelay;
+    /** Maximal delay between two retries in milliseconds */
+    private final long              maxDelay;
+    /** Maximal number of attempts, 0 for unlimited */
+    private final int               maxAttempts;
+    /** Fraction of the delay which is randomized */
+    private final double            jitter;
+    /** Number of consecutive failures opening the circuit breaker, 0 to disable */
+    private final int               circuitBreakerThreshold;
+    /** Time the circuit breaker stays open in milliseconds */
+    private final long              circuitBreakerOpenTime;
+
+    /**
+     * Creates a new instance with default values
+     */
+    public RetryPolicy() {
+        this(Resources.RETRY_INITIAL_DELAY_DEFAULT,
+             Resources.RETRY_MAX_DELAY_DEFAULT,
+             Resources.RETRY_MAX_ATTEMPTS_DEFAULT,
+             Resources.RETRY_JITTER_DEFAULT,
+             Resources.CIRCUIT_BREAKER_THRESHOLD_DEFAULT,
+             Resources.CIRCUIT_BREAKER_OPEN_TIME_DEFAULT);
+    }
+
+    /**
+     * Creates a new instance
+     * 
+     * @param initialDelay - delay before the first retry in milliseconds
+     * @param maxDelay - maximal delay between two retries in milliseconds
+     * @param maxAttempts - maximal number of attempts, 0 for unlimited
+     * @param jitter - fraction of the delay which is randomized, between 0 and 1
+     * @param circuitBreakerThreshold - number of consecutive failures opening the circuit breaker, 0 to disable
+     * @param circuitBreakerOpenTime - time the circuit breaker stays open in milliseconds
+     */
+    public RetryPolicy(long initialDelay,
+                       long maxDelay,
+                       int maxAttempts,
+                       double jitter,
+                       int circuitBreakerThreshold,
+                       long circuitBreakerOpenTime) {
+        
+        // Check
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Delays must be positive and the maximal delay must not be smaller than the initial delay");
+        }
+        if (maxAttempts < 0 || circuitBreakerThreshold < 0 || circuitBreakerOpenTime < 0) {
+            throw new IllegalArgumentException("Attempts, threshold and open time must not be negative");
+        }
+        if (jitter < 0d || jitter > 1d) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        
+        // Store
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+        this.jitter = jitter;
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+
+    /**
+     * Returns the delay before the next attempt
+     * 
+     * @param failedAttempts - number of attempts failed so far, at least 1
+     * @return delay in milliseconds
+     */
+    public long getDelay(int failedAttempts) {
+        
+        // Exponential backoff
+        long delay = initialDelay;
+        for (int i = 1; i < failedAttempts && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        
+        // Jitter
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Returns whether another attempt is allowed
+     * 
+     * @param failedAttempts - number of attempts failed so far
+     * @return
+     */
+    public boolean isAttemptAllowed(int failedAttempts) {
+        return maxAttempts == 0 || failedAttempts < maxAttempts;
+    }
+
+    /**
+     * @return the circuitBreakerOpenTime
+     */
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    /**
+     * @return the circuitBreakerThreshold
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * @return the initialDelay
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    /**
+     * @return the jitter
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return the maxAttempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return the maxDelay
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+}
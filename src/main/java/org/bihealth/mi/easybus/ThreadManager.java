@@ -0,0 +1,200 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bihealth.mi.easysmpc.resources.Resources;
+
+/**
+ * Creates threads and executors. Uses virtual threads if enabled and supported by the JVM,
+ * otherwise platform threads and fixed thread pools. Virtual threads are accessed by reflection
+ * to remain compatible with older JVMs.
+ * 
+ * @author agent
+ */
+public class ThreadManager {
+
+    /**
+     * Executor running at most a given number of tasks at the same time on another executor.
+     * Tasks waiting for a permit block their own thread, which is cheap for virtual threads.
+     * 
+     * @author agent
+     */
+    private static class BoundedExecutor extends AbstractExecutorService {
+        
+        /** Executor */
+        private final ExecutorService executor;
+        /** Permits */
+        private final Semaphore       permits;
+        
+        /**
+         * Creates a new instance
+         * 
+         * @param executor
+         * @param size - maximal number of tasks running at the same time
+         */
+        private BoundedExecutor(ExecutorService executor, int size) {
+            this.executor = executor;
+            this.permits = new Semaphore(size, true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // Shut down while waiting
+                    return;
+                }
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+
+    /** Logger */
+    private static final Logger     LOGGER  = LogManager.getLogger(ThreadManager.class);
+    /** Thread.ofVirtual() */
+    private static final Method     OF_VIRTUAL;
+    /** Thread.Builder.unstarted(Runnable) */
+    private static final Method     UNSTARTED;
+    /** Executors.newVirtualThreadPerTaskExecutor() */
+    private static final Method     NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+    /** Use virtual threads */
+    private static volatile boolean virtual = Boolean.getBoolean(Resources.PROPERTY_VIRTUAL_THREADS);
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        Method newExecutor = null;
+        try {
+            // Obtain methods and make sure they can be used, e.g. preview features are enabled
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            newExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {});
+        } catch (Exception | LinkageError e) {
+            ofVirtual = null;
+            unstarted = null;
+            newExecutor = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    /**
+     * Returns whether virtual threads are supported by the JVM
+     * 
+     * @return
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns whether virtual threads are used
+     * 
+     * @return
+     */
+    public static boolean isVirtualThreads() {
+        return virtual && isVirtualThreadsSupported();
+    }
+
+    /**
+     * Sets whether virtual threads are used if supported by the JVM. Affects threads and executors created afterwards.
+     * 
+     * @param virtual
+     */
+    public static void setVirtualThreads(boolean virtual) {
+        ThreadManager.virtual = virtual;
+    }
+
+    /**
+     * Returns an executor. Creates a new virtual thread per task if virtual threads are used, a fixed thread pool otherwise.
+     * In both cases, at most the given number of tasks run at the same time.
+     * 
+     * @param sizeThreadpool - size of the fixed thread pool
+     * @return
+     */
+    public static ExecutorService newExecutor(int sizeThreadpool) {
+        if (isVirtualThreads()) {
+            try {
+                return new BoundedExecutor((ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null), sizeThreadpool);
+            } catch (Exception e) {
+                LOGGER.error("Unable to create virtual thread executor, using thread pool", e);
+            }
+        }
+        return Executors.newFixedThreadPool(sizeThreadpool);
+    }
+
+    /**
+     * Returns a new, unstarted thread. Virtual threads are only used for daemon threads, 
+     * as virtual threads do not keep the JVM alive.
+     * 
+     * @param runnable
+     * @param daemon
+     * @return
+     */
+    public static Thread newThread(Runnable runnable, boolean daemon) {
+        if (daemon && isVirtualThreads()) {
+            try {
+                return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable);
+            } catch (Exception e) {
+                LOGGER.error("Unable to create virtual thread, using platform thread", e);
+            }
+        }
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
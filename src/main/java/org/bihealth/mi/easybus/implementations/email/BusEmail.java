@@ -22,6 +22,7 @@ import org.bihealth.mi.easybus.BusException;
 import org.bihealth.mi.easybus.BusMessage;
 import org.bihealth.mi.easybus.MessageFilter;
 import org.bihealth.mi.easybus.MessageManager;
+import org.bihealth.mi.easybus.ThreadManager;
 import org.bihealth.mi.easysmpc.resources.Resources;
 
 /**
@@ -75,6 +76,7 @@ public class BusEmail extends Bus {
         
         // Super
         super(sizeThreadpool);
+        this.setRetryPolicy(connection.getRetryPolicy());
         
         // Check
         if(millis <= 0) {
@@ -86,21 +88,21 @@ public class BusEmail extends Bus {
         messageManager = new MessageManager(maxMessageSize);
         
         // Create thread
-        this.thread = new Thread(new Runnable() {
+        this.thread = ThreadManager.newThread(new Runnable() {
             @Override
             public void run() {
                 try {
                     while (!stop) {
                         receiveEmails();
-                        Thread.sleep(millis);
+                        connection.waitForMessages(millis);
                     }
                 } catch (InterruptedException e) {
                     connection.close();
+                    connection.stopWaiting();
                     // Die silently
                 }
             }
-        });
-        thread.setDaemon(true);
+        }, true);
         thread.start();
     }
     
@@ -158,15 +160,13 @@ public class BusEmail extends Bus {
         // Shutdown executor
         getExecutor().shutdown();
         
-        // If on the same thread, just return
-        if (this.thread == null || Thread.currentThread().equals(this.thread)) {
-            return;
-        
         // If on another thread, interrupt and wait for thread to die
-        } else {
+        if (this.thread != null && !Thread.currentThread().equals(this.thread)) {
             
             // Stop thread
             this.thread.interrupt();
+            connection.stopWaiting();
+            connection.closeSending();
             
             // Wait for thread to stop
             while (thread != null && thread.isAlive()) {
@@ -177,6 +177,24 @@ public class BusEmail extends Bus {
                 }
             }
         }
+        
+        // Close connection when messages being processed have been deleted
+        whenProcessed(connection::close);
+    }
+    
+    /**
+     * Deletes a message which has been processed. Does not interleave with receiving, 
+     * which could otherwise pass on the message again.
+     * 
+     * @param message
+     */
+    private synchronized void delete(BusMessage message) {
+        try {
+            message.delete();
+            message.expunge();
+        } catch (BusException e) {
+            LOGGER.error("Unable to delete processed message", e);
+        }
     }
     
     /**
@@ -206,11 +224,11 @@ public class BusEmail extends Bus {
                 }
                 
                 // Process with message manager
-                BusMessage messageComplete = messageManager.mergeMessage(message);
+                BusMessage messageComplete = messageManager.mergeMessage(message, false);
                 
-                // Send to scope and participant
+                // Send to scope and participant and delete when processed
                 if (messageComplete != null) {
-                    receiveInternal(messageComplete);
+                    receiveInternal(messageComplete, () -> delete(messageComplete));
                 }
             }
         } catch (BusException e) {
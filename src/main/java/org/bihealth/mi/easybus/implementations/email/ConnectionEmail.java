@@ -14,7 +14,6 @@
 package org.bihealth.mi.easybus.implementations.email;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -32,6 +31,7 @@ import org.bihealth.mi.easybus.BusMessageFragment;
 import org.bihealth.mi.easybus.MessageFilter;
 import org.bihealth.mi.easybus.Participant;
 import org.bihealth.mi.easybus.PerformanceListener;
+import org.bihealth.mi.easybus.RetryPolicy;
 import org.bihealth.mi.easybus.Scope;
 
 import jakarta.mail.BodyPart;
@@ -58,6 +58,9 @@ public abstract class ConnectionEmail {
         /** Message */
         private final jakarta.mail.Message message;
 
+        /** UID of the message, -1 if unknown */
+        private final long                 uid;
+
         /** Text */
         private String                     text       = null;
 
@@ -67,12 +70,21 @@ public abstract class ConnectionEmail {
         /**
          * Creates a new instance
          * @param message
-         * @param folder
          */
         public ConnectionEmailMessage(jakarta.mail.Message message) {
+            this(message, -1);
+        }
+
+        /**
+         * Creates a new instance
+         * @param message
+         * @param uid - UID of the message, allows to delete it after the folder has been closed, -1 if unknown
+         */
+        public ConnectionEmailMessage(jakarta.mail.Message message, long uid) {
 
             // Store
             this.message = message;
+            this.uid = uid;
             long size = 0;
     
             try {
@@ -111,9 +123,8 @@ public abstract class ConnectionEmail {
          * @throws ClassNotFoundException 
          */
         private Object getObject(InputStream inputStream) throws IOException, ClassNotFoundException {
-            BufferedInputStream bufferedis = new BufferedInputStream(inputStream);
-            ByteArrayInputStream bis = new ByteArrayInputStream(bufferedis.readAllBytes());
-            ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(bis));
+            // Decode incrementally instead of reading the whole attachment into memory first
+            ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(inputStream)));
             Object result = ois.readObject();
             ois.close();
             return result;
@@ -123,25 +134,13 @@ public abstract class ConnectionEmail {
          * Deletes the message on the server
          */
         protected void delete() {
-            try {
-                message.setFlag(Flag.DELETED, true);
-            } catch (MessagingException e) {
-                LOGGER.debug("Delete failed logged", new Date(), "delete failed", ExceptionUtils.getStackTrace(e));
-                // Ignore, as this may be a result of non-transactional properties of the IMAP protocol
-            }
+            ConnectionEmail.this.delete(message, uid);
         }    
         /** 
          * Expunges all deleted messages on the server
          */
         protected void expunge() {
-            try {
-                if (message.getFolder() != null && message.getFolder().isOpen()) {
-                    message.getFolder().expunge();
-                }
-            } catch (MessagingException e) {
-                LOGGER.debug("Expunge failed logged", new Date(), "expunge failed", ExceptionUtils.getStackTrace(e));
-                // Ignore, as this may be a result of non-transactional properties of the IMAP protocol
-            }
+            ConnectionEmail.this.expunge(message);
         }        
     
         /**
@@ -264,6 +263,8 @@ public abstract class ConnectionEmail {
     private String              receivingUserName;
     /** Sending user name */
     private String              sendingUserName;
+    /** Policy for retrying failed sends */
+    private RetryPolicy         retryPolicy = RetryPolicy.DEFAULT;
     
     /**
      * Creates a new instance with same mail address to receive and to send
@@ -373,6 +374,48 @@ public abstract class ConnectionEmail {
         return sendingUserName;
     }
     
+    /**
+     * Waits until new e-mails may be available. Implementations may return early when new e-mails arrive.
+     * 
+     * @param millis - maximal time to wait
+     * @throws InterruptedException
+     */
+    protected void waitForMessages(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+    
+    /**
+     * Stops waiting for new e-mails and releases all resources used for this purpose
+     */
+    protected void stopWaiting() {
+        // Empty by design
+    }
+    
+    /**
+     * Returns the policy for retrying failed sends
+     * 
+     * @return
+     */
+    protected RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    
+    /**
+     * Sets the policy for retrying failed sends
+     * 
+     * @param retryPolicy
+     */
+    protected void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+    
+    /**
+     * Closes the connection used for sending e-mails, if any
+     */
+    protected void closeSending() {
+        // Empty by design
+    }
+    
     /**
      * Lists all relevant e-mails
      * @param filter
@@ -481,6 +524,37 @@ public abstract class ConnectionEmail {
     }
     
     
+    /**
+     * Deletes a message on the server
+     * 
+     * @param message
+     * @param uid - UID of the message, -1 if unknown
+     */
+    protected void delete(jakarta.mail.Message message, long uid) {
+        try {
+            message.setFlag(Flag.DELETED, true);
+        } catch (MessagingException e) {
+            LOGGER.debug("Delete failed logged", new Date(), "delete failed", ExceptionUtils.getStackTrace(e));
+            // Ignore, as this may be a result of non-transactional properties of the IMAP protocol
+        }
+    }
+
+    /**
+     * Expunges all deleted messages in the folder of the message on the server
+     * 
+     * @param message
+     */
+    protected void expunge(jakarta.mail.Message message) {
+        try {
+            if (message.getFolder() != null && message.getFolder().isOpen()) {
+                message.getFolder().expunge();
+            }
+        } catch (MessagingException e) {
+            LOGGER.debug("Expunge failed logged", new Date(), "expunge failed", ExceptionUtils.getStackTrace(e));
+            // Ignore, as this may be a result of non-transactional properties of the IMAP protocol
+        }
+    }
+    
     /**
      * Send message to participant
      * @param message
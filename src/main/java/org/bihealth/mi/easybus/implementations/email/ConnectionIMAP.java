@@ -18,8 +18,15 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
@@ -32,12 +39,18 @@ import org.bihealth.mi.easybus.MessageFilter;
 import org.bihealth.mi.easybus.PerformanceListener;
 import org.bihealth.mi.easysmpc.resources.Resources;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
 import jakarta.activation.DataHandler;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags.Flag;
 import jakarta.mail.Folder;
 import jakarta.mail.Message;
 import jakarta.mail.Message.RecipientType;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Multipart;
+import jakarta.mail.SendFailedException;
 import jakarta.mail.Session;
 import jakarta.mail.Store;
 import jakarta.mail.Transport;
@@ -46,6 +59,8 @@ import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SubjectTerm;
 import jakarta.mail.util.ByteArrayDataSource;
 
 /**
@@ -61,6 +76,8 @@ public class ConnectionIMAP extends ConnectionEmail {
     private static final String           FILENAME_MESSAGE = "message";
     /** Regex to check whether start of contains the e-mail subject prefix */
     private static Pattern                START_CONTAIN_PREFIX_PATTERN = Pattern.compile(".*" + EMAIL_SUBJECT_PREFIX.replace("[", "\\[") .replace("]", "\\]") + ".*");
+    /** Server-side search for e-mails of the bus */
+    private static final SearchTerm       SEARCH_TERM_PREFIX = new SubjectTerm(EMAIL_SUBJECT_PREFIX);
     /** Logger */
     private static final Logger           LOGGER           = LogManager.getLogger(ConnectionIMAP.class);
     /** Properties t o receive */
@@ -73,6 +90,8 @@ public class ConnectionIMAP extends ConnectionEmail {
     private Folder                        folder;
     /** Session to send e-mails */
     private Session                       sessionSending;
+    /** Connected transport, reused for sending e-mails */
+    private Transport                     transport;
     /** Session to receive e-mails */
     private Session                       sessionReceiving;
     /** Password of the user */
@@ -81,6 +100,27 @@ public class ConnectionIMAP extends ConnectionEmail {
     private transient PerformanceListener listener;
     /** Password of the sending user */
     private String                        sendingPassword;
+    /** UIDVALIDITY of the folder the UIDs below refer to */
+    private long                          uidValidity      = -1;
+    /** Highest UID seen so far */
+    private long                          lastUID          = 0;
+    /** Subjects of relevant e-mails seen so far, which may still be in the folder, by UID */
+    private final Map<Long, String>       candidates       = new LinkedHashMap<>();
+    /** Scheduler used to end waiting for e-mails */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "IMAP IDLE timeout");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /** Wait for e-mails with IMAP IDLE */
+    private final boolean                 idle;
+    /** Folder currently used to wait for e-mails, accessed when aborting from other threads */
+    private volatile IMAPFolder           folderWaiting;
+    /** Number of e-mails in the folder when last checked */
+    private int                           messageCountWaiting = -1;
    
     /**
      * Create a new instance
@@ -111,6 +151,8 @@ public class ConnectionIMAP extends ConnectionEmail {
         this.receivingPassword = settings.getIMAPPassword();
         this.sendingPassword = settings.getSMTPPassword();
         this.listener = settings.getPerformanceListener();
+        this.idle = settings.isIMAPIdle();
+        this.setRetryPolicy(settings.getRetryPolicy());
         
         // Search for proxy
         Pair<String, Integer> proxy = null;
@@ -193,17 +235,208 @@ public class ConnectionIMAP extends ConnectionEmail {
 
     @Override
     protected void close() {
-        try {
+        synchronized (propertiesReceiving) {
+            try {
+                if (folder != null && folder.isOpen()) {
+                    folder.close(false);
+                }
+                
+                if (store != null && store.isConnected()) {
+                    store.close();
+                }                        
+            } catch (MessagingException e) {
+                // Ignore
+                LOGGER.debug("Closing connection failed logged", new Date(), "Closing connection failed ", ExceptionUtils.getStackTrace(e));
+            }
+        }
+    }
+
+    /**
+     * Deletes a message by its UID, as the folder the message has been listed from may have been closed
+     * in the meantime. Reconnects if necessary.
+     */
+    @Override
+    protected void delete(Message message, long uid) {
+        
+        // Not listed by UID
+        if (uid < 0) {
+            super.delete(message, uid);
+            return;
+        }
+        
+        synchronized (propertiesReceiving) {
+            try {
+                IMAPFolder folder = getFolder();
+                if (folder.getUIDValidity() != uidValidity) {
+                    // UIDs are not valid anymore, the message will be listed again
+                    return;
+                }
+                Message current = folder.getMessageByUID(uid);
+                if (current != null) {
+                    current.setFlag(Flag.DELETED, true);
+                }
+            } catch (MessagingException | BusException e) {
+                LOGGER.debug("Delete failed logged", new Date(), "delete failed", ExceptionUtils.getStackTrace(e));
+                // Ignore, as this may be a result of non-transactional properties of the IMAP protocol
+            }
+        }
+    }
+
+    /**
+     * Expunges all deleted messages in the receiving folder. Reconnects if necessary.
+     */
+    @Override
+    protected void expunge(Message message) {
+        synchronized (propertiesReceiving) {
+            try {
+                getFolder().expunge();
+            } catch (MessagingException | BusException e) {
+                LOGGER.debug("Expunge failed logged", new Date(), "expunge failed", ExceptionUtils.getStackTrace(e));
+                // Ignore, as this may be a result of non-transactional properties of the IMAP protocol
+            }
+        }
+    }
+
+    /**
+     * Returns the receiving folder, connects and opens it if necessary. Must be called
+     * while holding the lock on the receiving properties.
+     * 
+     * @return
+     * @throws MessagingException
+     * @throws BusException
+     */
+    private IMAPFolder getFolder() throws MessagingException, BusException {
+        
+        // Connect store
+        if (store == null || !store.isConnected()) {
+            
+            // Create store
+            store = Session.getInstance(propertiesReceiving).getStore();
+            
+            // Connect store
+            store.connect(getReceivingUserName(), receivingPassword);
+            
             if (folder != null && folder.isOpen()) {
-                folder.close(false);
+                try {
+                    folder.close();
+                } catch (MessagingException e) {
+                    // Ignore
+                }
+            }
+            folder = null;
+        }
+        
+        // Create folder new if necessary
+        if (folder == null) {
+            folder = store.getFolder("INBOX");
+            if (!folder.exists()) {
+                folder = null;
+                throw new BusException("Unable to identify inbox folder of mail box");
+            }
+        }
+        
+        // Open folder
+        if (!folder.isOpen()) {
+            folder.open(Folder.READ_WRITE);
+            messageCountWaiting = -1;
+        }
+        
+        // Done
+        return (IMAPFolder) folder;
+    }
+    
+    /**
+     * Returns whether the number of e-mails has increased since the last call. Keeps the connection alive.
+     * 
+     * @param folder
+     * @return
+     * @throws MessagingException
+     */
+    private boolean isMessageCountIncreased(IMAPFolder folder) throws MessagingException {
+        int count = folder.getMessageCount();
+        boolean result = messageCountWaiting >= 0 && count > messageCountWaiting;
+        messageCountWaiting = count;
+        return result;
+    }
+    
+    /**
+     * Aborts waiting with IMAP IDLE by issuing another command
+     */
+    private void abortIdle() {
+        IMAPFolder folder = folderWaiting;
+        if (folder != null && folder.isOpen()) {
+            try {
+                folder.doCommand(protocol -> {
+                    protocol.simpleCommand("NOOP", null);
+                    return null;
+                });
+            } catch (MessagingException e) {
+                // Ignore
+                LOGGER.debug("Aborting IDLE failed logged", new Date(), "Aborting IDLE failed", ExceptionUtils.getStackTrace(e));
             }
+        }
+    }
+    
+    @Override
+    protected void stopWaiting() {
+        abortIdle();
+    }
+    
+    /**
+     * Waits until new e-mails arrive or the time has passed. Uses IMAP IDLE on the receiving folder if 
+     * supported by the server. Otherwise, checks for new e-mails in short intervals with NOOP commands.
+     * Listing e-mails from another thread in the meantime ends waiting.
+     */
+    @Override
+    protected void waitForMessages(long millis) throws InterruptedException {
+        
+        // Prepare
+        long end = System.currentTimeMillis() + millis;
+        
+        try {
             
-            if (store != null && store.isConnected()) {
-                store.close();
-            }                        
-        } catch (MessagingException e) {
-            // Ignore
-            LOGGER.debug("Closing connection failed logged", new Date(), "Closing connection failed ", ExceptionUtils.getStackTrace(e));
+            // Check for e-mails received since the last call
+            IMAPFolder folder;
+            synchronized (propertiesReceiving) {
+                folder = getFolder();
+                if (isMessageCountIncreased(folder)) {
+                    return;
+                }
+            }
+            
+            // Wait with IDLE, which returns when the server notifies about changes or when aborted
+            if (idle && ((IMAPStore) folder.getStore()).hasCapability("IDLE")) {
+                ScheduledFuture<?> timeout = SCHEDULER.schedule(this::abortIdle, millis, TimeUnit.MILLISECONDS);
+                folderWaiting = folder;
+                try {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        folder.idle(true);
+                    }
+                } finally {
+                    folderWaiting = null;
+                    timeout.cancel(false);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                return;
+            }
+            
+            // Wait with NOOP
+            while (System.currentTimeMillis() < end) {
+                Thread.sleep(Math.max(1, Math.min(Resources.INTERVAL_NOOP_IMAP, end - System.currentTimeMillis())));
+                synchronized (propertiesReceiving) {
+                    if (isMessageCountIncreased(getFolder())) {
+                        return;
+                    }
+                }
+            }
+            
+        } catch (MessagingException | BusException | IllegalStateException e) {
+            
+            // Fall back to plain waiting
+            LOGGER.debug("Waiting for e-mails failed logged", new Date(), "Waiting for e-mails failed", ExceptionUtils.getStackTrace(e));
+            super.waitForMessages(Math.max(0, end - System.currentTimeMillis()));
         }
     }
 
@@ -260,39 +493,7 @@ public class ConnectionIMAP extends ConnectionEmail {
             // Make sure we are ready to go
 
             try {
-        
-                
-                Session sessionReceiving = Session.getInstance(propertiesReceiving);
-                
-                if(store == null || !store.isConnected() ) {
-                    // Create store
-                    store = sessionReceiving.getStore();
-                    
-                    // Connect store
-                    store.connect(getReceivingUserName(), receivingPassword);
-                    
-                    if(folder != null && folder.isOpen()) {
-                        try {
-                            folder.close();
-                        } catch (MessagingException e) {
-                            // Ignore
-                        }
-                    }
-                }
-                
-                // Create folder new if necessary
-                if (folder == null) {
-                    folder = store.getFolder("INBOX");
-                    if (!folder.exists()) {
-                        throw new BusException("Unable to identify inbox folder of mail box");
-                    }
-                }
-                
-                // Open folder
-                if(!folder.isOpen()) {
-                    folder.open(Folder.READ_WRITE);
-                }
-    
+                getFolder();
             } catch (MessagingException e) {
                 throw new BusException("Error establishing or keeping alive connection to mail server", e);
             }
@@ -302,22 +503,52 @@ public class ConnectionIMAP extends ConnectionEmail {
             
             try {
                 
-                // Load messages
-                for (Message message : folder.getMessages()) {
-                    String subject = message.getSubject();
-                    long uid = ((UIDFolder)  folder).getUID(message);
-                    LOGGER.debug("Message considered logged", new Date(), "Message considered", uid, subject);
+                // Reset state if UIDs are not valid anymore
+                UIDFolder uidFolder = (UIDFolder) folder;
+                long validity = uidFolder.getUIDValidity();
+                if (validity != uidValidity) {
+                    uidValidity = validity;
+                    lastUID = 0;
+                    candidates.clear();
+                }
+                
+                // Determine new messages, as the range "n:*" always contains the last message
+                List<Message> received = new ArrayList<>();
+                long highestUID = lastUID;
+                for (Message message : uidFolder.getMessagesByUID(lastUID + 1, UIDFolder.LASTUID)) {
+                    long uid = uidFolder.getUID(message);
+                    if (uid > lastUID) {
+                        received.add(message);
+                        highestUID = Math.max(highestUID, uid);
+                    }
+                }
+                
+                // Let the server select new messages of the bus and load their headers in bulk
+                Message[] messages = new Message[0];
+                if (!received.isEmpty()) {
+                    messages = folder.search(SEARCH_TERM_PREFIX, received.toArray(new Message[received.size()]));
+                    FetchProfile profile = new FetchProfile();
+                    profile.add(FetchProfile.Item.ENVELOPE);
+                    profile.add(UIDFolder.FetchProfileItem.UID);
+                    folder.fetch(messages, profile);
+                }
+                lastUID = highestUID;
+                
+                // Remember relevant new messages
+                for (Message message : messages) {
+                    
                     // Check for interrupt
                     if (Thread.interrupted()) { 
                         throw new InterruptedException();
                     }
-
+                    
                     // Select relevant messages
                     try {
-                        if (START_CONTAIN_PREFIX_PATTERN.matcher(subject).matches() &&
-                                (filter == null || filter.accepts(subject))) {                                
-                                LOGGER.debug("Message received logged", new Date(), "Message received", uid, subject);
-                                result.add(new ConnectionEmailMessage(message));
+                        long uid = uidFolder.getUID(message);
+                        String subject = message.getSubject();
+                        LOGGER.debug("Message considered logged", new Date(), "Message considered", uid, subject);
+                        if (subject != null && START_CONTAIN_PREFIX_PATTERN.matcher(subject).matches()) {
+                            candidates.put(uid, subject);
                         }
                     } catch (Exception e) {
                         // Ignore, as this may be a result of non-transactional properties of the IMAP protocol
@@ -325,6 +556,38 @@ public class ConnectionIMAP extends ConnectionEmail {
                     }
                 }
                 
+                // Check which relevant messages still exist
+                if (!candidates.isEmpty()) {
+                    long[] uids = new long[candidates.size()];
+                    int index = 0;
+                    for (long uid : candidates.keySet()) {
+                        uids[index++] = uid;
+                    }
+                    messages = uidFolder.getMessagesByUID(uids);
+                    
+                    // Collect messages
+                    for (int i = 0; i < uids.length; i++) {
+                        
+                        // Check for interrupt
+                        if (Thread.interrupted()) { 
+                            throw new InterruptedException();
+                        }
+                        
+                        // Forget messages deleted in the meantime
+                        if (messages[i] == null) {
+                            candidates.remove(uids[i]);
+                            continue;
+                        }
+                        
+                        // Filter
+                        String subject = candidates.get(uids[i]);
+                        if (filter == null || filter.accepts(subject)) {
+                            LOGGER.debug("Message received logged", new Date(), "Message received", uids[i], subject);
+                            result.add(new ConnectionEmailMessage(messages[i], uids[i]));
+                        }
+                    }
+                }
+                
             } catch (MessagingException e) {
                 throw new BusException("Cannot read messages", e);
             }
@@ -337,55 +600,107 @@ public class ConnectionIMAP extends ConnectionEmail {
     @Override
     protected void send(String recipient, String subject, String body, Object attachment) throws BusException {
 
-        synchronized(propertiesSending) {
-    
-            // Make sure we are ready to go
-            if (sessionSending == null) {
-                sessionSending = Session.getInstance(propertiesSending, null);
+        try {
+            
+            // Create message
+            MimeMessage email = new MimeMessage(getSessionSending());
+           
+            // Add sender and recipient
+            email.setRecipient(RecipientType.TO, new InternetAddress(recipient));
+            email.setSender(new InternetAddress(getSendingEmailAddress()));
+            email.setFrom(new InternetAddress(getSendingEmailAddress()));
+            email.setSubject(subject);
+            
+            // Add body
+            MimeBodyPart mimeBodyPart = new MimeBodyPart();
+            mimeBodyPart.setDisposition(MimeBodyPart.INLINE);
+            mimeBodyPart.setContent(body, "text/plain");
+            Multipart multipart = new MimeMultipart();
+            multipart.addBodyPart(mimeBodyPart);
+
+            // Add attachment
+            long attachmentSize = 0;
+            if (attachment != null) {
+                mimeBodyPart = new MimeBodyPart();
+                mimeBodyPart.setDisposition(MimeBodyPart.ATTACHMENT);
+                byte[] attachmentBytes = getByteArrayOutputStream(attachment);
+                mimeBodyPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachmentBytes, "application/octet-stream")));
+                mimeBodyPart.setFileName(FILENAME_MESSAGE);
+                multipart.addBodyPart(mimeBodyPart);
+                attachmentSize = attachmentBytes.length;
             }
+            
+            // Compose message
+            email.setContent(multipart);
+            email.saveChanges();
+
+            // Send over the connected transport
+            synchronized (propertiesSending) {
+                try {
+                    getTransport().sendMessage(email, email.getAllRecipients());
+                } catch (SendFailedException e) {
+                    // Recipient was rejected, the connection is still fine
+                    throw e;
+                } catch (MessagingException e) {
+                    // Reconnect and try again once
+                    LOGGER.debug("Send failed logged", new Date(), "Send failed, reconnecting", ExceptionUtils.getStackTrace(e));
+                    closeSending();
+                    getTransport().sendMessage(email, email.getAllRecipients());
+                }
+            }
+            if (listener != null) {
+                listener.messageSent(attachmentSize);
+            }
+            LOGGER.debug("Message sent logged", new Date(), "Message sent", subject);
+        } catch (Exception e) {
+            throw new BusException("Unable to send message", e);
+        }
+    }
     
+    @Override
+    protected void closeSending() {
+        synchronized (propertiesSending) {
             try {
-                
-                // Create message
-                MimeMessage email = new MimeMessage(sessionSending);
-               
-                // Add sender and recipient
-                email.setRecipient(RecipientType.TO, new InternetAddress(recipient));
-                email.setSender(new InternetAddress(getSendingEmailAddress()));
-                email.setFrom(new InternetAddress(getSendingEmailAddress()));
-                email.setSubject(subject);
-                
-                // Add body
-                MimeBodyPart mimeBodyPart = new MimeBodyPart();
-                mimeBodyPart.setDisposition(MimeBodyPart.INLINE);
-                mimeBodyPart.setContent(body, "text/plain");
-                Multipart multipart = new MimeMultipart();
-                multipart.addBodyPart(mimeBodyPart);
-    
-                // Add attachment
-                long attachmentSize = 0;
-                if (attachment != null) {
-                    mimeBodyPart = new MimeBodyPart();
-                    mimeBodyPart.setDisposition(MimeBodyPart.ATTACHMENT);
-                    byte[] attachmentBytes = getByteArrayOutputStream(attachment);
-                    mimeBodyPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachmentBytes, "application/octet-stream")));
-                    mimeBodyPart.setFileName(FILENAME_MESSAGE);
-                    multipart.addBodyPart(mimeBodyPart);
-                    attachmentSize = attachmentBytes.length;
+                if (transport != null && transport.isConnected()) {
+                    transport.close();
                 }
-                
-                // Compose message
-                email.setContent(multipart);
+            } catch (MessagingException e) {
+                // Ignore
+                LOGGER.debug("Closing connection failed logged", new Date(), "Closing connection failed ", ExceptionUtils.getStackTrace(e));
+            } finally {
+                transport = null;
+            }
+        }
+    }
     
-                // Send
-                Transport.send(email, getSendingUserName(), sendingPassword);
-                if (listener != null) {
-                    listener.messageSent(attachmentSize);
-                }
-                LOGGER.debug("Message sent logged", new Date(), "Message sent", subject);
-            } catch (Exception e) {
-                throw new BusException("Unable to send message", e);
+    /**
+     * Returns the session used for sending, creates it if necessary
+     * 
+     * @return
+     */
+    private Session getSessionSending() {
+        synchronized (propertiesSending) {
+            if (sessionSending == null) {
+                sessionSending = Session.getInstance(propertiesSending, null);
+            }
+            return sessionSending;
+        }
+    }
+    
+    /**
+     * Returns a connected transport, connects if necessary
+     * 
+     * @return
+     * @throws MessagingException
+     */
+    private Transport getTransport() throws MessagingException {
+        synchronized (propertiesSending) {
+            if (transport == null || !transport.isConnected()) {
+                closeSending();
+                transport = getSessionSending().getTransport();
+                transport.connect(getSendingUserName(), sendingPassword);
             }
+            return transport;
         }
     }
-}
\ No newline at end of file
+}
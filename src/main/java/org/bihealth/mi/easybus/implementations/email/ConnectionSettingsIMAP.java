@@ -138,6 +138,8 @@ public class ConnectionSettingsIMAP extends ConnectionSettings {
     private int                           checkInterval;
     /** E-mail send timeout in milliseconds */
     private int                           emailSendTimeout;
+    /** Do not wait for new e-mails with IMAP IDLE */
+    private boolean                       idleDisabled         = false;
 
     /**
      * Creates a new instance with same mail address for sending and receiving
@@ -476,6 +478,14 @@ public class ConnectionSettingsIMAP extends ConnectionSettings {
 		return this.searchForProxy;
 	}
 
+    /**
+     * Wait for new e-mails with IMAP IDLE, if supported by the server?
+     * @return
+     */
+    public boolean isIMAPIdle() {
+        return !idleDisabled;
+    }
+
     /**
      * Is ssl/tls or startls used for IMAP connection?
      * @return the ssltlsIMAP
@@ -587,6 +597,16 @@ public class ConnectionSettingsIMAP extends ConnectionSettings {
     	return this;
     }
     
+    /**
+     * Wait for new e-mails with IMAP IDLE, if supported by the server
+     * @param idle
+     * @return
+     */
+    public ConnectionSettingsIMAP setIMAPIdle(boolean idle) {
+        this.idleDisabled = !idle;
+        return this;
+    }
+    
     /**
      * Search for proxy
      * @param search
@@ -10,7 +10,6 @@ import org.bihealth.mi.easybus.implementations.http.easybackend.ConnectionSettin
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.client.WebTarget;
 import jakarta.ws.rs.core.Form;
@@ -146,7 +145,7 @@ public class HTTPAuthentication {
         }
         
         // Prepare
-        WebTarget target = ClientBuilder.newClient().target(authEndpoint);
+        WebTarget target = HTTPClientPool.getDefaultClient().target(authEndpoint);
         
         // Try to authenticate and obtain data
         try {
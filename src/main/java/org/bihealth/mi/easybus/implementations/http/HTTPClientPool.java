@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus.implementations.http;
+
+import java.lang.ref.Cleaner;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.bihealth.mi.easybus.implementations.http.easybackend.ConnectionSettingsEasyBackend;
+import org.bihealth.mi.easysmpc.resources.Resources;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+
+/**
+ * Provides shared HTTP clients. Creating a client is expensive and connections are only kept
+ * alive and reused within the same client, hence clients are created once per connection settings.
+ * Each client owns its own connection pool, which is closed when the client is released by
+ * all users or when the settings are no longer referenced.
+ *
+ * @author agent
+ */
+public class HTTPClientPool {
+
+    /**
+     * A client and the number of users holding it
+     *
+     * @author agent
+     */
+    private static class PooledClient {
+
+        /** Client */
+        private final Client client;
+        /** Number of users */
+        private int          references;
+
+        /**
+         * Creates a new instance
+         *
+         * @param client
+         */
+        private PooledClient(Client client) {
+            this.client = client;
+        }
+    }
+
+    /** Closes clients of settings which have been garbage collected */
+    private static final Cleaner                                          CLEANER = Cleaner.create();
+    /** Clients by settings, released when the settings are no longer used */
+    private static final Map<ConnectionSettingsEasyBackend, PooledClient> CLIENTS = new WeakHashMap<>();
+    /** Default client */
+    private static Client                                                 defaultClient;
+
+    /**
+     * Returns the shared client for the given settings. Each call must be matched
+     * by a call to releaseClient() when the client is no longer needed.
+     *
+     * @param settings
+     * @return
+     */
+    public static synchronized Client getClient(ConnectionSettingsEasyBackend settings) {
+
+        // Create client if necessary
+        PooledClient pooled = CLIENTS.get(settings);
+        if (pooled == null) {
+            Client client = createClient(settings.getConnectionPoolSize(), settings.getRequestTimeout());
+            pooled = new PooledClient(client);
+            CLIENTS.put(settings, pooled);
+
+            // The action must not reference the settings, otherwise they are never collected
+            CLEANER.register(settings, client::close);
+        }
+
+        // Count and return
+        pooled.references++;
+        return pooled.client;
+    }
+
+    /**
+     * Releases the shared client for the given settings. The client and its connections
+     * are closed when it is no longer used.
+     *
+     * @param settings
+     */
+    public static synchronized void releaseClient(ConnectionSettingsEasyBackend settings) {
+        PooledClient pooled = CLIENTS.get(settings);
+        if (pooled != null && --pooled.references <= 0) {
+            CLIENTS.remove(settings);
+            pooled.client.close();
+        }
+    }
+
+    /**
+     * Returns a shared client with default settings
+     *
+     * @return
+     */
+    public static synchronized Client getDefaultClient() {
+        if (defaultClient == null) {
+            defaultClient = createClient(Resources.HTTP_CONNECTION_POOL_SIZE_DEFAULT, Resources.TIMEOUT_EASYBACKEND);
+        }
+        return defaultClient;
+    }
+
+    /**
+     * Creates a new client
+     *
+     * @param poolSize number of connections kept alive per destination
+     * @param timeout connect and read timeout in milliseconds
+     * @return
+     */
+    private static Client createClient(int poolSize, int timeout) {
+
+        // Connection pool, closed together with the client
+        PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager();
+        manager.setMaxTotal(poolSize);
+        manager.setDefaultMaxPerRoute(poolSize);
+
+        // Configure
+        ClientConfig config = new ClientConfig();
+        config.connectorProvider(new ApacheConnectorProvider());
+        config.property(ApacheClientProperties.CONNECTION_MANAGER, manager);
+        config.property(ClientProperties.CONNECT_TIMEOUT, timeout);
+        config.property(ClientProperties.READ_TIMEOUT, timeout);
+
+        // Create
+        return ClientBuilder.newClient(config);
+    }
+}
@@ -3,9 +3,14 @@ package org.bihealth.mi.easybus.implementations.http;
 import java.net.URI;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import jakarta.ws.rs.client.ClientBuilder;
+import org.glassfish.jersey.client.ClientProperties;
+
+import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.client.Invocation;
 import jakarta.ws.rs.client.Invocation.Builder;
 import jakarta.ws.rs.client.WebTarget;
 import jakarta.ws.rs.core.MediaType;
@@ -48,6 +53,8 @@ public class HTTPRequest {
     private final HTTPMediaType       bodyMediaType;
     /** Parameter*/
     private final Map<String, String> parameters;
+    /** Client */
+    private final Client              client;
     
     /**
      * Creates a new instance
@@ -103,6 +110,7 @@ public class HTTPRequest {
         this.bodyMediaType =  bodyMediaType != null ? bodyMediaType : 
                               (requestType == HTTPRequestType.POST || requestType == HTTPRequestType.PUT ? HTTPMediaType.APPLICATION_JSON : HTTPMediaType.TEXT_PLAIN);
         this.parameters = null;
+        this.client = HTTPClientPool.getDefaultClient();
     }
     
     /**
@@ -122,6 +130,28 @@ public class HTTPRequest {
                        String body,
                        HTTPMediaType bodyMediaType,
                        Map<String, String> parameters) {
+        this(server, path, requestType, authToken, body, bodyMediaType, parameters, HTTPClientPool.getDefaultClient());
+    }
+    
+    /**
+     * Creates a new instance
+     * @param server
+     * @param path
+     * @param requestType
+     * @param authToken
+     * @param body
+     * @param bodyMediaType
+     * @param parameters
+     * @param client shared client to use
+     */
+    public HTTPRequest(URI server,
+                       String path,
+                       HTTPRequestType requestType,
+                       String authToken,
+                       String body,
+                       HTTPMediaType bodyMediaType,
+                       Map<String, String> parameters,
+                       Client client) {
         
         this.server = server;
         this.path = path;
@@ -132,6 +162,7 @@ public class HTTPRequest {
                 : requestType == HTTPRequestType.POST || requestType == HTTPRequestType.PUT ? 
                         HTTPMediaType.APPLICATION_JSON : HTTPMediaType.TEXT_PLAIN;
         this.parameters = parameters;
+        this.client = client;
     }
     
     /**
@@ -139,10 +170,48 @@ public class HTTPRequest {
      * @return
      */
     public String execute() {
+        return getResult(createInvocation().invoke());
+    }
+    
+    /**
+     * Execute request. In contrast to execute() waiting for the response can be interrupted,
+     * which is required for long-running requests.
+     * 
+     * @param readTimeout timeout in milliseconds, if zero the timeout of the client is used
+     * @return
+     * @throws InterruptedException
+     */
+    public String executeInterruptibly(int readTimeout) throws InterruptedException {
+        
+        // Prepare
+        Invocation invocation = createInvocation();
+        if (readTimeout > 0) {
+            invocation.property(ClientProperties.READ_TIMEOUT, readTimeout);
+        }
+        
+        // Execute request
+        Future<Response> future = invocation.submit();
+        try {
+            return getResult(future.get());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new HTTPException("Error executing request", e);
+        }
+    }
+    
+    /**
+     * Creates the invocation
+     * @return
+     */
+    private Invocation createInvocation() {
         
         // Create target
-        // TODO: newClient might be expensive? Use one client?
-        WebTarget target = ClientBuilder.newClient().target(server).path(path);
+        WebTarget target = client.target(server).path(path);
         if (parameters != null && !parameters.isEmpty()) {
             for (Entry<String, String> parameter : parameters.entrySet()) {
                 target = target.queryParam(parameter.getKey(), parameter.getValue());
@@ -167,37 +236,44 @@ public class HTTPRequest {
             throw new IllegalStateException("Unknown media type");
         }
         
-        // Execute request
-        Response response = null;
+        // Create request
         switch (requestType) {
         case GET:
-            response = builder.get(Response.class);
-            break;
+            return builder.build("GET");
         case POST:
             if (body == null || type == null) {
                 throw new IllegalArgumentException("Body and media type must not be null");
             }
-            response =  builder.post(Entity.entity(body, type));
-            break;
+            return builder.build("POST", Entity.entity(body, type));
         case PUT:
             if (body == null || type == null) {
                 throw new IllegalArgumentException("Body and media type must not be null");
             }
-            response =  builder.put(Entity.entity(body, type));
-            break;
+            return builder.build("PUT", Entity.entity(body, type));
         case DELETE:
-            response =  builder.delete(Response.class);
-            break;
+            return builder.build("DELETE");
         default:
             throw new IllegalStateException("Unknown request type");
         }
+    }
+    
+    /**
+     * Returns the result
+     * @param response
+     * @return
+     */
+    private String getResult(Response response) {
         
-        // Catch errors
-        if (response.getStatus() < 200 || response.getStatus() >= 300) {
-            throw new HTTPException("Error executing request with status code " + response.getStatus(), response.getStatus());
+        // Catch errors, response is closed to release the connection for reuse
+        try {
+            if (response.getStatus() < 200 || response.getStatus() >= 300) {
+                throw new HTTPException("Error executing request with status code " + response.getStatus(), response.getStatus());
+            }
+            
+            // Done
+            return response.readEntity(String.class);
+        } finally {
+            response.close();
         }
-        
-        // Done
-        return response.readEntity(String.class);
     }
 }
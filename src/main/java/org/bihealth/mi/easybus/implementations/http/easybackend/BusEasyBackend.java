@@ -21,8 +21,14 @@ import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -37,16 +43,21 @@ import org.bihealth.mi.easybus.MessageManager;
 import org.bihealth.mi.easybus.Participant;
 import org.bihealth.mi.easybus.PerformanceListener;
 import org.bihealth.mi.easybus.Scope;
+import org.bihealth.mi.easybus.ThreadManager;
 import org.bihealth.mi.easybus.implementations.http.HTTPAuthentication;
+import org.bihealth.mi.easybus.implementations.http.HTTPClientPool;
 import org.bihealth.mi.easybus.implementations.http.HTTPException;
 import org.bihealth.mi.easybus.implementations.http.HTTPRequest;
 import org.bihealth.mi.easybus.implementations.http.HTTPRequest.HTTPRequestType;
+import org.bihealth.mi.easysmpc.resources.Resources;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import jakarta.ws.rs.client.Client;
+
 /**
  * Bus implementation with easybackend
  * 
@@ -59,10 +70,24 @@ public class BusEasyBackend extends Bus {
     private static final String      PATH_SEND_MESSAGE_PATTERN   = "api/easybackend/send/%s/%s";
     /** Path to receive messages */
     private static final String      PATH_GET_MESSAGES_PATTERN   = "api/easybackend/receive/%s";
+    /** Path to receive messages for several scopes */
+    private static final String      PATH_GET_MESSAGES_ALL       = "api/easybackend/receive";
     /** Delete message */
     private static final String      PATH_DELETE_MESSAGE_PATTERN = "api/easybackend/message/%s";
     /** Purge all messages */
     private static final String      PATH_PURGE_PATTERN          = "api/easybackend/message";
+    /** Send several messages */
+    private static final String      PATH_SEND_MESSAGES_PATTERN  = "api/easybackend/send/%s/%s/batch";
+    /** Delete several messages */
+    private static final String      PATH_DELETE_MESSAGES        = "api/easybackend/message/delete";
+    /** Capabilities of the server */
+    private static final String      PATH_CAPABILITIES           = "api/easybackend/capabilities";
+    /** Wait for new messages. The server responds as soon as messages are available or the timeout is reached. */
+    private static final String      PATH_WAIT                   = "api/easybackend/wait";
+    /** Parameter for the time to wait in milliseconds */
+    private static final String      PARAMETER_TIMEOUT           = "timeout";
+    /** Capability to send and delete several messages at once */
+    private static final String      CAPABILITY_BATCH            = "batch";
     /** Logger */
     private Logger                   LOGGER                      = LogManager.getLogger(BusEasyBackend.class);
     /** Thread */
@@ -83,6 +108,24 @@ public class BusEasyBackend extends Bus {
     private final Participant        self;
     /** Performance listener */
     private PerformanceListener      listener                    = null;
+    /** Settings */
+    private final ConnectionSettingsEasyBackend settings;
+    /** Shared HTTP client */
+    private final Client             client;
+    /** Whether to wait for messages with long-running requests */
+    private final boolean            longPolling;
+    /** Timeout of requests */
+    private final int                requestTimeout;
+    /** Whether the server supports waiting for messages, null if unknown */
+    private volatile Boolean         longPollingSupported        = null;
+    /** Whether the server supports receiving for several scopes at once, null if unknown */
+    private volatile Boolean         multiScopeSupported         = null;
+    /** Whether the server supports batch operations, null if unknown */
+    private Boolean                  batchSupported              = null;
+    /** Messages to be deleted with the next batch */
+    private final List<BigInteger>   pendingDeletes              = new ArrayList<>();
+    /** Lock held while receiving and while deleting processed messages */
+    private final Object             lockReceiving               = new Object();
     
     /**
      * Creates a new instance
@@ -100,6 +143,11 @@ public class BusEasyBackend extends Bus {
         this.auth = new HTTPAuthentication(settings);
         this.self = self;
         this.listener = settings.getListener();
+        this.settings = settings;
+        this.client = HTTPClientPool.getClient(settings);
+        this.longPolling = settings.isLongPolling();
+        this.requestTimeout = settings.getRequestTimeout();
+        this.setRetryPolicy(settings.getRetryPolicy());
         try {
             this.server = settings.getAPIServer().toURI();
         } catch (URISyntaxException e) {
@@ -109,27 +157,28 @@ public class BusEasyBackend extends Bus {
         
         // TODO Parts of this implementation might be pulled up to Bus, when making receive() abstract in Bus. Do so?
         // Create thread
-        this.thread = new Thread(new Runnable() {
+        this.thread = ThreadManager.newThread(new Runnable() {
             @Override
             public void run() {
                 try {
                     while (!stop) {
                         try {
-                            receive();
+                            synchronized (lockReceiving) {
+                                receive();
+                            }
                         } catch (BusException e) {
                             // Log exception
                             LOGGER.error("Error receiving messages", e);
                         }
-                        Thread.sleep(millis);
+                        waitForMessages(millis);
                     }
                 } catch (InterruptedException e) {
                     // Die silently
                 }
             }
-        });
+        }, true);
         
         // Start thread
-        thread.setDaemon(true);
         thread.start();
     }
 
@@ -144,17 +193,26 @@ public class BusEasyBackend extends Bus {
         // Log
         LOGGER.debug("Started receiving");
         
+        // Receive for all scopes at once
+        List<String> scopes = getScopesForParticipant(self);
+        if (!scopes.isEmpty() && !Boolean.FALSE.equals(multiScopeSupported)) {
+            String resultString = receiveAll(scopes);
+            if (resultString != null) {
+                processMessages(resultString);
+                return;
+            }
+        }
+        
         // Loop over scopes
-        for (String scope : getScopesForParticipant(self)) {
+        for (String scope : scopes) {
 
             // Prepare
             String resultString = null;
-            Iterator<JsonNode> messages;
             Exception exception = null;
             
             // Get messages as plain string
             try {
-                resultString = new HTTPRequest(server, String.format(PATH_GET_MESSAGES_PATTERN, scope), HTTPRequestType.GET, getToken() , null).execute();
+                resultString = new HTTPRequest(server, String.format(PATH_GET_MESSAGES_PATTERN, scope), HTTPRequestType.GET, getToken() , null, null, null, client).execute();
             } catch (HTTPException e) {
 
                 // If error reason was unauthenticated, re-authenticate and retry
@@ -165,7 +223,7 @@ public class BusEasyBackend extends Bus {
                     renewToken();
                     try {
                         // Retry
-                        resultString = new HTTPRequest(server, String.format(PATH_GET_MESSAGES_PATTERN, scope), HTTPRequestType.GET, getToken() , null).execute();
+                        resultString = new HTTPRequest(server, String.format(PATH_GET_MESSAGES_PATTERN, scope), HTTPRequestType.GET, getToken() , null, null, null, client).execute();
                         exception = null;
                     } catch (Exception e1) {
                         // Error still exists
@@ -187,49 +245,92 @@ public class BusEasyBackend extends Bus {
                 throw new InterruptedException();
             }
 
-            // Map result string to JSON
+            // Process
+            processMessages(resultString);
+        }
+    }
+
+    /**
+     * Processes the messages contained in a result string
+     * 
+     * @param resultString
+     * @throws BusException
+     * @throws InterruptedException
+     */
+    private void processMessages(String resultString) throws BusException, InterruptedException {
+        
+        // Prepare
+        Iterator<JsonNode> messages;
+        
+        // Map result string to JSON
+        try {
+            messages = mapper.reader().readTree(resultString).elements();
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Error deserializing sync string!", e);
+            return;
+        }
+
+        // Loop over messages in JSON node
+        while(messages.hasNext()) {
+            
+            // Check for interrupt
+            if (Thread.interrupted()) { 
+                throw new InterruptedException();
+            }
+            
+            // Prepare
+            JsonNode messagesNode = messages.next();
+            final BusMessage message;
+            
+            // Recreate message
             try {
-                messages = mapper.reader().readTree(resultString).elements();
-            } catch (JsonProcessingException e) {
-                LOGGER.error("Error deserializing sync string!", e);
+                message = recreateMessage(messagesNode);
+            } catch (BusException e) {
+                LOGGER.error("Unable to recreate message!", e);
                 continue;
             }
 
-            // Loop over messages in JSON node
-            while(messages.hasNext()) {
-                
-                // Check for interrupt
-                if (Thread.interrupted()) { 
-                    throw new InterruptedException();
-                }
+            // Process with message manager
+            BusMessage messageComplete = messageManager.mergeMessage(message, false);
+
+            // Send to scope and participant
+            if (messageComplete != null) {
                 
-                // Prepare
-                JsonNode messagesNode = messages.next();
-                final BusMessage message;
+                // Delete all fragments at once when processed
+                receiveInternal(messageComplete, () -> delete(messageComplete));
                 
-                // Recreate message
-                try {
-                    message = recreateMessage(messagesNode);
-                } catch (BusException e) {
-                    LOGGER.error("Unable to recreate message!", e);
-                    continue;
+                // Record
+                if(listener != null) {
+                    // TODO Determine and use correct size of received message
+                    listener.messageReceived(0);
                 }
+            }
+        }
+    }
 
-                // Process with message manager
-                BusMessage messageComplete = messageManager.mergeMessage(message);
-
-                // Send to scope and participant
-                if (messageComplete != null) {
-                    receiveInternal(messageComplete);
-                    
-                    // Record
-                    if(listener != null) {
-                        // TODO Determine and use correct size of received message
-                        listener.messageReceived(0);
-                    }
-                }
+    /**
+     * Receives messages for all given scopes with a single request
+     * 
+     * @param scopes
+     * @return the result string or null if not possible
+     */
+    private String receiveAll(List<String> scopes) {
+        try {
+            String result = execute(PATH_GET_MESSAGES_ALL, HTTPRequestType.POST, mapper.writeValueAsString(scopes));
+            multiScopeSupported = true;
+            return result;
+        } catch (HTTPException e) {
+            if (e.getStatusCode() == 404 || e.getStatusCode() == 405) {
+                // Older servers only support receiving per scope
+                LOGGER.info("Receiving for several scopes not supported by server - receiving per scope");
+                multiScopeSupported = false;
+            } else {
+                LOGGER.error("Unable to get messages for " + self.getEmailAddress(), e);
             }
+        } catch (JsonProcessingException | RuntimeException e) {
+            LOGGER.error("Unable to get messages for " + self.getEmailAddress(), e);
         }
+        return null;
     }
 
     /**
@@ -262,7 +363,7 @@ public class BusEasyBackend extends Bus {
                 
                 @Override
                 public void delete() throws BusException {
-                   deleteMessage(id);
+                   deleteMessageLater(id);
                 }
                 @Override
                 public void expunge() throws BusException {
@@ -275,7 +376,7 @@ public class BusEasyBackend extends Bus {
                 private static final long serialVersionUID = -2294147098332533758L;
                 @Override
                 public void delete() throws BusException {
-                    deleteMessage(id);
+                    deleteMessageLater(id);
                 }
                 @Override
                 public void expunge() throws BusException {
@@ -298,7 +399,7 @@ public class BusEasyBackend extends Bus {
         
         try {
             // Delete message
-             new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null).execute();
+             new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null, null, null, client).execute();
         } catch (HTTPException e) {
 
             // If error reason was unauthenticated, re-authenticate and retry
@@ -309,7 +410,7 @@ public class BusEasyBackend extends Bus {
                 renewToken();
                 try {
                     // Re-try
-                    new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null).execute();
+                    new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null, null, null, client).execute();
                     exception = null;
                 } catch (Exception e1) {
                     // Still exception
@@ -326,6 +427,152 @@ public class BusEasyBackend extends Bus {
         }
     }
 
+    /**
+     * Waits until new messages may be available. If supported by the server, a long-running request
+     * returns as soon as messages arrive. Otherwise, waits for the given interval.
+     * 
+     * @param millis
+     * @throws InterruptedException
+     */
+    private void waitForMessages(long millis) throws InterruptedException {
+        
+        // Wait for server
+        if (longPolling && !Boolean.FALSE.equals(longPollingSupported)) {
+            try {
+                long start = System.currentTimeMillis();
+                Map<String, String> parameters = Collections.singletonMap(PARAMETER_TIMEOUT, String.valueOf(Resources.LONG_POLL_TIMEOUT_EASYBACKEND));
+                new HTTPRequest(server, PATH_WAIT, HTTPRequestType.GET, getToken(), null, null, parameters, client).executeInterruptibly(Resources.LONG_POLL_TIMEOUT_EASYBACKEND + requestTimeout);
+                longPollingSupported = true;
+                
+                // Avoid busy waiting if the server keeps answering immediately, e.g., due to incomplete messages
+                Thread.sleep(Math.max(0, Resources.LONG_POLL_MIN_INTERVAL_EASYBACKEND - (System.currentTimeMillis() - start)));
+                return;
+            } catch (HTTPException e) {
+                if (e.getStatusCode() == 404 || e.getStatusCode() == 405) {
+                    // Older servers do not support waiting
+                    LOGGER.info("Waiting for messages not supported by server - falling back to polling");
+                    longPollingSupported = false;
+                } else if (e.getStatusCode() == 401) {
+                    // Re-authenticate and receive again
+                    renewToken();
+                    return;
+                } else {
+                    LOGGER.warn("Unable to wait for messages - polling", e);
+                }
+            } catch (RuntimeException e) {
+                // E.g., connection errors
+                LOGGER.warn("Unable to wait for messages - polling", e);
+            }
+        }
+        
+        // Poll
+        Thread.sleep(millis);
+    }
+    
+    /**
+     * Deletes a message which has been processed. Does not interleave with receiving, 
+     * which could otherwise pass on the message again.
+     * 
+     * @param message
+     */
+    private void delete(BusMessage message) {
+        synchronized (lockReceiving) {
+            try {
+                message.delete();
+                message.expunge();
+                deletePendingMessages();
+            } catch (BusException e) {
+                LOGGER.error("Unable to delete processed message", e);
+            }
+        }
+    }
+    
+    /**
+     * Marks a message for deletion with the next batch
+     * 
+     * @param id
+     */
+    private void deleteMessageLater(BigInteger id) {
+        synchronized (pendingDeletes) {
+            pendingDeletes.add(id);
+        }
+    }
+    
+    /**
+     * Deletes all messages marked for deletion. Uses a single request if supported by the server.
+     */
+    protected void deletePendingMessages() {
+        
+        // Prepare
+        List<BigInteger> ids;
+        synchronized (pendingDeletes) {
+            ids = new ArrayList<>(pendingDeletes);
+            pendingDeletes.clear();
+        }
+        
+        // Delete at once
+        if (ids.size() > 1 && isBatchSupported()) {
+            try {
+                execute(PATH_DELETE_MESSAGES, HTTPRequestType.POST, mapper.writeValueAsString(ids));
+                return;
+            } catch (Exception e) {
+                LOGGER.warn("Unable to delete messages at once - deleting one by one", e);
+            }
+        }
+        
+        // Delete one by one
+        for (BigInteger id : ids) {
+            deleteMessage(id);
+        }
+    }
+    
+    /**
+     * Executes a request and retries once after re-authenticating if unauthenticated
+     * 
+     * @param path
+     * @param type
+     * @param body
+     * @return the result
+     * @throws HTTPException
+     */
+    private String execute(String path, HTTPRequestType type, String body) throws HTTPException {
+        try {
+            return new HTTPRequest(server, path, type, getToken(), body, null, null, client).execute();
+        } catch (HTTPException e) {
+            
+            // Exception reason was not unauthenticated
+            if (e.getStatusCode() != 401) {
+                throw e;
+            }
+            
+            // Re-authenticate and retry
+            LOGGER.warn("Unathenticated at API server - retrying");
+            renewToken();
+            return new HTTPRequest(server, path, type, getToken(), body, null, null, client).execute();
+        }
+    }
+    
+    /**
+     * Returns whether the server supports sending and deleting several messages with one request
+     * 
+     * @return
+     */
+    private synchronized boolean isBatchSupported() {
+        
+        // Determine once
+        if (batchSupported == null) {
+            try {
+                batchSupported = mapper.reader().readTree(execute(PATH_CAPABILITIES, HTTPRequestType.GET, null)).path(CAPABILITY_BATCH).asBoolean(false);
+            } catch (Exception e) {
+                // Older servers do not advertise capabilities
+                batchSupported = false;
+            }
+        }
+        
+        // Done
+        return batchSupported;
+    }
+
     @Override
     public boolean isAlive() {
         return this.thread != null && this.thread.isAlive();
@@ -335,11 +582,17 @@ public class BusEasyBackend extends Bus {
     public void stop() {
 
         // Set stop flag
+        boolean stopped = this.stop;
         this.stop = true;
 
         // Shutdown executor
         getExecutor().shutdown();
 
+        // Release client once
+        if (!stopped) {
+            releaseClient();
+        }
+
         // If on the same thread, just return
         if (this.thread == null || Thread.currentThread().equals(this.thread)) {
             return;
@@ -361,14 +614,36 @@ public class BusEasyBackend extends Bus {
         }
     }
 
+    /**
+     * Releases the shared client after pending messages have been sent and messages being processed have been deleted
+     */
+    private void releaseClient() {
+        ThreadManager.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getExecutor().awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Release anyway
+                }
+                whenProcessed(() -> HTTPClientPool.releaseClient(settings));
+            }
+        }, true).start();
+    }
+
     @Override
     protected Void sendInternal(BusMessage message) throws Exception {
         // Init
         int size = 0;
         // Send message(s)
         try {
-            for (BusMessage m : messageManager.splitMessage(message)) {
-                size += send(message.getReceiver(), message.getScope(), m);
+            BusMessage[] fragments = messageManager.splitMessage(message);
+            if (fragments.length > 1 && isBatchSupported()) {
+                size = send(message.getReceiver(), message.getScope(), fragments);
+            } else {
+                for (BusMessage m : fragments) {
+                    size += send(message.getReceiver(), message.getScope(), m);
+                }
             }
             
             // Record
@@ -383,6 +658,47 @@ public class BusEasyBackend extends Bus {
         return null;
     }
 
+    /**
+     * Sends several messages to the backend with one request. Falls back to sending
+     * the messages one by one if this fails.
+     * 
+     * @param receiver
+     * @param scope
+     * @param messages
+     * @return size
+     * @throws BusException
+     */
+    private int send(Participant receiver, Scope scope, BusMessage[] messages) throws BusException {
+        
+        // Serialize
+        List<String> bodies = new ArrayList<>(messages.length);
+        int size = 0;
+        try {
+            for (BusMessage message : messages) {
+                String body = serializeObject(message);
+                bodies.add(body);
+                size += body.length();
+            }
+        } catch (IOException e) {
+            throw new BusException("Unable to serialize message", e);
+        }
+        
+        // Send at once
+        try {
+            execute(String.format(PATH_SEND_MESSAGES_PATTERN, scope.getName(), receiver.getEmailAddress()), HTTPRequestType.POST, mapper.writeValueAsString(bodies));
+            return size;
+        } catch (Exception e) {
+            LOGGER.warn("Unable to send messages at once - sending one by one", e);
+        }
+        
+        // Send one by one
+        size = 0;
+        for (BusMessage message : messages) {
+            size += send(receiver, scope, message);
+        }
+        return size;
+    }
+
     /** Sends a message to the backend
      * 
      * @param receiver
@@ -399,14 +715,15 @@ public class BusEasyBackend extends Bus {
         
         try {
             body = serializeObject(message);
-            size = body.getBytes("UTF-8").length;
+            // Base64 only contains single-byte characters
+            size = body.length();
         } catch (IOException e) {
             throw new BusException("Unable to serialize message", e);
         }
 
         // Send message
         try {
-            new HTTPRequest(server, String.format(PATH_SEND_MESSAGE_PATTERN, scope.getName(), receiver.getEmailAddress()), HTTPRequestType.POST, getToken(), body).execute();
+            new HTTPRequest(server, String.format(PATH_SEND_MESSAGE_PATTERN, scope.getName(), receiver.getEmailAddress()), HTTPRequestType.POST, getToken(), body, null, null, client).execute();
         } catch (HTTPException e) {
             
             // Existing initial messages error
@@ -423,7 +740,7 @@ public class BusEasyBackend extends Bus {
                 renewToken();
                 try {
                     // Re-try
-                    new HTTPRequest(server, String.format(PATH_SEND_MESSAGE_PATTERN, scope.getName(), receiver.getEmailAddress()), HTTPRequestType.POST, getToken(), body).execute();
+                    new HTTPRequest(server, String.format(PATH_SEND_MESSAGE_PATTERN, scope.getName(), receiver.getEmailAddress()), HTTPRequestType.POST, getToken(), body, null, null, client).execute();
                     exception = null;
                 } catch (Exception e1) {
                     // Still exception
@@ -449,7 +766,7 @@ public class BusEasyBackend extends Bus {
 
         // Purge messages
         try {
-            new HTTPRequest(server, PATH_PURGE_PATTERN, HTTPRequestType.DELETE, getToken() , null).execute();
+            new HTTPRequest(server, PATH_PURGE_PATTERN, HTTPRequestType.DELETE, getToken() , null, null, null, client).execute();
         } catch (HTTPException e) {
 
             // If error reason was unauthenticated, re-authenticate and retry
@@ -460,7 +777,7 @@ public class BusEasyBackend extends Bus {
                 renewToken();
                 try {
                     // Retry
-                    new HTTPRequest(server, PATH_PURGE_PATTERN, HTTPRequestType.DELETE, getToken() , null).execute();
+                    new HTTPRequest(server, PATH_PURGE_PATTERN, HTTPRequestType.DELETE, getToken() , null, null, null, client).execute();
                     exception = null;
                 } catch (Exception e1) {
                     // Error still exists
@@ -489,10 +806,10 @@ public class BusEasyBackend extends Bus {
      */
     private String serializeObject(Object o) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(bos));
+        ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(Base64.getEncoder().wrap(bos)));
         oos.writeObject(o);
         oos.close();
-        return Base64.getEncoder().encodeToString(bos.toByteArray());
+        return bos.toString(StandardCharsets.ISO_8859_1);
     }
     
     /**
@@ -54,6 +54,12 @@ public class ConnectionSettingsEasyBackend  extends ConnectionSettings {
     private int                           maxMessageSize;
     /** Check interval */
     private int                           checkInterval;
+    /** Number of HTTP connections kept alive */
+    private int                           connectionPoolSize;
+    /** Timeout of HTTP requests */
+    private int                           requestTimeout;
+    /** Do not wait for messages with long-running requests */
+    private boolean                       longPollingDisabled;
     /** Password provider */
     private PasswordProvider              provider;
     /** Performance listener */
@@ -106,6 +112,27 @@ public class ConnectionSettingsEasyBackend  extends ConnectionSettings {
         return checkInterval > 0 ? checkInterval : Resources.INTERVAL_CHECK_EASYBACKEND_DEFAULT;
     }
 
+    /**
+     * @return the number of HTTP connections kept alive
+     */
+    public int getConnectionPoolSize() {
+        return connectionPoolSize > 0 ? connectionPoolSize : Resources.HTTP_CONNECTION_POOL_SIZE_DEFAULT;
+    }
+
+    /**
+     * @return the timeout of HTTP requests in milliseconds
+     */
+    public int getRequestTimeout() {
+        return requestTimeout > 0 ? requestTimeout : Resources.TIMEOUT_EASYBACKEND;
+    }
+
+    /**
+     * @return whether to wait for messages with long-running requests, if supported by the server
+     */
+    public boolean isLongPolling() {
+        return !longPollingDisabled;
+    }
+
     @Override
     public ExchangeMode getExchangeMode() {
         return ExchangeMode.EASYBACKEND;
@@ -272,6 +299,30 @@ public class ConnectionSettingsEasyBackend  extends ConnectionSettings {
         return this;
     }
 
+    /**
+     * @param connectionPoolSize the number of HTTP connections kept alive
+     */
+    public ConnectionSettingsEasyBackend setConnectionPoolSize(int connectionPoolSize) {
+        this.connectionPoolSize = connectionPoolSize;
+        return this;
+    }
+
+    /**
+     * @param requestTimeout the timeout of HTTP requests in milliseconds
+     */
+    public ConnectionSettingsEasyBackend setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+        return this;
+    }
+
+    /**
+     * @param longPolling whether to wait for messages with long-running requests, if supported by the server
+     */
+    public ConnectionSettingsEasyBackend setLongPolling(boolean longPolling) {
+        this.longPollingDisabled = !longPolling;
+        return this;
+    }
+
     /**
      * @param checkInterval the checkInterval to set
      */
@@ -28,6 +28,7 @@ import org.bihealth.mi.easybus.BusMessageFragment;
 import org.bihealth.mi.easybus.InitialMessageManager;
 import org.bihealth.mi.easybus.MessageManager;
 import org.bihealth.mi.easybus.implementations.http.HTTPAuthentication;
+import org.bihealth.mi.easybus.implementations.http.HTTPClientPool;
 import org.bihealth.mi.easybus.implementations.http.HTTPException;
 import org.bihealth.mi.easybus.implementations.http.HTTPRequest;
 import org.bihealth.mi.easybus.implementations.http.HTTPRequest.HTTPRequestType;
@@ -38,6 +39,8 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import jakarta.ws.rs.client.Client;
+
 /**
  * Message manager for EasyBackend
  * 
@@ -60,6 +63,8 @@ public class InitialMessageManagerEasyBackend extends InitialMessageManager {
     private ObjectMapper                            mapper                      = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     /** Message manager */
     private final MessageManager                    messageManager              = new MessageManager(1024);
+    /** Shared HTTP client */
+    private final Client                            client;
 
     /**
      * Creates a new instance
@@ -76,6 +81,7 @@ public class InitialMessageManagerEasyBackend extends InitialMessageManager {
         super(updateMessage, actionError, checkInterval);
         // Store
         this.auth = new HTTPAuthentication(settings);
+        this.client = HTTPClientPool.getClient(settings);
         try {
             this.server = settings.getAPIServer().toURI();
         } catch (URISyntaxException e) {
@@ -94,7 +100,7 @@ public class InitialMessageManagerEasyBackend extends InitialMessageManager {
 
         // Get messages as plain string
         try {
-            resultString = new HTTPRequest(server, PATH_LIST_INITIAL_MESSAGES, HTTPRequestType.GET, getToken(), null).execute();
+            resultString = new HTTPRequest(server, PATH_LIST_INITIAL_MESSAGES, HTTPRequestType.GET, getToken(), null, null, null, client).execute();
         } catch (HTTPException e) {
 
             // If error reason was unauthenticated, re-authenticate and retry
@@ -104,7 +110,7 @@ public class InitialMessageManagerEasyBackend extends InitialMessageManager {
                 renewToken();
                 try {
                     // Retry
-                    resultString = new HTTPRequest(server, PATH_LIST_INITIAL_MESSAGES, HTTPRequestType.GET, getToken(), null).execute();
+                    resultString = new HTTPRequest(server, PATH_LIST_INITIAL_MESSAGES, HTTPRequestType.GET, getToken(), null, null, null, client).execute();
                     exception = null;
                 } catch (Exception e1) {
                     // Error still exists
@@ -233,7 +239,7 @@ public class InitialMessageManagerEasyBackend extends InitialMessageManager {
         
         try {
             // Delete message
-             new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null).execute();
+             new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null, null, null, client).execute();
         } catch (HTTPException e) {
     
             // If error reason was unauthenticated, re-authenticate and retry
@@ -243,7 +249,7 @@ public class InitialMessageManagerEasyBackend extends InitialMessageManager {
                 renewToken();
                 try {
                     // Re-try
-                    new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null).execute();
+                    new HTTPRequest(server, String.format(PATH_DELETE_MESSAGE_PATTERN, id), HTTPRequestType.DELETE, getToken() , null, null, null, client).execute();
                     exception = null;
                 } catch (Exception e1) {
                     // Still exception
@@ -162,18 +162,19 @@ public class Perspective1ACreate extends Perspective implements ChangeListener {
         }
         
         // Collect bins
-        List<Bin> bins = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<BigDecimal> values = new ArrayList<>();
         for (Component entry : this.panelBins.getComponents()) {
-            Bin bin = new Bin(((EntryBin)entry).getLeftValue());
-            bin.initialize(participants.size());
-            bin.shareValue(new BigDecimal(((EntryBin)entry).getRightValue().trim().replace(',','.')), Resources.FRACTIONAL_BITS);
-            bins.add(bin);
+            names.add(((EntryBin)entry).getLeftValue());
+            values.add(new BigDecimal(((EntryBin)entry).getRightValue().trim().replace(',','.')));
         }
+        Bin[] bins = Bin.createBins(names.toArray(new String[names.size()]), participants.size());
+        Bin.shareValues(bins, values.toArray(new BigDecimal[values.size()]), Resources.FRACTIONAL_BITS);
         
         // Check whether there are duplicates
-        for (int i = 0; i < bins.size(); i++) {
-            for (int j = i + 1; j < bins.size(); j++) {
-                if (bins.get(i).name.equals(bins.get(j).name)) {
+        for (int i = 0; i < bins.length; i++) {
+            for (int j = i + 1; j < bins.length; j++) {
+                if (bins[i].name.equals(bins[j].name)) {
                     JOptionPane.showMessageDialog(getPanel(), Resources.getString("PerspectiveCreate.DuplicateBins"));
                     return;
                 }
@@ -191,7 +192,7 @@ public class Perspective1ACreate extends Perspective implements ChangeListener {
             }
         }
         // Initialize study
-        getApp().actionCreateDone(this.fieldTitle.getText(), participants.toArray(new Participant[participants.size()]), bins.toArray(new Bin[bins.size()]), getApp().getConnectionSettings());
+        getApp().actionCreateDone(this.fieldTitle.getText(), participants.toArray(new Participant[participants.size()]), bins, getApp().getConnectionSettings());
     }
 
     /**
@@ -44,7 +44,6 @@ import org.bihealth.mi.easysmpc.components.ScrollablePanel;
 import org.bihealth.mi.easysmpc.dataimport.ImportClipboard;
 import org.bihealth.mi.easysmpc.resources.Resources;
 
-import de.tu_darmstadt.cbs.emailsmpc.Bin;
 import de.tu_darmstadt.cbs.emailsmpc.Participant;
 import de.tu_darmstadt.cbs.emailsmpc.Study.StudyState;
 
@@ -225,11 +224,7 @@ public class Perspective3Receive extends Perspective implements ChangeListener,
      * @return
      */
     private boolean areSharesComplete() {
-        
-        for (Bin b : getApp().getModel().getBins()) {
-            if (!b.isComplete()) return false;
-        }
-        return true;
+        return getApp().getModel().areSharesComplete();
     }
 
     /**
@@ -237,10 +232,7 @@ public class Perspective3Receive extends Perspective implements ChangeListener,
      * @return
      */
     private boolean areSharesCompleteForParticipantId(int participantId) {
-        for (Bin b : getApp().getModel().getBins()) {
-            if (!b.isCompleteForParticipantId(participantId)) return false;
-        }
-        return true;
+        return getApp().getModel().areSharesComplete(participantId);
     }
     
     /**
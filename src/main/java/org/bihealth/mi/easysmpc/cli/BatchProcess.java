@@ -0,0 +1,377 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easysmpc.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bihealth.mi.easysmpc.resources.Resources;
+
+import de.tu_darmstadt.cbs.emailsmpc.Study;
+import de.tu_darmstadt.cbs.emailsmpc.Study.StudyState;
+
+/**
+ * Runs many studies within one JVM. Each study is defined by the arguments which would be passed to the command line
+ * for a single study, i.e. starting with "-create", "-participate" or "-resume". Studies are started by a bounded
+ * scheduler and bus connections of studies using the same mailbox or account are shared.
+ * <p>
+ * Studies of a batch may depend on each other, e.g. when they are different participants of the same study. A study 
+ * waiting for messages from the bus therefore does not occupy a slot of the scheduler, otherwise studies waiting for
+ * queued studies would never proceed. As a consequence, studies which stop waiting may temporarily exceed the bound.
+ * 
+ * @author agent
+ */
+public class BatchProcess {
+
+    /**
+     * Status of a study in the batch
+     * 
+     * @author agent
+     */
+    private static class BatchStudy {
+
+        /** Arguments */
+        private final String[]       args;
+        /** Process, null if not started yet */
+        private volatile UserProcess process;
+        /** Error while starting */
+        private volatile boolean     failed;
+        /** Last reported status */
+        private String               reported;
+
+        /**
+         * Creates a new instance
+         * 
+         * @param args
+         */
+        private BatchStudy(String[] args) {
+            this.args = args;
+        }
+
+        /**
+         * Returns the current status
+         * 
+         * @return
+         */
+        private String getStatus() {
+            if (failed) {
+                return "failed to start";
+            }
+            if (process == null) {
+                return "queued";
+            }
+            if (process.getModel() == null || process.getModel().getState() == StudyState.NONE) {
+                return "waiting for initial message";
+            }
+            if (process.isProcessTerminated()) {
+                return process.isProcessFinished() ? "finished" : String.format("stopped in state %s", process.getModel().getState());
+            }
+            return String.format("running in state %s", process.getModel().getState());
+        }
+
+        /**
+         * Is the study done, i.e. neither queued nor running?
+         * 
+         * @return
+         */
+        private boolean isDone() {
+            return failed || (process != null && process.isProcessTerminated());
+        }
+        
+        /**
+         * Does the study occupy a slot of the scheduler, i.e. is it running and not waiting for messages?
+         * 
+         * @return
+         */
+        private boolean isActive() {
+            
+            // Not running
+            if (process == null || isDone()) {
+                return false;
+            }
+            
+            // Waiting for messages
+            Study model = process.getModel();
+            if (model == null) {
+                return false;
+            }
+            switch (model.getState()) {
+            case NONE:
+            case RECIEVING_SHARE:
+            case RECIEVING_RESULT:
+                return false;
+            default:
+                return true;
+            }
+        }
+    }
+
+    /** Logger */
+    private static final Logger           LOGGER = LogManager.getLogger(BatchProcess.class);
+    /** Studies by label */
+    private final Map<String, BatchStudy> studies;
+    /** Number of studies processed concurrently */
+    private final int                     parallelism;
+
+    /**
+     * Reads study definitions. If the given file is a directory, each regular file in it defines one study. Otherwise
+     * each line of the file defines one study. Empty lines and lines starting with "#" are ignored.
+     * 
+     * @param manifest
+     * @return arguments by label of the study
+     * @throws IOException
+     */
+    public static Map<String, String[]> readManifest(File manifest) throws IOException {
+        
+        // Prepare
+        Map<String, String[]> result = new LinkedHashMap<>();
+        
+        // One study per file
+        if (manifest.isDirectory()) {
+            File[] files = manifest.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && !file.isHidden()) {
+                    List<String> args = new ArrayList<>();
+                    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                        if (!isComment(line)) {
+                            args.addAll(tokenize(line));
+                        }
+                    }
+                    if (!args.isEmpty()) {
+                        result.put(file.getName(), args.toArray(new String[args.size()]));
+                    }
+                }
+            }
+            
+        // One study per line
+        } else {
+            List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+            for (int index = 0; index < lines.size(); index++) {
+                if (!isComment(lines.get(index))) {
+                    List<String> args = tokenize(lines.get(index));
+                    result.put(String.format("%s:%d", manifest.getName(), index + 1), args.toArray(new String[args.size()]));
+                }
+            }
+        }
+        
+        // Check
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No studies defined in %s", manifest.getAbsolutePath()));
+        }
+        
+        // Return
+        return result;
+    }
+
+    /**
+     * Splits a line into arguments at white spaces. Double quotes group white spaces into one argument.
+     * 
+     * @param line
+     * @return
+     */
+    static List<String> tokenize(String line) {
+        
+        // Prepare
+        List<String> result = new ArrayList<>();
+        StringBuilder current = null;
+        boolean quoted = false;
+        
+        // Loop over characters
+        for (char character : line.toCharArray()) {
+            if (character == '"') {
+                quoted = !quoted;
+                current = current == null ? new StringBuilder() : current;
+            } else if (Character.isWhitespace(character) && !quoted) {
+                if (current != null) {
+                    result.add(current.toString());
+                    current = null;
+                }
+            } else {
+                current = current == null ? new StringBuilder() : current;
+                current.append(character);
+            }
+        }
+        
+        // Check
+        if (quoted) {
+            throw new IllegalArgumentException(String.format("Unbalanced quotes in \"%s\"", line));
+        }
+        
+        // Add last argument
+        if (current != null) {
+            result.add(current.toString());
+        }
+        
+        // Return
+        return result;
+    }
+    
+    /**
+     * Is the line empty or a comment?
+     * 
+     * @param line
+     * @return
+     */
+    private static boolean isComment(String line) {
+        return line.trim().isEmpty() || line.trim().startsWith(Resources.BATCH_COMMENT_PREFIX);
+    }
+
+    /**
+     * Creates a new instance
+     * 
+     * @param studies arguments by label of the study
+     * @param parallelism number of studies processed concurrently
+     */
+    public BatchProcess(Map<String, String[]> studies, int parallelism) {
+        
+        // Check
+        if (studies == null || studies.isEmpty()) {
+            throw new IllegalArgumentException("Please provide at least one study!");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least one!");
+        }
+        
+        // Store
+        this.studies = new LinkedHashMap<>();
+        for (Entry<String, String[]> entry : studies.entrySet()) {
+            this.studies.put(entry.getKey(), new BatchStudy(entry.getValue()));
+        }
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * Runs all studies and reports their progress until all of them are done. A study occupies one slot of the
+     * scheduler while it is running and not waiting for messages.
+     * 
+     * @throws InterruptedException
+     */
+    public void execute() throws InterruptedException {
+        
+        // Prepare
+        Iterator<Entry<String, BatchStudy>> queue = studies.entrySet().iterator();
+        long nextReport = System.currentTimeMillis() + Resources.INTERVAL_REPORT_BATCH;
+        LOGGER.info(String.format("Starting %d studies with at most %d processed concurrently", studies.size(), parallelism));
+        
+        // Start studies and report progress until done
+        while (queue.hasNext() || !isDone()) {
+            
+            // Start queued studies while slots are free
+            int active = getActive();
+            while (queue.hasNext() && active < parallelism) {
+                Entry<String, BatchStudy> entry = queue.next();
+                start(entry.getKey(), entry.getValue());
+                active++;
+            }
+            
+            // Report
+            if (System.currentTimeMillis() >= nextReport) {
+                report();
+                nextReport = System.currentTimeMillis() + Resources.INTERVAL_REPORT_BATCH;
+            }
+            Thread.sleep(Resources.INTERVAL_SCHEDULE_BATCH);
+        }
+        report();
+    }
+
+    /**
+     * Starts the process of a study
+     * 
+     * @param args
+     * @return
+     */
+    UserProcess startProcess(String[] args) {
+        return Main.startProcess(args);
+    }
+
+    /**
+     * Returns the number of studies occupying a slot
+     * 
+     * @return
+     */
+    private int getActive() {
+        int result = 0;
+        for (BatchStudy study : studies.values()) {
+            result += study.isActive() ? 1 : 0;
+        }
+        return result;
+    }
+    
+    /**
+     * Are all studies done?
+     * 
+     * @return
+     */
+    private boolean isDone() {
+        for (BatchStudy study : studies.values()) {
+            if (!study.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts the process of a study
+     * 
+     * @param label
+     * @param study
+     */
+    private void start(String label, BatchStudy study) {
+        try {
+            study.process = startProcess(study.args);
+            if (study.process == null) {
+                LOGGER.error(String.format("Unable to start study %s", label));
+                study.failed = true;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error(String.format("Unable to start study %s", label), e);
+            study.failed = true;
+        }
+    }
+
+    /**
+     * Logs the status of all studies that changed since the last report and a summary
+     */
+    private void report() {
+        
+        // Prepare
+        int done = 0;
+        
+        // Log changes
+        for (Entry<String, BatchStudy> entry : studies.entrySet()) {
+            String status = entry.getValue().getStatus();
+            if (!status.equals(entry.getValue().reported)) {
+                LOGGER.info(String.format("Study %s: %s", entry.getKey(), status));
+                entry.getValue().reported = status;
+            }
+            done += entry.getValue().isDone() ? 1 : 0;
+        }
+        
+        // Log summary
+        LOGGER.info(String.format("%d of %d studies done", done, studies.size()));
+    }
+}
@@ -19,7 +19,6 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
@@ -33,7 +32,9 @@ import org.bihealth.mi.easybus.ConnectionSettings.ExchangeMode;
 import org.bihealth.mi.easybus.Participant;
 import org.bihealth.mi.easybus.PasswordStore;
 import org.bihealth.mi.easysmpc.dataimport.ImportFile;
+import org.bihealth.mi.easysmpc.resources.Resources;
 
+import de.tu_darmstadt.cbs.emailsmpc.MessageCodec;
 import de.tu_darmstadt.cbs.emailsmpc.Study;
 import de.tu_darmstadt.cbs.emailsmpc.Study.StudyState;
 /**
@@ -189,8 +190,51 @@ public class Main {
                                                                      .hasArg(true)
                                                                      .build();
 
-    /** Default parser */
-    private static CommandLineParser parser                       = new DefaultParser();
+    /** Command line option */
+    private static final Option OPTION_BATCH                 = Option.builder("bt")
+                                                                     .desc("Run all studies defined in a manifest file or directory")
+                                                                     .longOpt("batch")
+                                                                     .hasArg(true)
+                                                                     .required(false)
+                                                                     .build();
+    /** Command line option */
+    private static final Option OPTION_BATCH_REQUIRED        = Option.builder(OPTION_BATCH.getOpt())
+                                                                     .desc(OPTION_BATCH.getDescription())
+                                                                     .longOpt(OPTION_BATCH.getLongOpt())
+                                                                     .hasArg(OPTION_BATCH.hasArg())
+                                                                     .required(true)
+                                                                     .build();
+    /** Command line option */
+    private static final Option OPTION_BATCH_PARALLELISM     = Option.builder("bp")
+                                                                     .desc("Maximal number of studies processed concurrently in batch mode")
+                                                                     .longOpt("batch-parallelism")
+                                                                     .hasArg(true)
+                                                                     .required(false)
+                                                                     .build();
+
+    /** Command line option */
+    private static final Option OPTION_PARALLELISM           = Option.builder("tp")
+                                                                     .desc("Number of threads used to process bins, 0 for the number of available processors")
+                                                                     .longOpt("parallelism")
+                                                                     .hasArg(true)
+                                                                     .required(false)
+                                                                     .build();
+
+    /** Command line option */
+    private static final Option OPTION_BINARY_MESSAGES       = Option.builder("bm")
+                                                                     .desc("Use the compact binary format for messages. All participants must use a version supporting it")
+                                                                     .longOpt("binary-messages")
+                                                                     .hasArg(false)
+                                                                     .required(false)
+                                                                     .build();
+
+    /** Command line option */
+    private static final Option OPTION_COLUMNAR_FILE         = Option.builder("cf")
+                                                                     .desc("Save the study in the memory-mapped columnar format, which allows to resume large studies quickly. Older versions can not read such files")
+                                                                     .longOpt("columnar-file")
+                                                                     .hasArg(false)
+                                                                     .required(false)
+                                                                     .build();
 
     /**
      * Starts an EasySMPC process
@@ -207,20 +251,70 @@ public class Main {
         CommandLine cli;
         Options optionsInitial = new Options();
 
+        // Options initial
+        optionsInitial.addOption(OPTION_BATCH);
+        
+        // Check for batch mode
+        try {
+            cli = new DefaultParser().parse(optionsInitial, args, true);
+        } catch (ParseException e) {
+            // Log exception
+            LOGGER.error("Unable to parse CLI arguments", e);
+
+            // Throw exception
+            throw new IllegalStateException("Unable to parse CLI arguments");
+        }
+        
+        // Proceed in batch mode
+        if (cli.hasOption(OPTION_BATCH)) {
+            proceedBatch(args);
+            return;
+        }
+        
+        // Start a single process
+        UserProcess process = startProcess(args);
+        
+        // Wait for a participant to be initialized
+        if (process instanceof UserProcessParticipating) {
+            LOGGER.info("Waiting for initial message to participate");
+            while(process.getModel() == null || process.getModel().getState() == StudyState.NONE) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+    
+    /**
+     * Parses the arguments of a single study and starts the according process. Used for a single study as well as for
+     * each study in batch mode.
+     * 
+     * @param args
+     * @return the process started or null if a study to resume could not be loaded
+     * @throws IllegalStateException
+     */
+    static UserProcess startProcess(String[] args) throws IllegalStateException {
+        
+        // Prepare
+        CommandLine cli;
+        Options optionsInitial = new Options();
+        
         // Options initial
         optionsInitial.addOption(OPTION_CREATE)
         .addOption(OPTION_PARTICIPATE)
         .addOption(OPTION_RESUME);
-	    
+        
         // Check exactly create, participate or resume
         try {
-            cli = parser.parse(optionsInitial, args, true);
+            cli = new DefaultParser().parse(optionsInitial, args, true);
             if (!(
                    (cli.hasOption(OPTION_CREATE) && !cli.hasOption(OPTION_PARTICIPATE) && !cli.hasOption(OPTION_RESUME)) ||
                    (!cli.hasOption(OPTION_CREATE) && cli.hasOption(OPTION_PARTICIPATE) && !cli.hasOption(OPTION_RESUME)) ||
                    (!cli.hasOption(OPTION_CREATE) && !cli.hasOption(OPTION_PARTICIPATE) && cli.hasOption(OPTION_RESUME))
                 )) {
-                throw new ParseException("Please pass either \"-create\", \"-participate\" or \"-resume\" as the first argument");
+                throw new ParseException("Please pass either \"-create\", \"-participate\", \"-resume\" or \"-batch\" as the first argument");
             }
         } catch (ParseException e) {
             // Log exception
@@ -228,7 +322,7 @@ public class Main {
 
             // Output help message
             HelpFormatter formatter = new HelpFormatter();
-            formatter.printHelp("easy-smpc-cli", optionsInitial);
+            formatter.printHelp("easy-smpc-cli", optionsInitial.addOption(OPTION_BATCH));
 
             // Throw exception
             throw new IllegalStateException("Unable to parse CLI arguments");
@@ -236,32 +330,75 @@ public class Main {
 
         // Proceed in creation mode
         if (cli.hasOption(OPTION_CREATE)) {
-            proceedCreate(args);
+            return proceedCreate(args);
         }
 
         // Proceed in participation mode
         if (cli.hasOption(OPTION_PARTICIPATE)) {
-            proceedParticipate(args);
+            return proceedParticipate(args);
         }
 
         // Proceed in resume mode
-        if (cli.hasOption(OPTION_RESUME)) {
-            proceedResume(args);
+        return proceedResume(args);
+    }
+    
+    /**
+     * Proceed processing in batch mode
+     * 
+     * @param args
+     */
+    private static void proceedBatch(String[] args) {
+        
+        // Prepare 
+        Options options = new Options();
+        CommandLine cli;
+        BatchProcess batch;
+        
+        // Add options for batch mode
+        options.addOption(OPTION_BATCH_REQUIRED)
+               .addOption(OPTION_BATCH_PARALLELISM);
+        
+        try {
+            // Parse
+            cli = new DefaultParser().parse(options, args);
+            
+            // Read manifest and create batch
+            batch = new BatchProcess(BatchProcess.readManifest(new File(cli.getOptionValue(OPTION_BATCH))),
+                                     cli.hasOption(OPTION_BATCH_PARALLELISM) ? Integer.valueOf(cli.getOptionValue(OPTION_BATCH_PARALLELISM)) : Resources.SIZE_BATCH_PARALLELISM_DEFAULT);
+        } catch (ParseException | IllegalArgumentException | IOException e) {
+            // Log exception
+            LOGGER.error("Unable to parse CLI arguments", e);
+
+            // Output help message
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("easy-smpc-cli", options);
+
+            // Throw exception
+            throw new IllegalStateException("Unable to parse CLI arguments");
         }
-	}
-	
+        
+        // Run all studies
+        try {
+            batch.execute();
+        } catch (InterruptedException e) {
+            LOGGER.info("Batch processing interrupted");
+        }
+    }
+    
     /**
      * Proceed processing in creation mode
      * 
      * @param args
+     * @return
      */
-    private static void proceedCreate(String[] args) {
+    private static UserProcess proceedCreate(String[] args) {
     
         // Prepare 
         Options options = new Options();
         CommandLine cli;
         ConnectionSettingsParser connectionSettingsParser = null;
         Participant self;
+        int parallelism;
 
         // Set generic options for creating
         options.addOption(OPTION_CREATE_REQUIRED)
@@ -272,12 +409,15 @@ public class Main {
         .addOption(OPTION_PARTICIPANTS)
         .addOption(OPTION_DATA_COLUMN)
         .addOption(OPTION_HAS_HEADER)
-        .addOption(OPTION_SKIP_COLUMNS);
+        .addOption(OPTION_SKIP_COLUMNS)
+        .addOption(OPTION_PARALLELISM)
+        .addOption(OPTION_BINARY_MESSAGES)
+        .addOption(OPTION_COLUMNAR_FILE);
 
         try {
 
             // Parse to get connection type
-            cli = parser.parse(new Options().addOption(OPTION_CREATE).addOption(OPTION_CONNECTION_TYPE), args, true);
+            cli = new DefaultParser().parse(new Options().addOption(OPTION_CREATE).addOption(OPTION_CONNECTION_TYPE), args, true);
 
             // Get connection type
             if (cli.getOptionValue(OPTION_CONNECTION_TYPE).toUpperCase().equals(ExchangeMode.MANUAL.toString()) ||
@@ -312,6 +452,9 @@ public class Main {
             if (cli.hasOption(cli.getOptionValue(OPTION_SKIP_COLUMNS))) {
                 Integer.valueOf(cli.getOptionValue(OPTION_SKIP_COLUMNS));
             }
+
+            // Check parallelism
+            parallelism = getParallelism(cli);
             
             try {
                 de.tu_darmstadt.cbs.emailsmpc.Participant participant = UserProcessCreating.createParticipantsFromCSVString(cli.getOptionValue(OPTION_PARTICIPANTS))[0];
@@ -336,7 +479,7 @@ public class Main {
         }
 
         // Checks successful, start process
-        new UserProcessCreating(cli.getOptionValue(OPTION_STUDY_NAME),
+        return new UserProcessCreating(cli.getOptionValue(OPTION_STUDY_NAME),
                                 UserProcessCreating.createParticipantsFromCSVString(cli.getOptionValue(OPTION_PARTICIPANTS)),
                                 getDataFromFiles(cli.getOptionValue(OPTION_BINS_NAMES),
                                                  !cli.hasOption(OPTION_DATA_COLUMN),
@@ -352,20 +495,25 @@ public class Main {
                                                  cli.hasOption(OPTION_SKIP_COLUMNS)
                                                  ? Integer.valueOf(cli.getOptionValue(OPTION_SKIP_COLUMNS))
                                                          : 0),
-                                connectionSettingsParser.getConnectionSettings(self.getEmailAddress()));
+                                connectionSettingsParser.getConnectionSettings(self.getEmailAddress()),
+                                parallelism,
+                                cli.hasOption(OPTION_BINARY_MESSAGES) ? MessageCodec.FORMAT_BINARY_V1 : MessageCodec.FORMAT_SERIALIZED,
+                                cli.hasOption(OPTION_COLUMNAR_FILE));
     }
 
     /**
      * Proceed processing in participating mode
      * 
      * @param args
+     * @return
      */
-    private static void proceedParticipate(String[] args) {
+    private static UserProcess proceedParticipate(String[] args) {
         // Prepare 
         Options options = new Options();
         CommandLine cli;
         ConnectionSettingsParser connectionSettingsParser = null;
         Participant self;
+        int parallelism;
 
         // Add options when participating
         options.addOption(OPTION_PARTICIPATE_REQUIRED)
@@ -376,11 +524,13 @@ public class Main {
         .addOption(OPTION_DATA_COLUMN)
         .addOption(OPTION_HAS_HEADER)
         .addOption(OPTION_SKIP_COLUMNS)
-        .addOption(OPTION_MAILADDRESS_RECEIVING);
+        .addOption(OPTION_MAILADDRESS_RECEIVING)
+        .addOption(OPTION_PARALLELISM)
+        .addOption(OPTION_COLUMNAR_FILE);
 
         try {
             // Parse to get connection type
-            cli = parser.parse(new Options().addOption(OPTION_PARTICIPATE).addOption(OPTION_CONNECTION_TYPE), args, true);
+            cli = new DefaultParser().parse(new Options().addOption(OPTION_PARTICIPATE).addOption(OPTION_CONNECTION_TYPE), args, true);
 
             // Get connection type
             if (cli.getOptionValue(OPTION_CONNECTION_TYPE).toUpperCase().equals(ExchangeMode.MANUAL.toString()) ||
@@ -417,6 +567,9 @@ public class Main {
                 Integer.valueOf(cli.getOptionValue(OPTION_SKIP_COLUMNS));
             }
 
+            // Check parallelism
+            parallelism = getParallelism(cli);
+
             // Check connection settings parameter
             connectionSettingsParser.checkCLIParameters();
         }
@@ -433,45 +586,42 @@ public class Main {
         }
 
         // Create participating user
-        UserProcessParticipating participatingUser = new UserProcessParticipating(cli.getOptionValue(OPTION_STUDY_NAME),
-                                                                                  self,
-                                                                                  getDataFromFiles(cli.getOptionValue(OPTION_DATA_FILE),
-                                                                                                   !cli.hasOption(OPTION_DATA_COLUMN),
-                                                                                                   false,
-                                                                                                   cli.hasOption(OPTION_HAS_HEADER),
-                                                                                                   cli.hasOption(OPTION_SKIP_COLUMNS) ? Integer.valueOf(cli.getOptionValue(OPTION_SKIP_COLUMNS)) : 0),
-                                                                                  connectionSettingsParser.getConnectionSettings(self.getEmailAddress()));
-
-        // Wait for participant to be initialized
-        LOGGER.info("Waiting for initial message to participate");
-        while(participatingUser.getModel() == null || participatingUser.getModel().getState() == StudyState.NONE) {
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                // Ignore
-            }
-        }
+        return new UserProcessParticipating(cli.getOptionValue(OPTION_STUDY_NAME),
+                                            self,
+                                            getDataFromFiles(cli.getOptionValue(OPTION_DATA_FILE),
+                                                             !cli.hasOption(OPTION_DATA_COLUMN),
+                                                             false,
+                                                             cli.hasOption(OPTION_HAS_HEADER),
+                                                             cli.hasOption(OPTION_SKIP_COLUMNS) ? Integer.valueOf(cli.getOptionValue(OPTION_SKIP_COLUMNS)) : 0),
+                                            connectionSettingsParser.getConnectionSettings(self.getEmailAddress()),
+                                            parallelism,
+                                            cli.hasOption(OPTION_COLUMNAR_FILE));
     }
 
     /**
          * Proceed processing in resuming mode
          * 
          * @param args
+         * @return
          */
-        private static void proceedResume(String[] args) {
+        private static UserProcess proceedResume(String[] args) {
             // Prepare 
             Options options = new Options();
             CommandLine cli;
+            int parallelism;
             
             // Add options when resuming
             options.addOption(OPTION_RESUME_REQUIRED)
                    .addOption(OPTION_RESUME_FILE)
                    .addOption(OPTION_PASSWORD_RECEIVING)
-                   .addOption(OPTION_PASSWORD_SENDING);
+                   .addOption(OPTION_PASSWORD_SENDING)
+                   .addOption(OPTION_PARALLELISM)
+                   .addOption(OPTION_COLUMNAR_FILE);
             
             // Get CLI
             try {
-                cli = parser.parse(options, args);
+                cli = new DefaultParser().parse(options, args);
+                parallelism = getParallelism(cli);
             } catch (ParseException e) {
                 // Log exception
                 LOGGER.error("Unable to parse CLI arguments", e);
@@ -490,14 +640,43 @@ public class Main {
                 study.getConnectionSettings()
                      .setPasswordStore(new PasswordStore(cli.getOptionValue(OPTION_PASSWORD_RECEIVING),
                                                          cli.getOptionValue(OPTION_PASSWORD_SENDING)));
+                study.setParallelism(parallelism);
+                study.setColumnarFormat(cli.hasOption(OPTION_COLUMNAR_FILE));
     
                 // Start process
-                new UserProcess(study);
+                return new UserProcess(study);
             } catch (ClassNotFoundException | IllegalArgumentException | IOException e) {
                 LOGGER.error("Unable to resume with given file", e);
+                return null;
             }
         }
 
+    /**
+     * Returns the number of threads used to process bins
+     * 
+     * @param cli
+     * @return
+     * @throws ParseException
+     */
+    private static int getParallelism(CommandLine cli) throws ParseException {
+        
+        // Default
+        if (!cli.hasOption(OPTION_PARALLELISM)) {
+            return 0;
+        }
+        
+        // Parse and check
+        try {
+            int parallelism = Integer.valueOf(cli.getOptionValue(OPTION_PARALLELISM));
+            if (parallelism >= 0) {
+                return parallelism;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        throw new ParseException(String.format("Please provide a non-negative number in the option \"-%s\" respective \"-%s\"", OPTION_PARALLELISM.getLongOpt(), OPTION_PARALLELISM.getOpt()));
+    }
+
     /**
      * Strips different file names from a string and reads from all of them
      * 
@@ -20,8 +20,14 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
@@ -29,11 +35,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bihealth.mi.easybus.Bus;
 import org.bihealth.mi.easybus.BusException;
+import org.bihealth.mi.easybus.BusManager;
 import org.bihealth.mi.easybus.ConnectionSettings;
 import org.bihealth.mi.easybus.MessageFilter;
 import org.bihealth.mi.easybus.MessageListener;
 import org.bihealth.mi.easybus.Participant;
 import org.bihealth.mi.easybus.Scope;
+import org.bihealth.mi.easybus.ThreadManager;
 import org.bihealth.mi.easybus.implementations.email.BusEmail;
 import org.bihealth.mi.easybus.implementations.email.ConnectionIMAP;
 import org.bihealth.mi.easybus.implementations.email.ConnectionSettingsIMAP;
@@ -43,7 +51,6 @@ import org.bihealth.mi.easysmpc.dataexport.ExportFile;
 import org.bihealth.mi.easysmpc.dataimport.ImportClipboard;
 import org.bihealth.mi.easysmpc.resources.Resources;
 
-import de.tu_darmstadt.cbs.emailsmpc.Bin;
 import de.tu_darmstadt.cbs.emailsmpc.BinResult;
 import de.tu_darmstadt.cbs.emailsmpc.Message;
 import de.tu_darmstadt.cbs.emailsmpc.Study;
@@ -58,23 +65,39 @@ import de.tu_darmstadt.cbs.emailsmpc.Study.StudyState;
 public class UserProcess implements MessageListener {
 
     /** Logger */
-    private static final Logger LOGGER  = LogManager.getLogger(UserProcess.class);
+    private static final Logger           LOGGER     = LogManager.getLogger(UserProcess.class);
+    /** Processes currently performing their steps, stopped by the keyboard listener */
+    private static final Set<UserProcess> PROCESSES  = ConcurrentHashMap.newKeySet();
+    /** Keyboard listener shared by all processes */
+    private static Thread                 keyboardListener;
     /** The study model */
-    private Study               model   = new Study();
+    private Study                         model      = new Study();
     /** connection settings */
-    private ConnectionSettings  connectionSettings;
+    private ConnectionSettings            connectionSettings;
     /** Error flag */
-    private boolean             stop    = false;
+    private volatile boolean              stop       = false;
+    /** Released when the process does not perform any further steps */
+    private final CountDownLatch          terminated = new CountDownLatch(1);
+    /** Number of threads used to process bins */
+    private final int                     parallelism;
+    /** Whether the study is saved in the columnar format */
+    private final boolean                 columnarFormat;
 
     /**
      * Creates a new instance
      * 
      * @param connectionSettings
+     * @param parallelism number of threads used to process bins, 0 for the number of available processors
+     * @param columnarFormat whether the study is saved in the columnar format
      */
-    protected UserProcess(ConnectionSettings connectionSettings) {
+    protected UserProcess(ConnectionSettings connectionSettings, int parallelism, boolean columnarFormat) {
 
         // Store
         this.connectionSettings = connectionSettings;
+        this.parallelism = parallelism;
+        this.columnarFormat = columnarFormat;
+        this.model.setParallelism(parallelism);
+        this.model.setColumnarFormat(columnarFormat);
     }
     
     
@@ -88,57 +111,76 @@ public class UserProcess implements MessageListener {
      * @throws ClassNotFoundException 
      */
     public UserProcess(Study model) throws ClassNotFoundException, IllegalArgumentException, IOException {
-        this(model.getConnectionSettings());
+        this(model.getConnectionSettings(), model.getParallelism(), model.isColumnarFormat());
         
         // Store
         this.model = model;
                 
         // Spawns the common steps in an own thread
         LOGGER.info("Restart process");
-        new Thread(new Runnable() {
+        ThreadManager.newThread(new Runnable() {
             public void run() {
                 performCommonSteps();
             }
-        }).start();
+        }, false).start();
     }
     
     /**
-     * Creates a key board listener thread to allow for stop processing
-     * 
-     * @param thread
+     * Registers the process with the key board listener thread to allow for stop processing. The thread is shared by
+     * all processes within the JVM and created on first use.
      */
     private void registerKeyboardListenerThread() {
         
-        // Create thread
-        Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-
-                Scanner scanner = new Scanner(System.in);                
-                while (true) {
-                    // Check if stop is necessary
-                    if (scanner.hasNext() && scanner.next().equals(Resources.STOP_CLI_PROCESS_STRING)) {
-                        break;
+        // Register
+        PROCESSES.add(this);
+        
+        synchronized (UserProcess.class) {
+            
+            // Thread already running
+            if (keyboardListener != null) {
+                return;
+            }
+            
+            // Create thread
+            keyboardListener = ThreadManager.newThread(new Runnable() {
+                @Override
+                public void run() {
+    
+                    Scanner scanner = new Scanner(System.in);                
+                    while (true) {
+                        // Check if stop is necessary
+                        if (scanner.hasNext() && scanner.next().equals(Resources.STOP_CLI_PROCESS_STRING)) {
+                            break;
+                        }
+    
+                        // Sleep
+                        try {
+                            Thread.sleep(300);
+                        } catch (InterruptedException e) {
+                            // Ignore
+                        }
                     }
-
-                    // Sleep
-                    try {
-                        Thread.sleep(300);
-                    } catch (InterruptedException e) {
-                        // Ignore
+                    
+                    // Initiate shutdown of all processes
+                    scanner.close();
+                    for (UserProcess process : PROCESSES) {
+                        process.stop = true;
                     }
                 }
-                
-                // Initiate shutdown
-                scanner.close();
-                stop = true;
-            }
-        });
-        
-        // Start thread and log
-        thread.setDaemon(true);
-        thread.start();        
-        LOGGER.info(String.format("Enter \"%s\" to stop processing at the next possible step", Resources.STOP_CLI_PROCESS_STRING));
+            }, true);
+            
+            // Start thread and log
+            keyboardListener.start();        
+            LOGGER.info(String.format("Enter \"%s\" to stop processing at the next possible step", Resources.STOP_CLI_PROCESS_STRING));
+        }
+    }
+    
+    /**
+     * Marks that the process does not perform any further steps
+     */
+    protected void markTerminated() {
+        PROCESSES.remove(this);
+        terminated.countDown();
     }
     
     /**
@@ -181,6 +223,26 @@ public class UserProcess implements MessageListener {
         return getModel().getState() == StudyState.FINISHED;
     }
     
+    /**
+     * Does the process not perform any further steps, either because it is finished or because it has been stopped?
+     * 
+     * @return
+     */
+    public boolean isProcessTerminated() {
+        return terminated.getCount() == 0;
+    }
+    
+    /**
+     * Waits until the process does not perform any further steps
+     * 
+     * @param timeout in milliseconds
+     * @return whether the process is terminated
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return terminated.await(timeout, TimeUnit.MILLISECONDS);
+    }
+    
     @Override
     public void receive(String message) {
         String messageStripped = ImportClipboard.getStrippedExchangeMessage(message);
@@ -205,18 +267,6 @@ public class UserProcess implements MessageListener {
         LOGGER.info("Receiveing will be retried",e);
     }
 
-    /**
-     * Are shares complete to proceed?
-     * 
-     * @return
-     */
-    private boolean areSharesComplete() {
-        for (Bin b : this.model.getBins()) {
-            if (!b.isComplete()) return false;
-        }
-        return true;
-    }
-  
     /**
      * Check whether message is valid
      * 
@@ -249,8 +299,8 @@ public class UserProcess implements MessageListener {
                                                                    getModel().getParticipantFromId(getModel().getOwnId()).emailAddress),
                            this);
         
-        // Wait for all shares
-        while (!areSharesComplete()) {
+        // Wait for all shares, waking up regularly to check for stop
+        while (!getModel().awaitSharesComplete(Resources.INTERVAL_CHECK_STOP_CLI)) {
             
             // Check for error while receiving and throw exception
             if (this.stop) {
@@ -261,13 +311,6 @@ public class UserProcess implements MessageListener {
             if (!getModel().isBusAlive()) {
                 LOGGER.error("Bus is not alive anymore!");
             }
-            
-            // Wait
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                LOGGER.error("Sleep of bus interrupted", e);
-            }             
         }     
     }
     
@@ -278,6 +321,97 @@ public class UserProcess implements MessageListener {
      * @throws InterruptedException 
      */
     private void sendMessages(String roundIdentifier) throws InterruptedException {
+        if (getModel().getConnectionSettings().isParallelSending()) {
+            sendMessagesParallel(roundIdentifier);
+        } else {
+            sendMessagesSequential(roundIdentifier);
+        }
+    }
+    
+    /**
+     * Sends the message to a participant by means of bus
+     * 
+     * @param roundIdentifier
+     * @param index
+     * @return
+     * @throws BusException 
+     * @throws IOException 
+     * @throws IllegalArgumentException 
+     */
+    private FutureTask<Void> sendMessage(String roundIdentifier, int index) throws IllegalArgumentException, IOException, BusException {
+        return getModel().getBus(getModel().getConnectionSettings().getCheckInterval(), false).send(Message.serializeMessage(getModel().getUnsentMessageFor(index)),
+                        new Scope(getModel().getName() + (getModel().getState() == StudyState.INITIAL_SENDING ? Resources.ROUND_0 : roundIdentifier)),
+                        new org.bihealth.mi.easybus.Participant(getModel().getParticipants()[index].name,
+                                                                getModel().getParticipants()[index].emailAddress));
+    }
+    
+    /** 
+     * Sends the messages to all participants concurrently and waits for all of them with a common timeout
+     * 
+     * @param roundIdentifier
+     * @throws InterruptedException 
+     */
+    private void sendMessagesParallel(String roundIdentifier) throws InterruptedException {
+        
+        // Check for error while receiving and throw exception
+        if (this.stop) {
+            throw new InterruptedException("Process stopped");
+        }
+        
+        // Prepare
+        Map<Integer, FutureTask<Void>> futures = new LinkedHashMap<>();
+        long deadline = System.currentTimeMillis() + getModel().getConnectionSettings().getSendTimeout();
+        Exception error = null;
+        
+        try {
+            
+            // Dispatch all messages not sent yet
+            for (int index = 0; index < getModel().getNumParticipants(); index++) {
+                if (index != getModel().getOwnId() && getModel().getUnsentMessageFor(index) != null) {
+                    futures.put(index, sendMessage(roundIdentifier, index));
+                }
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        
+        // Wait for all results and mark each message sent, remembering the first error
+        boolean interrupted = false;
+        for (Entry<Integer, FutureTask<Void>> entry : futures.entrySet()) {
+            try {
+                
+                // After an interrupt, only collect results which are already available
+                long timeout = interrupted ? 0 : Math.max(0, deadline - System.currentTimeMillis());
+                entry.getValue().get(timeout, TimeUnit.MILLISECONDS);
+                model.markMessageSent(entry.getKey());
+            } catch (InterruptedException e) {
+                interrupted = true;
+                error = error != null ? error : e;
+            } catch (Exception e) {
+                error = error != null ? error : e;
+            }
+        }
+        
+        // Cancel what is still running and persist what has been sent
+        for (FutureTask<Void> future : futures.values()) {
+            future.cancel(true);
+        }
+        save();
+        
+        // Pass error
+        if (error != null) {
+            LOGGER.error("Unable to send message", error);
+            throw new IllegalStateException("Unable to send message!", error);
+        }
+    }
+    
+    /** 
+     * Sends the messages to one participant after another
+     * 
+     * @param roundIdentifier
+     * @throws InterruptedException 
+     */
+    private void sendMessagesSequential(String roundIdentifier) throws InterruptedException {
         
         // Prepare
         FutureTask<Void> future = null;
@@ -301,11 +435,7 @@ public class UserProcess implements MessageListener {
                 
                 try {
                     // Retrieve bus and send message
-
-                    future = getModel().getBus(getModel().getConnectionSettings().getCheckInterval(), false).send(Message.serializeMessage(getModel().getUnsentMessageFor(index)),
-                                    new Scope(getModel().getName() + (getModel().getState() == StudyState.INITIAL_SENDING ? Resources.ROUND_0 : roundIdentifier)),
-                                    new org.bihealth.mi.easybus.Participant(getModel().getParticipants()[index].name,
-                                                                            getModel().getParticipants()[index].emailAddress));
+                    future = sendMessage(roundIdentifier, index);
                     
                     // Wait for result with a timeout time
                     future.get(getModel().getConnectionSettings().getSendTimeout(), TimeUnit.MILLISECONDS);
@@ -316,7 +446,9 @@ public class UserProcess implements MessageListener {
                     // Save
                     save();
                 } catch (Exception e) {
-                     future.cancel(true);
+                    if (future != null) {
+                        future.cancel(true);
+                    }
                     LOGGER.error("Unable to send message" ,e);
                     throw new IllegalStateException("Unable to send message!", e);
                 }
@@ -375,7 +507,7 @@ public class UserProcess implements MessageListener {
             if (getModel().getState() == StudyState.FINISHED) {
                 LOGGER.info("Start calculating and writing result");
                 exportResult();
-                model.getFilename().delete();
+                model.deleteProgram();
             }
             
             // Log finished
@@ -389,6 +521,8 @@ public class UserProcess implements MessageListener {
             // Log and shutdown
             LOGGER.info("Execution stopped");
             shutdown();
+        } finally {
+            markTerminated();
         }
     }
 
@@ -425,6 +559,8 @@ public class UserProcess implements MessageListener {
      * @param the model
      */
     protected void setModel(Study model) {
+        model.setParallelism(parallelism);
+        model.setColumnarFormat(columnarFormat);
         this.model = model;
     }
     
@@ -458,7 +594,8 @@ public class UserProcess implements MessageListener {
     }
     
     /**
-     * Get an interim bus with 1000 milliseconds check interval
+     * Get an interim bus with 1000 milliseconds check interval. The underlying connection is shared with
+     * all other processes using the same mailbox or account and interval.
      * 
      * @return
      */
@@ -467,8 +604,9 @@ public class UserProcess implements MessageListener {
         if (this.getConnectionSettings() instanceof ConnectionSettingsIMAP) {
 
             try {
-                return new BusEmail(new ConnectionIMAP((ConnectionSettingsIMAP) this.getConnectionSettings(),
-                                                       false), 1000);
+                ConnectionSettingsIMAP settings = (ConnectionSettingsIMAP) this.getConnectionSettings();
+                return BusManager.getBus(BusManager.getKey(settings, null, false, 1000),
+                                         () -> new BusEmail(new ConnectionIMAP(settings, false), 1000));
             } catch (BusException e) {
                 LOGGER.error("Unable to get interim bus!", e);
                 throw new IllegalStateException("Unable to get interim bus!");
@@ -478,11 +616,14 @@ public class UserProcess implements MessageListener {
         // Is EasyBackend bus?
         try {
             if (this.getConnectionSettings() instanceof ConnectionSettingsEasyBackend) {
-                return new BusEasyBackend(Resources.SIZE_THREADPOOL,
-                                          getConnectionSettings().getCheckInterval(),
-                                          ((ConnectionSettingsEasyBackend) getConnectionSettings()),
-                                          new Participant(model.getParticipantFromId(model.getOwnId()).name, model.getParticipantFromId(model.getOwnId()).emailAddress),
-                                          getConnectionSettings().getMaxMessageSize());
+                ConnectionSettingsEasyBackend settings = (ConnectionSettingsEasyBackend) getConnectionSettings();
+                Participant self = new Participant(model.getParticipantFromId(model.getOwnId()).name, model.getParticipantFromId(model.getOwnId()).emailAddress);
+                return BusManager.getBus(BusManager.getKey(settings, self, false, settings.getCheckInterval()),
+                                         () -> new BusEasyBackend(Resources.SIZE_THREADPOOL,
+                                                                  settings.getCheckInterval(),
+                                                                  settings,
+                                                                  self,
+                                                                  settings.getMaxMessageSize()));
             }
         } catch (BusException e) {
             LOGGER.error("Unable to get interim bus!", e);
@@ -24,6 +24,7 @@ import org.apache.logging.log4j.Logger;
 import org.bihealth.mi.easybus.BusException;
 import org.bihealth.mi.easybus.ConnectionSettings;
 import org.bihealth.mi.easybus.MessageFilter;
+import org.bihealth.mi.easybus.ThreadManager;
 import org.bihealth.mi.easysmpc.resources.Resources;
 
 import de.tu_darmstadt.cbs.emailsmpc.Bin;
@@ -48,15 +49,21 @@ public class UserProcessCreating extends UserProcess {
      * @param binsNames
      * @param data
      * @param connectionSettings
+     * @param parallelism number of threads used to process bins, 0 for the number of available processors
+     * @param messageFormat format used to encode share and result messages
+     * @param columnarFormat whether the study is saved in the columnar format
      * @throws IllegalStateException
      */
     public UserProcessCreating(String studyTitle,
                         Participant[] participants,
                         Map<String, String> binsNames,
                         Map<String, String> data,
-                        ConnectionSettings connectionSettings) throws IllegalStateException {
+                        ConnectionSettings connectionSettings,
+                        int parallelism,
+                        int messageFormat,
+                        boolean columnarFormat) throws IllegalStateException {
 
-        super(connectionSettings);
+        super(connectionSettings, parallelism, columnarFormat);
         
         // Check
         if (participants == null || binsNames == null || participants.length < 3 || binsNames.size() < 1) {
@@ -80,6 +87,7 @@ public class UserProcessCreating extends UserProcess {
         try {
             // Set model to starting
             getModel().toStarting();
+            getModel().setMessageFormat(messageFormat);
             
             // Init model with generated study name, participants and bins            
             getModel().toInitialSending(studyTitle, participants, createBinsFromMaps(binsNames, participants.length, data), connectionSettings);
@@ -97,12 +105,12 @@ public class UserProcessCreating extends UserProcess {
         }
 
         // Spawns the common steps in an own thread
-        new Thread(new Runnable() {
+        ThreadManager.newThread(new Runnable() {
             @Override
             public void run() {
                 performCommonSteps();
             }
-        }).start();
+        }, false).start();
     }
 
     /**
@@ -114,33 +122,35 @@ public class UserProcessCreating extends UserProcess {
      */
     public static Bin[] createBinsFromMaps(Map<String, String> binsNamesMap, int numberParticipants, Map<String, String> dataMap) {
         // Init
-        Bin[] bins = new Bin[binsNamesMap.size()];
+        String[] names = new String[binsNamesMap.size()];
+        BigDecimal[] values = new BigDecimal[binsNamesMap.size()];
         int i = 0;
         Map<String, String> workingCopyData = new HashMap<>();
         workingCopyData.putAll(dataMap);
         
-        // Create bins
+        // Collect values
         for (Entry<String, String> binsNameEntry : binsNamesMap.entrySet()) {
-            // Init new bin
-            bins[i] = new Bin(binsNameEntry.getKey());
-            bins[i].initialize(numberParticipants);
+            names[i] = binsNameEntry.getKey();
 
             // Set either zero or the data found in data map
             if (dataMap.get(binsNameEntry.getKey()) != null) {
                 try {
-                    bins[i].shareValue(new BigDecimal(dataMap.get(binsNameEntry.getKey()).trim().replace(',', '.')),
-                                       Resources.FRACTIONAL_BITS);
+                    values[i] = new BigDecimal(dataMap.get(binsNameEntry.getKey()).trim().replace(',', '.'));
                 } catch (NumberFormatException e) {
                     LOGGER.error(String.format("Unable to understand value %s for variable %s", dataMap.get(binsNameEntry.getKey()), binsNameEntry.getKey()));
                 }
                 workingCopyData.remove(binsNameEntry.getKey());
             } else {
-                bins[i].shareValue(BigDecimal.ZERO, Resources.FRACTIONAL_BITS);
+                values[i] = BigDecimal.ZERO;
             }
 
             i++;
         }
         
+        // Create bins and share all values at once
+        Bin[] bins = Bin.createBins(names, numberParticipants);
+        Bin.shareValues(bins, values, Resources.FRACTIONAL_BITS);
+        
         // Warning about unmapped variables
         for (Entry<String, String> entry : workingCopyData.entrySet()) {
             LOGGER.warn(String.format("Data for variable \"%s\" was provided, but variable was not found in variable definition", entry.getKey()));
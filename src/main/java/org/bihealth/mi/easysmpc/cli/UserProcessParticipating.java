@@ -25,6 +25,7 @@ import org.bihealth.mi.easybus.ConnectionSettings;
 import org.bihealth.mi.easybus.MessageListener;
 import org.bihealth.mi.easybus.Participant;
 import org.bihealth.mi.easybus.Scope;
+import org.bihealth.mi.easybus.ThreadManager;
 import org.bihealth.mi.easysmpc.resources.Resources;
 
 import de.tu_darmstadt.cbs.emailsmpc.Bin;
@@ -51,13 +52,17 @@ public class UserProcessParticipating extends UserProcess {
      * @param participant
      * @param data 
      * @param connectionSettings
+     * @param parallelism number of threads used to process bins, 0 for the number of available processors
+     * @param columnarFormat whether the study is saved in the columnar format
      */
     public UserProcessParticipating(String studyTitle,
                                     Participant participant,
                                     Map<String, String> data,
-                                    ConnectionSettings connectionSettings) {
+                                    ConnectionSettings connectionSettings,
+                                    int parallelism,
+                                    boolean columnarFormat) {
         // Store
-        super(connectionSettings);
+        super(connectionSettings, parallelism, columnarFormat);
         this.data = data;
         
         // Delete pre-existing bus messages
@@ -76,13 +81,12 @@ public class UserProcessParticipating extends UserProcess {
 
                 if (!received) {
                     // Spawns the following steps in an own thread
-                    Thread thread = new Thread(new Runnable() {
+                    Thread thread = ThreadManager.newThread(new Runnable() {
                         @Override
                         public void run() {
                             performInitialization(message);
                         }
-                    });
-                    thread.setDaemon(false);
+                    }, false);
                     thread.start();
                     received = true;
                 }
@@ -124,6 +128,7 @@ public class UserProcessParticipating extends UserProcess {
 
         } catch (ClassNotFoundException | IllegalArgumentException | IllegalStateException | IOException e) {
             LOGGER.error("Unable to execute particpating users steps", e);
+            markTerminated();
             throw new IllegalStateException("Unable to execute particpating users steps" , e);
         }        
     }
@@ -79,6 +79,12 @@ public class Resources {
     /** Ending for project files */
     public static final String    FILE_ENDING                       = "smpc";                                                                 //$NON-NLS-1$
 
+    /** File ending for study journals */
+    public static final String    FILE_ENDING_JOURNAL               = "journal";                                                              //$NON-NLS-1$
+
+    /** File ending for temporary files replacing a file */
+    public static final String    FILE_ENDING_TEMP                  = "tmp";                                                                  //$NON-NLS-1$
+
     /** About dialog size x */
     public static final int       SIZE_DIALOG_X                     = 500;
 
@@ -156,6 +162,9 @@ public class Resources {
     /** Number of threads in thread pool */
     public static final int       SIZE_THREADPOOL                   = 5;
 
+    /** System property to run bus tasks and polling loops on virtual threads, if supported by the JVM */
+    public static final String    PROPERTY_VIRTUAL_THREADS          = "easysmpc.threads.virtual";
+
     /** Fractional bits for decimal values */
     public static final int       FRACTIONAL_BITS                   = 32;
 
@@ -168,6 +177,9 @@ public class Resources {
     /** CLI stop processing string */
     public static final String    STOP_CLI_PROCESS_STRING           = "stop";
 
+    /** Interval in which the CLI checks whether processing should be stopped while waiting for messages in milliseconds */
+    public static final int       INTERVAL_CHECK_STOP_CLI           = 1000;
+
     /** Retries when sending with HTTP for Easybackend */
     public static final int       RETRY_EASYBACKEND_NUMBER_RETRY    = 5;
 
@@ -183,8 +195,62 @@ public class Resources {
     /** Auth client id */
     public static final String    AUTH_CLIENTID_DEFAULT             = "easy-client";
     
+    /** Maximal time the easybackend waits before answering a long-polling request in milliseconds */
+    public static final int       LONG_POLL_TIMEOUT_EASYBACKEND     = 25000;
+    
+    /** Minimal interval between two long-polling requests in milliseconds */
+    public static final int       LONG_POLL_MIN_INTERVAL_EASYBACKEND = 500;
+    
+    /** Number of HTTP connections kept alive per server */
+    public static final int       HTTP_CONNECTION_POOL_SIZE_DEFAULT = 10;
+    
+    /** Interval to check for new e-mails with NOOP if IMAP IDLE is not available in milliseconds */
+    public static final int       INTERVAL_NOOP_IMAP                = 5000;
+    
     /** Interval to check easybackend automatically in milliseconds */
     public static final int       INTERVAL_CHECK_EASYBACKEND_DEFAULT = 10000;
+
+    /** Minimal number of bins processed by one task when processing bins in parallel */
+    public static final int       MIN_BINS_PER_PARALLEL_TASK        = 1000;
+
+    /** Delay before the first retry of a failed send in milliseconds */
+    public static final long      RETRY_INITIAL_DELAY_DEFAULT       = 1000;
+
+    /** Maximal delay between two retries of a failed send in milliseconds */
+    public static final long      RETRY_MAX_DELAY_DEFAULT           = 60000;
+
+    /** Maximal number of attempts to send a message, 0 for unlimited */
+    public static final int       RETRY_MAX_ATTEMPTS_DEFAULT        = 0;
+
+    /** Fraction of the retry delay which is randomized */
+    public static final double    RETRY_JITTER_DEFAULT              = 0.5d;
+
+    /** Number of consecutive failed sends after which no sends are attempted for a while */
+    public static final int       CIRCUIT_BREAKER_THRESHOLD_DEFAULT = 5;
+
+    /** Time for which no sends are attempted after too many consecutive failures in milliseconds */
+    public static final long      CIRCUIT_BREAKER_OPEN_TIME_DEFAULT = 30000;
+
+    /** Maximal total size of fragments of incomplete messages held in memory in characters */
+    public static final long      FRAGMENTS_MAX_PENDING_SIZE_DEFAULT = 256L * 1024 * 1024;
+
+    /** Maximal age of fragments of incomplete messages held in memory in milliseconds */
+    public static final long      FRAGMENTS_MAX_PENDING_AGE_DEFAULT = 24L * 60 * 60 * 1000;
+
+    /** Size of a study journal relative to its snapshot above which the journal is compacted into a new snapshot */
+    public static final double    JOURNAL_MAX_RELATIVE_SIZE         = 1d;
+
+    /** Default number of studies processed concurrently in CLI batch mode */
+    public static final int       SIZE_BATCH_PARALLELISM_DEFAULT    = 10;
+
+    /** Interval in which the CLI batch mode reports the progress of all studies in milliseconds */
+    public static final int       INTERVAL_REPORT_BATCH             = 30000;
+
+    /** Interval in which the CLI batch mode checks whether further studies can be started in milliseconds */
+    public static final int       INTERVAL_SCHEDULE_BATCH           = 200;
+
+    /** Prefix of comment lines in CLI batch manifests */
+    public static final String    BATCH_COMMENT_PREFIX              = "#";
     
     public static Border getDefaultBorder() {
         
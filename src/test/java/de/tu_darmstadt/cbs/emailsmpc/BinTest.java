@@ -13,7 +13,16 @@
  */
 package de.tu_darmstadt.cbs.emailsmpc;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
 import org.junit.Test;
 
@@ -45,5 +54,72 @@ public class BinTest {
     assertTrue(original.equals(copy));
   }
 
-}
+  /**
+   * Test serialization, including missing shares.
+   * 
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  @Test
+  public void testSerialization() throws IOException, ClassNotFoundException {
+    Bin original = BinTest.getInitializedBin();
+    original.transferSharesOutIn(1);
+    original.setInShare(original.getOutShare(2), 2);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(original);
+    }
+    Bin copy;
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      copy = (Bin) in.readObject();
+    }
+    assertTrue(original.equals(copy));
+    assertNull(copy.getOutShare(1));
+    assertArrayEquals(new int[] {1, 2}, copy.getFilledInShareIndices());
+    assertArrayEquals(new int[] {0, 2, 3}, copy.getFilledOutShareIndices());
+  }
+
+  /**
+   * Test reconstruction from shares.
+   */
+  @Test
+  public void testReconstruct() {
+    Bin bin = BinTest.getInitializedBin();
+    for (int i = 0; i < 4; i++) {
+      bin.setInShare(bin.getOutShare(i), i);
+    }
+    assertEquals(0, BigDecimal.valueOf(5).compareTo(bin.reconstructBin(32)));
+  }
+
+  /**
+   * Test sharing several values, null values are shared as zero.
+   */
+  @Test
+  public void testShareValues() {
+    Bin[] bins = new Bin[] { new Bin("A", 3), new Bin("B", 3) };
+    Bin.shareValues(bins, new BigDecimal[] { BigDecimal.valueOf(7), null }, 32);
+    for (Bin bin : bins) {
+      assertArrayEquals(new int[] {0, 1, 2}, bin.getFilledOutShareIndices());
+      for (int i = 0; i < 3; i++) {
+        bin.setInShare(bin.getOutShare(i), i);
+      }
+    }
+    assertEquals(0, BigDecimal.valueOf(7).compareTo(bins[0].reconstructBin(32)));
+    assertEquals(0, BigDecimal.ZERO.compareTo(bins[1].reconstructBin(32)));
+  }
 
+  /**
+   * Test bins storing their shares in common columns, a clone stores its shares on its own.
+   */
+  @Test
+  public void testCreateBins() {
+    Bin[] bins = Bin.createBins(new String[] { "A", "B" }, 3);
+    Bin.shareValues(bins, new BigDecimal[] { BigDecimal.valueOf(7), BigDecimal.valueOf(8) }, 32);
+    Bin copy = (Bin) bins[0].clone();
+    bins[0].clearShares();
+    assertArrayEquals(new int[0], bins[0].getFilledOutShareIndices());
+    assertArrayEquals(new int[] {0, 1, 2}, bins[1].getFilledOutShareIndices());
+    assertArrayEquals(new int[] {0, 1, 2}, copy.getFilledOutShareIndices());
+  }
+
+}
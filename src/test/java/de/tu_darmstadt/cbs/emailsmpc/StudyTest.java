@@ -13,12 +13,18 @@
  */
 package de.tu_darmstadt.cbs.emailsmpc;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -126,6 +132,26 @@ public class StudyTest {
         assertTrue(copy.getStudyUID().equals(model0.getStudyUID()));
     }
     
+    /**
+     * Bins are views on the shares of their study, a clone has its own shares.
+     *
+     * @throws IllegalStateException the illegal state exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void BinsAreViews() throws IllegalStateException, IOException {
+        Study model0 = StudyTest.getInitializedModel(3, 4);
+        Study copy = (Study) model0.clone();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(model0.getBins()[i].isView(model0.getShares(), i));
+            assertTrue(copy.getBins()[i].isView(copy.getShares(), i));
+        }
+        model0.getBins()[0].clearShares();
+        assertEquals(0, model0.getBins()[0].getFilledInShareIndices().length);
+        assertEquals(1, copy.getBins()[0].getFilledInShareIndices().length);
+        assertFalse(model0.areSharesComplete(0));
+    }
+    
     /**
      * Non colliding UID.
      */
@@ -155,6 +181,139 @@ public class StudyTest {
             assertTrue(load.equals(testmodel));
     }
 
+    /**
+     * Save changes to the journal, replay the journal and drop a torn record when appending.
+     *
+     * @throws ClassNotFoundException the class not found exception
+     * @throws IllegalStateException the illegal state exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws IllegalArgumentException the illegal argument exception
+     * @throws NoSuchAlgorithmException the no such algorithm exception
+     */
+    @Test
+    public void SaveLoadJournal() throws ClassNotFoundException, IllegalStateException, IOException, IllegalArgumentException, NoSuchAlgorithmException {
+        Study model0 = StudyTest.getInitializedModel(3, 4);
+        File fn = File.createTempFile("testing", ".smpc");
+        File journal = StudyJournal.getJournalFile(fn);
+        fn.deleteOnExit();
+        journal.deleteOnExit();
+        model0.setFilename(fn);
+        Study model1 = new Study();
+        model1.toParticipating();
+        model1.toEnteringValues(model0.getUnsentMessageFor(1).data);
+        model1.toSendingShares(new BigDecimal[] { BigDecimal.ONE, BigDecimal.ONE, BigDecimal.ONE, BigDecimal.ONE });
+        model0.markMessageSent(1);
+        model0.markMessageSent(2);
+        model0.toRecievingShares();
+        model0.saveProgram();
+        long sizeSnapshot = fn.length();
+        model0.setShareFromMessage(model1.getUnsentMessageFor(0));
+        model0.saveProgram();
+        assertTrue(fn.length() == sizeSnapshot);
+        assertTrue(journal.length() > 0);
+        Files.write(journal.toPath(), new byte[] { 0, 0, 0, 100, 1, 2 }, StandardOpenOption.APPEND);
+        long sizeJournal = journal.length();
+        Study load = Study.loadModel(fn);
+        assertTrue(load.equals(model0));
+        assertTrue(load.areSharesComplete(1));
+        assertFalse(load.areSharesComplete(2));
+        assertEquals(sizeJournal, journal.length());
+        load.markMessageRetrieved(2);
+        load.saveProgram();
+        assertEquals(sizeJournal - 6 + 13, journal.length());
+        Study reload = Study.loadModel(fn);
+        assertTrue(reload.equals(load));
+        assertTrue(reload.areSharesComplete(1));
+        load.deleteProgram();
+        assertFalse(fn.exists() || journal.exists());
+    }
+
+    /**
+     * Save and load the columnar format, including a journal on top of a columnar snapshot.
+     *
+     * @throws ClassNotFoundException the class not found exception
+     * @throws IllegalStateException the illegal state exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws IllegalArgumentException the illegal argument exception
+     * @throws NoSuchAlgorithmException the no such algorithm exception
+     */
+    @Test
+    public void SaveLoadColumnar() throws ClassNotFoundException, IllegalStateException, IOException, IllegalArgumentException, NoSuchAlgorithmException {
+        Study model0 = StudyTest.getInitializedModel(3, 20);
+        File fn = File.createTempFile("testing", ".smpc");
+        fn.deleteOnExit();
+        StudyJournal.getJournalFile(fn).deleteOnExit();
+        model0.setFilename(fn);
+        model0.setColumnarFormat(true);
+        Study model1 = new Study();
+        model1.toParticipating();
+        model1.toEnteringValues(model0.getUnsentMessageFor(1).data);
+        BigDecimal[] values = new BigDecimal[20];
+        Arrays.fill(values, BigDecimal.TEN);
+        model1.toSendingShares(values);
+        model0.markMessageSent(1);
+        model0.markMessageSent(2);
+        model0.toRecievingShares();
+        model0.saveProgram();
+        assertTrue(StudyColumns.isColumnar(fn));
+        Study load = Study.loadModel(fn);
+        assertTrue(load.isColumnarFormat());
+        assertTrue(load.areSharesComplete(0));
+        assertFalse(load.areSharesComplete(1));
+        assertTrue(load.equals(model0));
+        model0.setShareFromMessage(model1.getUnsentMessageFor(0));
+        model0.saveProgram();
+        load = Study.loadModel(fn);
+        assertTrue(load.areSharesComplete(1));
+        assertTrue(load.equals(model0));
+        load.deleteProgram();
+    }
+
+    /**
+     * Save a new snapshot over a loaded columnar snapshot, which is memory-mapped.
+     *
+     * @throws ClassNotFoundException the class not found exception
+     * @throws IllegalStateException the illegal state exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws IllegalArgumentException the illegal argument exception
+     */
+    @Test
+    public void SaveOverColumnar() throws ClassNotFoundException, IllegalStateException, IOException, IllegalArgumentException {
+        Study model0 = StudyTest.getInitializedModel(3, 20);
+        File fn = File.createTempFile("testing", ".smpc");
+        fn.deleteOnExit();
+        File journal = StudyJournal.getJournalFile(fn);
+        journal.deleteOnExit();
+        model0.setFilename(fn);
+        model0.setColumnarFormat(true);
+        model0.saveProgram();
+        Study load = Study.loadModel(fn);
+        assertTrue(load.equals(model0));
+        
+        // Force a columnar snapshot over the mapped file
+        load.setColumnarFormat(false);
+        load.setColumnarFormat(true);
+        load.saveProgram();
+        assertTrue(StudyColumns.isColumnar(fn));
+        assertTrue(load.equals(model0));
+        Study reload = Study.loadModel(fn);
+        assertTrue(reload.equals(model0));
+        
+        // And a serialized snapshot
+        reload.setColumnarFormat(false);
+        reload.saveProgram();
+        assertFalse(StudyColumns.isColumnar(fn));
+        assertTrue(reload.equals(model0));
+        assertTrue(Study.loadModel(fn).equals(model0));
+        
+        // Delete while mapped
+        reload = Study.loadModel(fn);
+        reload.setColumnarFormat(true);
+        reload.saveProgram();
+        Study.loadModel(fn).deleteProgram();
+        assertFalse(fn.exists() || journal.exists());
+    }
+
     /**
      * Test with three.
      *
@@ -163,9 +322,10 @@ public class StudyTest {
      * @throws IOException Signals that an I/O exception has occurred.
      * @throws IllegalArgumentException the illegal argument exception
      * @throws NoSuchAlgorithmException the no such algorithm exception
+     * @throws InterruptedException the interrupted exception
      */
     @Test
-    public void TestWithThree() throws ClassNotFoundException, IllegalStateException, IOException, IllegalArgumentException, NoSuchAlgorithmException {
+    public void TestWithThree() throws ClassNotFoundException, IllegalStateException, IOException, IllegalArgumentException, NoSuchAlgorithmException, InterruptedException {
         BigDecimal[] secrets0 = { BigDecimal.valueOf(1), BigDecimal.valueOf(2),
                 BigDecimal.valueOf(3), BigDecimal.valueOf(4) };
         Study model0 = StudyTest.getInitializedModel(3, 4, secrets0);
@@ -196,8 +356,11 @@ public class StudyTest {
         model0.toRecievingShares();
         model1.toRecievingShares();
         model2.toRecievingShares();
+        assertFalse(model0.awaitSharesComplete(10));
         model0.setShareFromMessage(share10);
+        assertFalse(model0.areSharesComplete());
         model0.setShareFromMessage(share20);
+        assertTrue(model0.areSharesComplete());
         model1.setShareFromMessage(share21);
         model2.setShareFromMessage(share12);
         model0.toSendingResult();
@@ -218,8 +381,10 @@ public class StudyTest {
         model0.toRecievingResult();
         model1.toRecievingResult();
         model2.toRecievingResult();
+        assertFalse(model0.areSharesComplete());
         model0.setShareFromMessage(result10);
         model0.setShareFromMessage(result20);
+        assertTrue(model0.awaitSharesComplete(0));
         model1.setShareFromMessage(result01);
         model1.setShareFromMessage(result21);
         model2.setShareFromMessage(result02);
@@ -240,4 +405,124 @@ public class StudyTest {
             assertTrue(sum0[i].value.equals(sum[i]));
         }
     }
+
+    /**
+     * Test with three and many bins processed in parallel.
+     *
+     * @throws ClassNotFoundException the class not found exception
+     * @throws IllegalStateException the illegal state exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws IllegalArgumentException the illegal argument exception
+     * @throws NoSuchAlgorithmException the no such algorithm exception
+     */
+    @Test
+    public void TestWithThreeParallel() throws ClassNotFoundException, IllegalStateException, IOException, IllegalArgumentException, NoSuchAlgorithmException {
+        int numBins = 5000;
+        BigDecimal[][] secrets = new BigDecimal[3][numBins];
+        for (int i = 0; i < numBins; i++) {
+            secrets[0][i] = BigDecimal.valueOf(i);
+            secrets[1][i] = BigDecimal.valueOf(7 * i);
+            secrets[2][i] = BigDecimal.valueOf(11 * i);
+        }
+        Study[] models = new Study[] { StudyTest.getInitializedModel(3, numBins, secrets[0]), new Study(), new Study() };
+        for (Study model : models) {
+            model.setParallelism(4);
+        }
+        for (int i = 1; i < 3; i++) {
+            models[i].toParticipating();
+            models[i].toEnteringValues(models[0].getUnsentMessageFor(i).data);
+            models[0].markMessageSent(i);
+        }
+        for (int i = 1; i < 3; i++) {
+            models[i].toSendingShares(secrets[i]);
+        }
+        Message[][] shares = new Message[3][3];
+        for (int i = 1; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                if (i != j) {
+                    shares[i][j] = models[i].getUnsentMessageFor(j);
+                    models[i].markMessageSent(j);
+                }
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            models[i].toRecievingShares();
+            for (int j = 1; j < 3; j++) {
+                if (i != j) {
+                    models[i].setShareFromMessage(shares[j][i]);
+                }
+            }
+        }
+        Message[][] results = new Message[3][3];
+        for (int i = 0; i < 3; i++) {
+            models[i].toSendingResult();
+            for (int j = 0; j < 3; j++) {
+                if (i != j) {
+                    results[i][j] = models[i].getUnsentMessageFor(j);
+                    models[i].markMessageSent(j);
+                }
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            models[i].toRecievingResult();
+            for (int j = 0; j < 3; j++) {
+                if (i != j) {
+                    models[i].setShareFromMessage(results[j][i]);
+                }
+            }
+            models[i].toFinished();
+        }
+        for (int i = 0; i < 3; i++) {
+            BinResult[] sum = models[i].getAllResults();
+            assertTrue(sum.length == numBins);
+            for (int j = 0; j < numBins; j++) {
+                assertTrue(sum[j].value.compareTo(BigDecimal.valueOf(19 * j)) == 0);
+            }
+        }
+    }
+
+    /**
+     * Binary and serialized message formats.
+     *
+     * @throws ClassNotFoundException the class not found exception
+     * @throws IllegalStateException the illegal state exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void MessageFormats() throws ClassNotFoundException, IllegalStateException, IOException {
+        int numBins = 100;
+        Study model0 = StudyTest.getInitializedModel(3, numBins);
+        Study model1 = new Study();
+        Study model2 = new Study();
+        model1.toParticipating();
+        model2.toParticipating();
+        model1.toEnteringValues(model0.getUnsentMessageFor(1).data);
+        model2.toEnteringValues(model0.getUnsentMessageFor(2).data);
+        assertTrue(model1.getMessageFormat() == MessageCodec.FORMAT_SERIALIZED);
+        model1.setMessageFormat(MessageCodec.FORMAT_BINARY_V1);
+        BigDecimal[] secrets = new BigDecimal[numBins];
+        for (int i = 0; i < numBins; i++) {
+            secrets[i] = BigDecimal.valueOf(i);
+        }
+        model1.toSendingShares(secrets);
+        model2.toSendingShares(secrets);
+        String binary = Message.getMessageData(model1.getUnsentMessageFor(0));
+        String serialized = Message.getMessageData(model2.getUnsentMessageFor(0));
+        assertTrue(binary.length() < serialized.length());
+        MessageShare decodedBinary = MessageShare.decodeMessage(binary, model0);
+        MessageShare decodedSerialized = MessageShare.decodeMessage(serialized, model0);
+        assertTrue(decodedBinary.bins.length == numBins);
+        assertTrue(decodedSerialized.bins.length == numBins);
+        for (int i = 0; i < numBins; i++) {
+            assertTrue(decodedBinary.bins[i].name.equals(decodedSerialized.bins[i].name));
+        }
+        Study renamed = (Study) model0.clone();
+        renamed.getBins()[0] = new Bin("renamed", 3);
+        try {
+            MessageShare.decodeMessage(binary, renamed);
+            fail("Bins of message must match study");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
 }
@@ -181,4 +181,100 @@ public class ArithmeticSharingTest {
         assertEquals(ArithmeticSharing.reconstruct(shares2), secret2);
         assertEquals(ArithmeticSharing.reconstruct(shares3), secret3);
     }
+
+    /**
+     * Custom prime uses the generic path. Blinds have 127 bits, so the prime must be larger.
+     */
+    @Test
+    public void customPrimeInt() {
+        int numParties = 5;
+        BigInteger prime = BigInteger.ONE.shiftLeft(521).subtract(BigInteger.ONE);
+        ArithmeticSharing as = new ArithmeticSharing(numParties);
+        as.setPrime(prime);
+        SecureRandom randomGenerator = new SecureRandom();
+        BigInteger secret1 = new BigInteger(80, randomGenerator);
+        BigInteger secret2 = new BigInteger(80, randomGenerator);
+
+        ArithmeticShare[] shares1 = as.share(secret1);
+        ArithmeticShare[] shares2 = as.share(secret2);
+        ArithmeticShare[] sum = new ArithmeticShare[numParties];
+        for (int i = 0; i < numParties; i++) {
+            assertEquals(shares1[i].prime, prime);
+            sum[i] = shares1[i].add(shares2[i]);
+        }
+        assertEquals(ArithmeticSharing.reconstruct(shares1), secret1);
+        assertEquals(ArithmeticSharing.reconstruct(sum), secret1.add(secret2));
+    }
+
+    /**
+     * Non-canonical shares, e.g. from older study files, are still reconstructed
+     */
+    @Test
+    public void nonCanonicalInt() {
+        BigInteger prime = ArithmeticSharing.DEFAULT_PRIME;
+        BigInteger secret = BigInteger.valueOf(764023475);
+        BigInteger blind = BigInteger.valueOf(-123456789);
+        ArithmeticShare[] shares = new ArithmeticShare[] { new ArithmeticShare(blind, prime),
+                                                           new ArithmeticShare(secret.add(prime).subtract(blind), prime) };
+        assertEquals(ArithmeticSharing.reconstruct(shares), secret);
+        assertEquals(ArithmeticSharing.reconstruct(new ArithmeticShare[] { shares[0].add(shares[1]) }), secret);
+    }
+
+    /**
+     * Limb arithmetic modulo 2^127-1 matches BigInteger arithmetic, including values close to the prime
+     */
+    @Test
+    public void mersenneLimbs() {
+        BigInteger prime = ArithmeticSharing.DEFAULT_PRIME;
+        SecureRandom randomGenerator = new SecureRandom();
+        BigInteger[] values = new BigInteger[] { BigInteger.ZERO, BigInteger.ONE, prime.subtract(BigInteger.ONE),
+                                                 prime.subtract(BigInteger.TWO), BigInteger.ONE.shiftLeft(126),
+                                                 BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE),
+                                                 new BigInteger(127, randomGenerator).mod(prime) };
+        for (BigInteger a : values) {
+            for (BigInteger b : values) {
+                long high = Mersenne127.addHigh(Mersenne127.toHigh(a), Mersenne127.toLow(a), Mersenne127.toHigh(b), Mersenne127.toLow(b));
+                long low = Mersenne127.addLow(Mersenne127.toHigh(a), Mersenne127.toLow(a), Mersenne127.toHigh(b), Mersenne127.toLow(b));
+                assertEquals(a.add(b).mod(prime), Mersenne127.toBigInteger(high, low));
+            }
+        }
+    }
+
+    /**
+     * Batch sharing
+     */
+    @Test
+    public void shareAllDec() {
+        int numParties = 5;
+        int fractionalBits = 32;
+        double delta = 0.01;
+        ArithmeticSharing as = new ArithmeticSharing(numParties);
+        BigDecimal[] secrets = new BigDecimal[1000];
+        for (int i = 0; i < secrets.length; i++) {
+            secrets[i] = BigDecimal.valueOf(3 * i + 7 + 0.003 * i);
+        }
+        ArithmeticShare[][] shares = as.shareAll(secrets, fractionalBits);
+        assertEquals(shares.length, secrets.length);
+        for (int i = 0; i < secrets.length; i++) {
+            assertEquals(shares[i].length, numParties);
+            assertEquals(ArithmeticSharing.reconstruct(shares[i], fractionalBits).doubleValue(), secrets[i].doubleValue(), delta);
+        }
+    }
+
+    /**
+     * Batch sharing with a prime that does not fit into share vectors
+     */
+    @Test
+    public void shareAllLargePrime() {
+        int numParties = 3;
+        BigInteger prime = BigInteger.ONE.shiftLeft(160).nextProbablePrime();
+        ArithmeticSharing as = new ArithmeticSharing(numParties);
+        as.setPrime(prime);
+        BigInteger[] secrets = new BigInteger[] { BigInteger.ONE.shiftLeft(140), BigInteger.valueOf(42) };
+        ArithmeticShare[][] shares = as.shareAll(secrets);
+        for (int i = 0; i < secrets.length; i++) {
+            assertEquals(shares[i][0].prime, prime);
+            assertEquals(ArithmeticSharing.reconstruct(shares[i]), secrets[i]);
+        }
+    }
 }
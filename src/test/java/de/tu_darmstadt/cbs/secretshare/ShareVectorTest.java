@@ -0,0 +1,153 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tu_darmstadt.cbs.secretshare;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import org.junit.Test;
+
+/**
+ * Unit test for share vectors
+ * @author agent
+ */
+public class ShareVectorTest {
+
+    /**
+     * Creates random secrets
+     *
+     * @param size
+     * @param bits
+     * @param random
+     * @return
+     */
+    private static BigInteger[] getSecrets(int size, int bits, SecureRandom random) {
+        BigInteger[] secrets = new BigInteger[size];
+        for (int i = 0; i < size; i++) {
+            secrets[i] = new BigInteger(bits, random);
+        }
+        return secrets;
+    }
+
+    /**
+     * Share and reconstruct with the default prime
+     */
+    @Test
+    public void fivePartiesInt() {
+        SecureRandom random = new SecureRandom();
+        BigInteger[] secrets = getSecrets(100, 126, random);
+        ShareVector[] shares = ShareVector.share(secrets, 5, ArithmeticSharing.DEFAULT_PRIME, random);
+        assertEquals(5, shares.length);
+        assertEquals(100, shares[0].size());
+        assertArrayEquals(secrets, ShareVector.reconstruct(shares));
+    }
+
+    /**
+     * Share and reconstruct decimals
+     */
+    @Test
+    public void fivePartiesDec() {
+        int fractionalBits = 32;
+        SecureRandom random = new SecureRandom();
+        BigDecimal[] secrets = new BigDecimal[] { BigDecimal.valueOf(7.634), BigDecimal.valueOf(764023475.927456326789234) };
+        BigInteger[] fixed = new BigInteger[secrets.length];
+        for (int i = 0; i < secrets.length; i++) {
+            fixed[i] = ArithmeticSharing.convertToFixedPoint(secrets[i], fractionalBits);
+        }
+        BigDecimal[] result = ShareVector.reconstruct(ShareVector.share(fixed, 5, ArithmeticSharing.DEFAULT_PRIME, random), fractionalBits);
+        for (int i = 0; i < secrets.length; i++) {
+            assertEquals(secrets[i].doubleValue(), result[i].doubleValue(), 0.01);
+        }
+    }
+
+    /**
+     * Homomorphic addition, including a 128-bit prime to exercise overflow handling
+     */
+    @Test
+    public void homomorphityInt() {
+        SecureRandom random = new SecureRandom();
+        BigInteger[] primes = new BigInteger[] { ArithmeticSharing.DEFAULT_PRIME,
+                                                 BigInteger.ONE.shiftLeft(128).subtract(BigInteger.valueOf(159)),
+                                                 BigInteger.valueOf(1000003) };
+        for (BigInteger prime : primes) {
+            int numParties = 15;
+            BigInteger[] secrets1 = getSecrets(50, prime.bitLength() - 2, random);
+            BigInteger[] secrets2 = getSecrets(50, prime.bitLength() - 2, random);
+            ShareVector[] shares1 = ShareVector.share(secrets1, numParties, prime, random);
+            ShareVector[] shares2 = ShareVector.share(secrets2, numParties, prime, random);
+            ShareVector[] sum = new ShareVector[numParties];
+            for (int i = 0; i < numParties; i++) {
+                sum[i] = shares1[i].add(shares2[i]);
+            }
+            BigInteger[] result = ShareVector.reconstruct(sum);
+            for (int i = 0; i < secrets1.length; i++) {
+                assertEquals(secrets1[i].add(secrets2[i]).mod(prime), result[i]);
+            }
+        }
+    }
+
+    /**
+     * Sums at an index and over a range, writing and reading values
+     *
+     * @throws IOException
+     */
+    @Test
+    public void columns() throws IOException {
+        SecureRandom random = new SecureRandom();
+        BigInteger[] secrets = getSecrets(10, 126, random);
+        ShareVector[] shares = ShareVector.share(secrets, 3, ArithmeticSharing.DEFAULT_PRIME, random);
+        ShareVector sum = new ShareVector(10, ArithmeticSharing.DEFAULT_PRIME);
+        for (ShareVector vector : shares) {
+            sum.addInPlace(vector, 0, 5);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i < 5 ? secrets[i] : BigInteger.ZERO, sum.getValue(i));
+            assertEquals(secrets[i], ShareVector.getSum(shares, i));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        for (int i = 0; i < 10; i++) {
+            shares[0].write(i, output);
+        }
+        ShareVector copy = new ShareVector(10, ArithmeticSharing.DEFAULT_PRIME);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        for (int i = 0; i < 10; i++) {
+            copy.read(i, buffer, 16 * i);
+        }
+        assertEquals(shares[0], copy);
+    }
+
+    /**
+     * Conversion from and to arithmetic shares
+     */
+    @Test
+    public void conversion() {
+        ArithmeticSharing as = new ArithmeticSharing(7);
+        BigInteger secret = BigInteger.valueOf(76853235);
+        ArithmeticShare[] shares = as.share(secret);
+        ShareVector vector = new ShareVector(shares);
+        assertEquals(secret, ArithmeticSharing.reconstruct(vector.toShares()));
+        for (int i = 0; i < shares.length; i++) {
+            assertEquals(shares[i].value.mod(shares[i].prime), vector.getValue(i));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bihealth.mi.easybus.ConnectionSettings.ExchangeMode;
+import org.bihealth.mi.easybus.implementations.local.BusLocal;
+import org.junit.Test;
+
+/**
+ * Tests sharing buses
+ * 
+ * @author agent
+ */
+public class BusManagerTest {
+
+    /**
+     * Local bus which counts instances and can be stopped
+     * 
+     * @author agent
+     */
+    private static class BusCounting extends BusLocal {
+        
+        /** Number of buses alive */
+        private static final AtomicInteger ALIVE = new AtomicInteger();
+        /** Alive */
+        private volatile boolean           alive = true;
+
+        /**
+         * Creates a new instance
+         */
+        BusCounting() {
+            super(1);
+            ALIVE.incrementAndGet();
+        }
+
+        @Override
+        public boolean isAlive() {
+            return alive;
+        }
+
+        @Override
+        public void stop() {
+            if (alive) {
+                alive = false;
+                ALIVE.decrementAndGet();
+                getExecutor().shutdown();
+            }
+        }
+    }
+    
+    /**
+     * Handles share one bus which is stopped with the last handle
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void share() throws Exception {
+        
+        // Create
+        Bus bus1 = BusManager.getBus("key", () -> new BusCounting());
+        Bus bus2 = BusManager.getBus("key", () -> new BusCounting());
+        assertEquals(1, BusCounting.ALIVE.get());
+        assertEquals(2, BusManager.getReferences("key"));
+        
+        // Receive via one handle, send via the other
+        Participant participant = new Participant("name", "name@example.com");
+        CountDownLatch received = new CountDownLatch(1);
+        bus1.receive(new Scope("scope"), participant, new MessageListener() {
+            @Override
+            public void receive(String message) {
+                received.countDown();
+            }
+
+            @Override
+            public void receiveError(Exception exception) {
+                // Empty by design
+            }
+        });
+        bus2.send("message", new Scope("scope"), participant).get(10, TimeUnit.SECONDS);
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        
+        // Stop
+        bus1.stop();
+        assertFalse(bus1.isAlive());
+        assertTrue(bus2.isAlive());
+        assertEquals(1, BusCounting.ALIVE.get());
+        bus2.stop();
+        bus2.stop();
+        assertEquals(0, BusCounting.ALIVE.get());
+        assertEquals(0, BusManager.getReferences("key"));
+    }
+    
+    /**
+     * A bus which has died is replaced for existing handles
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void replace() throws Exception {
+        
+        // Create and subscribe
+        List<Bus> created = new ArrayList<>();
+        BusManager.BusFactory factory = () -> {
+            Bus bus = new BusCounting();
+            created.add(bus);
+            return bus;
+        };
+        Bus bus1 = BusManager.getBus("replace", factory);
+        Participant participant = new Participant("name", "name@example.com");
+        CountDownLatch received = new CountDownLatch(1);
+        bus1.receive(new Scope("scope"), participant, new MessageListener() {
+            @Override
+            public void receive(String message) {
+                received.countDown();
+            }
+
+            @Override
+            public void receiveError(Exception exception) {
+                // Empty by design
+            }
+        });
+        
+        // Let the bus die and obtain another handle
+        created.get(0).stop();
+        assertFalse(bus1.isAlive());
+        Bus bus2 = BusManager.getBus("replace", factory);
+        assertEquals(2, created.size());
+        assertEquals(2, BusManager.getReferences("replace"));
+        
+        // The existing handle uses the new bus
+        assertTrue(bus1.isAlive());
+        bus2.send("message", new Scope("scope"), participant).get(10, TimeUnit.SECONDS);
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        
+        // Stop
+        bus1.stop();
+        bus2.stop();
+        assertFalse(created.get(1).isAlive());
+        assertEquals(0, BusManager.getReferences("replace"));
+    }
+    
+    /**
+     * Buses polling in different intervals are not shared
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void interval() throws Exception {
+        
+        // Settings
+        ConnectionSettings settings = new ConnectionSettings() {
+            
+            /** SVUID */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String getIdentifier() {
+                return "interval@example.com";
+            }
+
+            @Override
+            public boolean isValid(boolean usePasswordProvider) {
+                return true;
+            }
+
+            @Override
+            public int getCheckInterval() {
+                return 5000;
+            }
+
+            @Override
+            public int getSendTimeout() {
+                return 1000;
+            }
+
+            @Override
+            public int getMaxMessageSize() {
+                return 1000;
+            }
+
+            @Override
+            public ExchangeMode getExchangeMode() {
+                return ExchangeMode.EMAIL;
+            }
+        };
+        
+        // Keys
+        String keyInterim = BusManager.getKey(settings, null, false, 1000);
+        String keyStudy = BusManager.getKey(settings, null, false, settings.getCheckInterval());
+        assertNotEquals(keyInterim, keyStudy);
+        assertEquals(keyStudy, BusManager.getKey(settings, null, false, 5000));
+        
+        // Buses
+        Bus interim = BusManager.getBus(keyInterim, () -> new BusCounting());
+        Bus study1 = BusManager.getBus(keyStudy, () -> new BusCounting());
+        Bus study2 = BusManager.getBus(keyStudy, () -> new BusCounting());
+        assertEquals(2, BusCounting.ALIVE.get());
+        assertEquals(1, BusManager.getReferences(keyInterim));
+        assertEquals(2, BusManager.getReferences(keyStudy));
+        
+        // Stop
+        interim.stop();
+        study1.stop();
+        study2.stop();
+        assertEquals(0, BusCounting.ALIVE.get());
+    }
+}
@@ -0,0 +1,326 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests sending and dispatching in the bus
+ * 
+ * @author agent
+ */
+public class BusTest {
+
+    /**
+     * Bus failing a given number of times before sending successfully
+     * 
+     * @author agent
+     */
+    private static class BusFailing extends Bus {
+
+        /** Number of failures before success */
+        private final int           failures;
+        /** Number of attempts */
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        /**
+         * Creates a new instance
+         * 
+         * @param failures
+         */
+        BusFailing(int failures) {
+            super(1);
+            this.failures = failures;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return true;
+        }
+
+        @Override
+        public void stop() {
+            getExecutor().shutdownNow();
+        }
+
+        @Override
+        protected Void sendInternal(BusMessage message) throws Exception {
+            if (attempts.incrementAndGet() <= failures) {
+                throw new BusException("Server not available");
+            }
+            return null;
+        }
+
+        @Override
+        public void purge(MessageFilter filter) throws BusException, InterruptedException {
+            // Empty by design
+        }
+    }
+    
+    /**
+     * Retries until sent
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void retry() throws Exception {
+        BusFailing bus = new BusFailing(3);
+        bus.setRetryPolicy(new RetryPolicy(10, 40, 0, 0.5d, 0, 0));
+        bus.send("message", new Scope("scope"), new Participant("name", "name@example.com")).get(10, TimeUnit.SECONDS);
+        assertEquals(4, bus.attempts.get());
+        bus.stop();
+    }
+    
+    /**
+     * Gives up after the maximal number of attempts
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void maxAttempts() throws Exception {
+        BusFailing bus = new BusFailing(Integer.MAX_VALUE);
+        bus.setRetryPolicy(new RetryPolicy(1, 1, 3, 0d, 0, 0));
+        try {
+            bus.send("message", new Scope("scope"), new Participant("name", "name@example.com")).get(10, TimeUnit.SECONDS);
+            fail("Send should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BusException);
+        }
+        assertEquals(3, bus.attempts.get());
+        bus.stop();
+    }
+    
+    /**
+     * Pauses sending after consecutive failures
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void circuitBreaker() throws Exception {
+        BusFailing bus = new BusFailing(2);
+        bus.setRetryPolicy(new RetryPolicy(1, 1, 0, 0d, 2, 300));
+        long start = System.currentTimeMillis();
+        bus.send("message", new Scope("scope"), new Participant("name", "name@example.com")).get(10, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertEquals(3, bus.attempts.get());
+        bus.stop();
+    }
+    
+    /**
+     * Waiting for retries does not block the threads of the bus
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void retryNotBlocking() throws Exception {
+        
+        // Open the circuit breaker
+        BusFailing bus = new BusFailing(2);
+        bus.setRetryPolicy(new RetryPolicy(1, 1, 0, 0d, 2, 1000));
+        FutureTask<Void> send = bus.send("message", new Scope("scope"), new Participant("name", "name@example.com"));
+        long end = System.currentTimeMillis() + 10000;
+        while (bus.attempts.get() < 2 && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        
+        // The only thread of the bus is available while sending is paused
+        long start = System.currentTimeMillis();
+        bus.getExecutor().submit(() -> null).get(10, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertFalse(send.isDone());
+        
+        // Sent after pausing
+        send.get(10, TimeUnit.SECONDS);
+        assertEquals(3, bus.attempts.get());
+        bus.stop();
+    }
+    
+    /**
+     * Listeners do not block subscriptions and the message is processed when the callback runs
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void dispatch() throws Exception {
+        
+        // Prepare
+        BusFailing bus = new BusFailing(0);
+        Participant participant = new Participant("name", "name@example.com");
+        List<String> received = new CopyOnWriteArrayList<>();
+        MessageListener listener = new MessageListener() {
+            @Override
+            public void receive(String message) {
+                bus.receive(new Scope("other"), participant, this);
+                received.add(message);
+            }
+
+            @Override
+            public void receiveError(Exception exception) {
+                // Empty by design
+            }
+        };
+        bus.receive(new Scope("scope"), participant, listener);
+        
+        // Subscribe while processing
+        CountDownLatch processed = new CountDownLatch(2);
+        assertTrue(bus.receiveInternal(new BusMessage(participant, new Scope("scope"), "message"), processed::countDown));
+        assertFalse(bus.receiveInternal(new BusMessage(participant, new Scope("unknown"), "message"), processed::countDown));
+        assertTrue(processed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, received.size());
+        assertTrue(bus.isParticipantScopeRegistered(new Scope("other"), participant));
+        bus.stop();
+    }
+    
+    /**
+     * Receiving does not wait for listeners, a slow listener does not delay others and 
+     * a message is not passed on again while being processed
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void dispatchAsynchronous() throws Exception {
+        
+        // Prepare
+        BusFailing bus = new BusFailing(0);
+        Participant participant = new Participant("name", "name@example.com");
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger slow = new AtomicInteger();
+        CountDownLatch fast = new CountDownLatch(1);
+        bus.receive(new Scope("slow"), participant, new MessageListener() {
+            @Override
+            public void receive(String message) {
+                slow.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+
+            @Override
+            public void receiveError(Exception exception) {
+                // Empty by design
+            }
+        });
+        bus.receive(new Scope("fast"), participant, new MessageListener() {
+            @Override
+            public void receive(String message) {
+                fast.countDown();
+            }
+
+            @Override
+            public void receiveError(Exception exception) {
+                // Empty by design
+            }
+        });
+        
+        // Slow listener blocks neither receiving nor the other listener
+        CountDownLatch processed = new CountDownLatch(1);
+        BusMessage message = new BusMessage(participant, new Scope("slow"), "message");
+        assertTrue(bus.receiveInternal(message, processed::countDown));
+        assertTrue(bus.receiveInternal(new BusMessage(participant, new Scope("fast"), "message")));
+        assertTrue(fast.await(10, TimeUnit.SECONDS));
+        
+        // Not passed on again while being processed
+        assertTrue(bus.receiveInternal(new BusMessage(message), processed::countDown));
+        assertEquals(1, processed.getCount());
+        
+        // Callback runs when processed
+        release.countDown();
+        assertTrue(processed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, slow.get());
+        
+        // Closing waits for nothing
+        CountDownLatch closed = new CountDownLatch(1);
+        bus.whenProcessed(closed::countDown);
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        bus.stop();
+    }
+    
+    /**
+     * Messages are delivered in order while all threads for sending are busy
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void dispatchWhileSending() throws Exception {
+        
+        // Prepare
+        BusFailing bus = new BusFailing(0);
+        Participant participant = new Participant("name", "name@example.com");
+        List<String> received = new CopyOnWriteArrayList<>();
+        bus.receive(new Scope("scope"), participant, new MessageListener() {
+            @Override
+            public void receive(String message) {
+                received.add(message);
+            }
+
+            @Override
+            public void receiveError(Exception exception) {
+                // Empty by design
+            }
+        });
+        
+        // Block the only thread for sending
+        CountDownLatch release = new CountDownLatch(1);
+        bus.getExecutor().execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        });
+        
+        // Deliver
+        CountDownLatch processed = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            bus.receiveInternal(new BusMessage(participant, new Scope("scope"), "message" + i), processed::countDown);
+        }
+        assertTrue(processed.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message" + i, received.get(i));
+        }
+        release.countDown();
+        bus.stop();
+    }
+    
+    /**
+     * Delays grow exponentially up to the maximum
+     */
+    @Test
+    public void backoff() {
+        RetryPolicy policy = new RetryPolicy(100, 1000, 0, 0.5d, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(1);
+            assertTrue(delay > 50 && delay <= 100);
+            delay = policy.getDelay(3);
+            assertTrue(delay > 200 && delay <= 400);
+            delay = policy.getDelay(30);
+            assertTrue(delay > 500 && delay <= 1000);
+        }
+    }
+}
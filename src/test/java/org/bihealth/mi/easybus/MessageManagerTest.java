@@ -0,0 +1,150 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit test for splitting and merging messages
+ * 
+ * @author agent
+ */
+public class MessageManagerTest {
+
+    /**
+     * Creates a random string
+     * 
+     * @param length
+     * @param alphabet
+     * @return
+     */
+    private static String getString(int length, String alphabet) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Splits and merges a message
+     * 
+     * @param content
+     * @param maxMessageSize
+     * @throws IOException
+     * @throws BusException
+     */
+    private static void splitAndMerge(String content, int maxMessageSize) throws IOException, BusException {
+
+        // Split
+        MessageManager manager = new MessageManager(maxMessageSize);
+        BusMessage message = new BusMessage(new Participant("Test", "test@example.org"), new Scope("Test"), content);
+        BusMessage[] fragments = manager.splitMessage(message);
+        for (BusMessage fragment : fragments) {
+            assertEquals(true, fragment.getMessage().getBytes(StandardCharsets.UTF_8).length <= maxMessageSize);
+        }
+        
+        // Merge in reverse order
+        BusMessage result = null;
+        for (int i = fragments.length - 1; i >= 0; i--) {
+            if (i > 0) {
+                assertNull(manager.mergeMessage(fragments[i]));
+            } else {
+                result = manager.mergeMessage(fragments[i]);
+            }
+        }
+        assertEquals(content, result.getMessage());
+    }
+
+    /**
+     * Base64-like content
+     * 
+     * @throws IOException
+     * @throws BusException
+     */
+    @Test
+    public void ascii() throws IOException, BusException {
+        String content = getString(100000, "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=");
+        splitAndMerge(content, 1000);
+        splitAndMerge(content, 99999);
+        splitAndMerge(content, 200000);
+    }
+
+    /**
+     * Content with multi-byte characters
+     * 
+     * @throws IOException
+     * @throws BusException
+     */
+    @Test
+    public void multiByte() throws IOException, BusException {
+        String content = getString(10000, "abcäöüß€") + "\uD83D\uDE00";
+        splitAndMerge(content, 100);
+        splitAndMerge(content, 101);
+    }
+
+    /**
+     * Eviction of incomplete messages
+     * 
+     * @throws IOException
+     * @throws BusException
+     * @throws InterruptedException
+     */
+    @Test
+    public void eviction() throws IOException, BusException, InterruptedException {
+        
+        // Prepare
+        Participant participant = new Participant("Test", "test@example.org");
+        String content = getString(1000, "ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+        BusMessage[] fragments1 = new MessageManager(100).splitMessage(new BusMessage(participant, new Scope("Test"), content));
+        BusMessage[] fragments2 = new MessageManager(100).splitMessage(new BusMessage(participant, new Scope("Test"), content));
+        
+        // Size-based
+        MessageManager manager = new MessageManager(100, 1000, Long.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            assertNull(manager.mergeMessage(fragments1[i]));
+        }
+        assertEquals(1, manager.getPendingMessages());
+        assertEquals(5, manager.getPendingFragments());
+        assertEquals(500, manager.getPendingSize());
+        for (int i = 0; i < 6; i++) {
+            assertNull(manager.mergeMessage(fragments2[i]));
+        }
+        assertEquals(1, manager.getPendingMessages());
+        assertEquals(1, manager.getEvictedMessages());
+        assertEquals(5, manager.getEvictedFragments());
+        for (int i = 6; i < fragments2.length - 1; i++) {
+            assertNull(manager.mergeMessage(fragments2[i]));
+        }
+        assertEquals(content, manager.mergeMessage(fragments2[fragments2.length - 1]).getMessage());
+        assertEquals(0, manager.getPendingMessages());
+        assertEquals(0, manager.getPendingSize());
+        
+        // Age-based
+        manager = new MessageManager(100, Long.MAX_VALUE, 1);
+        assertNull(manager.mergeMessage(fragments1[0]));
+        Thread.sleep(10);
+        assertNull(manager.mergeMessage(fragments2[0]));
+        assertEquals(1, manager.getPendingMessages());
+        assertEquals(1, manager.getEvictedMessages());
+    }
+}
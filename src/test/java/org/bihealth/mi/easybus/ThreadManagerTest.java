@@ -0,0 +1,107 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests creating threads and executors
+ * 
+ * @author agent
+ */
+public class ThreadManagerTest {
+
+    /**
+     * Threads and executors work with and without virtual threads, also on JVMs not supporting them
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void threads() throws Exception {
+        boolean virtual = ThreadManager.isVirtualThreads();
+        try {
+            for (boolean enabled : new boolean[] { false, true }) {
+                
+                // Configure
+                ThreadManager.setVirtualThreads(enabled);
+                assertTrue(ThreadManager.isVirtualThreads() == (enabled && ThreadManager.isVirtualThreadsSupported()));
+                
+                // Executor
+                ExecutorService executor = ThreadManager.newExecutor(1);
+                assertTrue(executor.submit(() -> true).get(10, TimeUnit.SECONDS));
+                executor.shutdown();
+                
+                // Threads
+                Thread daemon = ThreadManager.newThread(() -> {}, true);
+                Thread platform = ThreadManager.newThread(() -> {}, false);
+                assertTrue(daemon.isDaemon());
+                assertFalse(platform.isDaemon());
+                daemon.start();
+                platform.start();
+                daemon.join(10000);
+                platform.join(10000);
+            }
+        } finally {
+            ThreadManager.setVirtualThreads(virtual);
+        }
+    }
+    
+    /**
+     * Executors run at most the given number of tasks at the same time
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void bounded() throws Exception {
+        boolean virtual = ThreadManager.isVirtualThreads();
+        try {
+            for (boolean enabled : new boolean[] { false, true }) {
+                
+                // Run tasks
+                ThreadManager.setVirtualThreads(enabled);
+                ExecutorService executor = ThreadManager.newExecutor(2);
+                AtomicInteger running = new AtomicInteger();
+                AtomicInteger maximum = new AtomicInteger();
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    futures.add(executor.submit(() -> {
+                        maximum.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(5);
+                        running.decrementAndGet();
+                        return null;
+                    }));
+                }
+                
+                // Check
+                for (Future<?> future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+                assertTrue(maximum.get() <= 2);
+                executor.shutdown();
+            }
+        } finally {
+            ThreadManager.setVirtualThreads(virtual);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus.implementations.http.easybackend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bihealth.mi.easybus.MessageListener;
+import org.bihealth.mi.easybus.Participant;
+import org.bihealth.mi.easybus.PasswordStore;
+import org.bihealth.mi.easybus.Scope;
+import org.junit.Test;
+
+/**
+ * Tests the EasyBackend bus against a local stub
+ * 
+ * @author agent
+ */
+public class BusEasyBackendTest {
+
+    /**
+     * Sends a message to each scope and waits for them to be received
+     * 
+     * @param stub
+     * @param checkInterval
+     * @param numScopes
+     * @return whether the messages have been received within the timeout
+     * @throws Exception
+     */
+    private static boolean sendAndReceive(EasyBackendStub stub, int checkInterval, int numScopes) throws Exception {
+        
+        // Prepare
+        Participant participant = new Participant("Test", "test@example.org");
+        ConnectionSettingsEasyBackend settings = new ConnectionSettingsEasyBackend(participant.getEmailAddress(), null).setAPIServer(stub.getURL());
+        settings.setPasswordStore(new PasswordStore("test"));
+        BusEasyBackend bus = new BusEasyBackend(1, checkInterval, settings, participant, 1024);
+        
+        // Receive
+        CountDownLatch latch = new CountDownLatch(numScopes);
+        for (int i = 0; i < numScopes; i++) {
+            String expected = "Hello " + i;
+            bus.receive(new Scope("Test" + i), participant, new MessageListener() {
+                @Override
+                public void receive(String message) {
+                    assertEquals(expected, message);
+                    latch.countDown();
+                }
+                @Override
+                public void receiveError(Exception exception) {
+                    // Empty by design
+                }
+            });
+        }
+        
+        // Send and wait
+        try {
+            for (int i = 0; i < numScopes; i++) {
+                bus.send("Hello " + i, new Scope("Test" + i), participant).get(10, TimeUnit.SECONDS);
+            }
+            return latch.await(10, TimeUnit.SECONDS);
+        } finally {
+            bus.stop();
+        }
+    }
+
+    /**
+     * Messages are delivered without waiting for the check interval if the server supports waiting
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void longPolling() throws Exception {
+        EasyBackendStub stub = new EasyBackendStub(true, false);
+        try {
+            assertTrue(sendAndReceive(stub, 60000, 1));
+        } finally {
+            stub.stop();
+        }
+    }
+
+    /**
+     * Falls back to polling if the server does not support waiting
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void polling() throws Exception {
+        EasyBackendStub stub = new EasyBackendStub(false, false);
+        try {
+            assertTrue(sendAndReceive(stub, 100, 3));
+            assertTrue(stub.getReceiveRequests() > 0);
+        } finally {
+            stub.stop();
+        }
+    }
+
+    /**
+     * Receives messages for all scopes with one request if supported by the server
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void multiScope() throws Exception {
+        EasyBackendStub stub = new EasyBackendStub(false, true);
+        try {
+            assertTrue(sendAndReceive(stub, 100, 3));
+            assertTrue(stub.getReceiveAllRequests() > 0);
+            assertEquals(0, stub.getReceiveRequests());
+        } finally {
+            stub.stop();
+        }
+    }
+}
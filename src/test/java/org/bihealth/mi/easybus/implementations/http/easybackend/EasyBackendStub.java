@@ -0,0 +1,227 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easybus.implementations.http.easybackend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal in-memory stub of the EasyBackend API for tests
+ * 
+ * @author agent
+ */
+public class EasyBackendStub {
+    
+    /**
+     * A stored message
+     * 
+     * @author agent
+     */
+    private static class StoredMessage {
+        
+        /** Id */
+        private final long   id;
+        /** Scope */
+        private final String scope;
+        /** Content */
+        private final String content;
+        
+        /**
+         * Creates a new instance
+         * 
+         * @param id
+         * @param scope
+         * @param content
+         */
+        private StoredMessage(long id, String scope, String content) {
+            this.id = id;
+            this.scope = scope;
+            this.content = content;
+        }
+    }
+
+    /** Server */
+    private final HttpServer          server;
+    /** Messages */
+    private final List<StoredMessage> messages        = new ArrayList<>();
+    /** Support waiting */
+    private final boolean             waitSupported;
+    /** Support receiving for several scopes */
+    private final boolean             multiScopeSupported;
+    /** Next id */
+    private long                      nextId          = 1;
+    /** Number of receive requests per scope */
+    private final AtomicInteger       receiveRequests = new AtomicInteger();
+    /** Number of receive requests for several scopes */
+    private final AtomicInteger       receiveAllRequests = new AtomicInteger();
+    /** Mapper */
+    private final ObjectMapper        mapper          = new ObjectMapper();
+
+    /**
+     * Creates and starts a new instance on a free port
+     * 
+     * @param waitSupported
+     * @param multiScopeSupported
+     * @throws IOException
+     */
+    public EasyBackendStub(boolean waitSupported, boolean multiScopeSupported) throws IOException {
+        this.waitSupported = waitSupported;
+        this.multiScopeSupported = multiScopeSupported;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+    }
+    
+    /**
+     * Returns the number of receive requests for several scopes handled
+     * 
+     * @return
+     */
+    public int getReceiveAllRequests() {
+        return receiveAllRequests.get();
+    }
+    
+    /**
+     * Returns the number of receive requests per scope handled
+     * 
+     * @return
+     */
+    public int getReceiveRequests() {
+        return receiveRequests.get();
+    }
+    
+    /**
+     * Returns the URL of the stub
+     * 
+     * @return
+     * @throws IOException
+     */
+    public URL getURL() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * Stops the stub
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Handles a request
+     * 
+     * @param exchange
+     * @throws IOException
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        
+        // Prepare
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        String[] segments = path.split("/");
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        
+        try {
+            if (path.endsWith("/protocol/openid-connect/token")) {
+                respond(exchange, 200, "{\"access_token\":\"token\"}");
+            } else if (path.startsWith("/api/easybackend/send/") && segments.length == 6 && method.equals("POST")) {
+                synchronized (this) {
+                    messages.add(new StoredMessage(nextId++, segments[4], body));
+                    notifyAll();
+                }
+                respond(exchange, 200, "");
+            } else if (path.startsWith("/api/easybackend/receive/") && method.equals("GET")) {
+                receiveRequests.incrementAndGet();
+                respond(exchange, 200, getMessages(Collections.singletonList(segments[4])));
+            } else if (path.equals("/api/easybackend/receive") && method.equals("POST") && multiScopeSupported) {
+                receiveAllRequests.incrementAndGet();
+                List<String> scopes = new ArrayList<>();
+                mapper.readTree(body).forEach(scope -> scopes.add(scope.asText()));
+                respond(exchange, 200, getMessages(scopes));
+            } else if (path.startsWith("/api/easybackend/message/") && segments.length == 5 && method.equals("DELETE")) {
+                synchronized (this) {
+                    long id = Long.valueOf(segments[4]);
+                    messages.removeIf(message -> message.id == id);
+                }
+                respond(exchange, 200, "");
+            } else if (path.equals("/api/easybackend/wait") && waitSupported) {
+                long timeout = Long.valueOf(exchange.getRequestURI().getQuery().replace("timeout=", ""));
+                synchronized (this) {
+                    long end = System.currentTimeMillis() + timeout;
+                    while (messages.isEmpty() && System.currentTimeMillis() < end) {
+                        wait(Math.max(1, end - System.currentTimeMillis()));
+                    }
+                }
+                respond(exchange, 200, "");
+            } else {
+                respond(exchange, 404, "");
+            }
+        } catch (InterruptedException e) {
+            respond(exchange, 500, "");
+        }
+    }
+    
+    /**
+     * Returns messages of the given scopes as JSON
+     * 
+     * @param scopes
+     * @return
+     */
+    private synchronized String getMessages(List<String> scopes) {
+        ArrayNode result = mapper.createArrayNode();
+        for (StoredMessage message : messages) {
+            if (scopes.contains(message.scope)) {
+                result.addObject().put("id", message.id).put("content", message.content);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Sends a response
+     * 
+     * @param exchange
+     * @param code
+     * @param body
+     * @throws IOException
+     */
+    private void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        
+        // Without content the body must not be written, otherwise the connection is dropped
+        if (bytes.length == 0) {
+            exchange.close();
+            return;
+        }
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihealth.mi.easysmpc.cli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.tu_darmstadt.cbs.emailsmpc.Study.StudyState;
+
+/**
+ * Tests reading batch manifests and scheduling studies
+ * 
+ * @author agent
+ */
+public class BatchProcessTest {
+
+    /**
+     * Process which sends, then waits until all processes of the batch have been started
+     * 
+     * @author agent
+     */
+    private static class ProcessWaiting extends UserProcess {
+
+        /**
+         * Creates a new instance
+         * 
+         * @param started - counted down when started, awaited before finishing
+         * @param sending - number of processes sending
+         * @param maximum - maximal number of processes sending at the same time
+         */
+        ProcessWaiting(CountDownLatch started, AtomicInteger sending, AtomicInteger maximum) {
+            super(null, 0, false);
+            getModel().setState(StudyState.INITIAL_SENDING);
+            maximum.accumulateAndGet(sending.incrementAndGet(), Math::max);
+            started.countDown();
+            new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                    sending.decrementAndGet();
+                    getModel().setState(StudyState.RECIEVING_SHARE);
+                    if (started.await(20, TimeUnit.SECONDS)) {
+                        getModel().setState(StudyState.FINISHED);
+                    }
+                } catch (InterruptedException e) {
+                    // Ignore
+                } finally {
+                    markTerminated();
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Tests splitting lines into arguments
+     */
+    @Test
+    public void tokenize() {
+        assertEquals(Arrays.asList("-create", "-l", "my study", "-e"), BatchProcess.tokenize("  -create -l \"my study\"\t-e "));
+        assertEquals(Arrays.asList("-p", ""), BatchProcess.tokenize("-p \"\""));
+    }
+
+    /**
+     * Tests reading a manifest with one study per line
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void manifest() throws IOException {
+        
+        // Prepare
+        File manifest = File.createTempFile("manifest", ".txt");
+        manifest.deleteOnExit();
+        Files.write(manifest.toPath(),
+                    Arrays.asList("# Studies", "-resume -k study1.smpc -p secret", "", "-resume -k study2.smpc -p secret"),
+                    StandardCharsets.UTF_8);
+        
+        // Read
+        Map<String, String[]> studies = BatchProcess.readManifest(manifest);
+        
+        // Check
+        assertEquals(2, studies.size());
+        assertArrayEquals(new String[] { "-resume", "-k", "study2.smpc", "-p", "secret" },
+                          studies.get(manifest.getName() + ":4"));
+    }
+    
+    /**
+     * Studies waiting for each other do not block the scheduler, even if there are more of them than slots
+     * 
+     * @throws Exception
+     */
+    @Test(timeout = 30000)
+    public void interdependent() throws Exception {
+        
+        // Prepare
+        Map<String, String[]> definitions = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            definitions.put("study" + i, new String[0]);
+        }
+        CountDownLatch started = new CountDownLatch(definitions.size());
+        AtomicInteger sending = new AtomicInteger();
+        AtomicInteger maximum = new AtomicInteger();
+        BatchProcess batch = new BatchProcess(definitions, 1) {
+            @Override
+            UserProcess startProcess(String[] args) {
+                return new ProcessWaiting(started, sending, maximum);
+            }
+        };
+        
+        // Execute and check
+        batch.execute();
+        assertEquals(0, started.getCount());
+        assertEquals(1, maximum.get());
+        assertEquals(0, sending.get());
+    }
+}